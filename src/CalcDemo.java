@@ -52,45 +52,38 @@ public class CalcDemo {
 	}
 
 	static final ScanRuleSet scanRules= new ScanRuleSet("Default State", new ScanRule[] {
-		new ScanRule("+", Add.INSTANCE),
+		new ScanRule("\\+", Add.INSTANCE),
 		new ScanRule("-", Sub.INSTANCE),
-		new ScanRule("*", Mul.INSTANCE),
+		new ScanRule("\\*", Mul.INSTANCE),
 		new ScanRule("/", Div.INSTANCE),
 		new ScanRule("sin", Sin.INSTANCE),
 		new ScanRule("cos", Cos.INSTANCE),
-		new ScanRule("("),
-		new ScanRule(")"),
-		new ScanRule(Pattern.compile("[ \t]+"), ScanRule.EMIT_NOTHING),
-		new ScanRule(Pattern.compile("\r?\n|\r")) {
-			public Object onMatch(String text, Scanner sender) {
-				sender.incLineNo();
-				return ScanRule.EMIT_NOTHING;
-			}
-		},
-		new ScanRule(Pattern.compile("([0-9]+(\\.[0-9]*)?|[0-9]*\\.[0-9]+)([Ee][+-]?[0-9]+)?")) {
-			public Object onMatch(String text, Scanner sender) {
-				return new Double(text);
-			}
-		}
+		new ScanRule("\\(", "("),
+		new ScanRule("\\)", ")"),
+		new ScanRule("[ \t\r\n]+", ScanRule.EMIT_NOTHING),
+		new NumberScanRule(NumberScanRule.FLOAT).setTerminal(Double.class)
 	});
 
 	static final Nonterminal
 		Expr= new Nonterminal("Expression");
 
+	// The values stay unboxed on the parser's stack from the scanner to the final result
 	static final ReduceMethod
-		infixHandler= new ReduceMethod() {
-			public Object reduce(ParseRule rule, SourcePos from, Object[] symbols) {
-				double a= ((Double)symbols[0]).doubleValue();
-				double b= ((Double)symbols[2]).doubleValue();
-				Function op= (Function)symbols[1];
-				return new Double(op.evalBinary(a, b));
+		infixHandler= new ReduceMethod.DoubleHandler() {
+			public double reduceDouble(ParseRule rule, ReduceArgs args) {
+				Function op= (Function)args.get(1);
+				return op.evalBinary(args.getDouble(0), args.getDouble(2));
+			}
+		},
+		unaryHandler= new ReduceMethod.DoubleHandler() {
+			public double reduceDouble(ParseRule rule, ReduceArgs args) {
+				Function op= (Function)args.get(0);
+				return op.evalUnary(args.getDouble(1));
 			}
 		},
-		unaryHandler= new ReduceMethod() {
-			public Object reduce(ParseRule rule, SourcePos from, Object[] symbols) {
-				double a= ((Double)symbols[1]).doubleValue();
-				Function op= (Function)symbols[0];
-				return new Double(op.evalUnary(a));
+		numberHandler= new ReduceMethod.DoubleHandler() {
+			public double reduceDouble(ParseRule rule, ReduceArgs args) {
+				return args.getDouble(0);
 			}
 		};
 
@@ -104,7 +97,7 @@ public class CalcDemo {
 		sinRule= new ParseRule(Expr, new Object[] {Sin.INSTANCE, Expr}, unaryHandler),
 		cosRule= new ParseRule(Expr, new Object[] {Cos.INSTANCE, Expr}, unaryHandler),
 		parensRule= new ParseRule(Expr, new Object[] {"(", Expr, ")"}, new ParseRule.PassthroughHandler(1)),
-		new ParseRule(Expr, new Object[] {Double.class}, ParseRule.FIRSTELEM_PASSTHROUGH),
+		new ParseRule(Expr, new Object[] {Double.class}, numberHandler),
 	};
 	static Priorities rulePri= new Priorities(new PriorityLevel[] {
 		new PriorityLevel(new ParseRule[] {addRule, subRule}, Priorities.LEFT, 1),
@@ -114,9 +107,11 @@ public class CalcDemo {
 	});
 
 	Parser parser;
+	ParseSession session;
 
 	public CalcDemo() {
 		parser= new Parser(new Grammar(Expr, parseRules, rulePri));
+		session= new ParseSession(parser, new ScanRuleSet[] {scanRules});
 	}
 
 	public void run() throws Exception {
@@ -129,8 +124,7 @@ public class CalcDemo {
 			input= lineIn.readLine();
 			if (input != null && !input.equals("quit") && !input.equals("exit")) {
 				try {
-					Scanner scanner= new Scanner(new ScanRuleSet[] {scanRules}, input);
-					Object result= parser.parse(scanner);
+					Object result= session.parse(input);
 					lineOut.println(result);
 					lineOut.println();
 				}
@@ -417,13 +417,13 @@ public class Demo extends HttpServlet {
 			+"\n<br/>"
 			+"\n<input type='submit' name='submit' value='Test' tabindex='1'/>");
 		if (fields.input.length() > 0) {
-			com.silverdirk.parser.Scanner scanner= null;
+			ParseSession session= new ParseSession(parser, scanRules);
 			try {
 				hgl.beginContentToggle("scan", true);
 				hgl.beginContentSelectorButton("scan", 1, false).p("Show scanned tokens</a>\n");
 				hgl.nextContentToggle("scan", 1, false);
 				hgl.beginContentSelectorButton("scan", 0, false).p("Hide scanned tokens</a>\n");
-				scanner= new com.silverdirk.parser.Scanner(scanRules, fields.input);
+				com.silverdirk.parser.Scanner scanner= session.reset(fields.input);
 				hgl.beginGroupBox();
 				hgl.p("<div class='scan-output'>\n");
 				while (scanner.curToken() != scanner.EOF) {
@@ -434,8 +434,7 @@ public class Demo extends HttpServlet {
 				hgl.endGroupBox();
 				hgl.endContentToggle();
 
-				scanner= new com.silverdirk.parser.Scanner(scanRules, fields.input);
-				GenericParseNode result= (GenericParseNode) parser.parse(scanner);
+				GenericParseNode result= (GenericParseNode) session.parse(fields.input);
 				hgl.p("<pre class='parse-tree'>\n");
 				result.displayTree(hgl.getTextEscapingWriter());
 				hgl.p("</pre>\n");
@@ -21,24 +21,14 @@ public class ParseDemo {
 	}
 
 	static final ScanRuleSet scanRules= new ScanRuleSet("Default State", new ScanRule[] {
-		new ScanRule("+"),
-		new ScanRule("-"),
-		new ScanRule("*"),
-		new ScanRule("/"),
-		new ScanRule("("),
-		new ScanRule(")"),
-		new ScanRule(Pattern.compile("[ \t]+"), ScanRule.EMIT_NOTHING),
-		new ScanRule(Pattern.compile("\r?\n|\r")) {
-			public Object onMatch(String text, Scanner sender) {
-				sender.incLineNo();
-				return ScanRule.EMIT_NOTHING;
-			}
-		},
-		new ScanRule(Pattern.compile("([0-9]+(\\.[0-9]*)?|[0-9]*\\.[0-9]+)([Ee][+-]?[0-9]+)?")) {
-			public Object onMatch(String text, Scanner sender) {
-				return new Double(text);
-			}
-		}
+		new ScanRule("\\+", "+"),
+		new ScanRule("-", "-"),
+		new ScanRule("\\*", "*"),
+		new ScanRule("/", "/"),
+		new ScanRule("\\(", "("),
+		new ScanRule("\\)", ")"),
+		new ScanRule("[ \t\r\n]+", ScanRule.EMIT_NOTHING),
+		new NumberScanRule(NumberScanRule.FLOAT)
 	});
 
 	static final Nonterminal
@@ -62,9 +52,11 @@ public class ParseDemo {
 	});
 
 	Parser parser;
+	ParseSession session;
 
 	public ParseDemo() {
 		parser= new Parser(new Grammar(Expr, parseRules, rulePri));
+		session= new ParseSession(parser, new ScanRuleSet[] {scanRules});
 	}
 
 	public void run() throws Exception {
@@ -77,8 +69,7 @@ public class ParseDemo {
 			input= lineIn.readLine();
 			if (input != null && !input.equals("quit") && !input.equals("exit")) {
 				try {
-					Scanner scanner= new Scanner(new ScanRuleSet[] {scanRules}, input);
-					Object parseTree= parser.parse(scanner);
+					Object parseTree= session.parse(input);
 					((GenericParseNode) parseTree).displayTree(lineOut);
 				}
 				catch (ParseException ex) {
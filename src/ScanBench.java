@@ -0,0 +1,98 @@
+import com.silverdirk.parser.*;
+
+/**
+ * <p>Project: Parser Demo</p>
+ * <p>Title: Scanner scaling benchmark</p>
+ * <p>Description: Times the scanner on inputs of doubling size, to show that scanning is linear</p>
+ * <p>Copyright Copyright (c) 2007</p>
+ *
+ * <p>Generates a config-file-like input of 1, 2, 4, 8 and 16 MB (or up to the
+ * size in MB given as the first argument) and scans each one, printing the
+ * time per character.  If scanning is linear, the time per character stays
+ * flat as the size doubles.  This is run twice: once with rules the DFA
+ * handles, and once with a lookahead rule first, which java.util.regex has
+ * to try (on a region of the input) before every token.  The DFA rules are
+ * also run on the input as UTF-8 bytes.
+ *
+ * @author Michael Conrad / TheSilverDirk
+ * @version $Revision$
+ */
+public class ScanBench {
+	public static void main(String[] args) throws Exception {
+		int maxMB= args.length > 0? Integer.parseInt(args[0]) : 16;
+		System.out.println("DFA rules:");
+		run(new ScanRuleSet[] { makeRules(false) }, maxMB);
+		System.out.println("Regex fallback rules:");
+		run(new ScanRuleSet[] { makeRules(true) }, maxMB);
+		System.out.println("DFA rules on UTF-8 bytes:");
+		runBytes(new ScanRuleSet[] { makeRules(false) }, maxMB);
+	}
+
+	static ScanRuleSet makeRules(boolean withLookahead) {
+		ScanRule[] common= new ScanRule[] {
+			new ScanRule("[A-Za-z_][A-Za-z0-9_]*"),
+			new ScanRule("[0-9]+"),
+			new ScanRule("=", "="),
+			new ScanRule(";", ";"),
+			new ScanRule("[ \t\n]+", ScanRule.EMIT_NOTHING),
+			new ScanRule("#[^\n]*", ScanRule.EMIT_NOTHING),
+		};
+		if (!withLookahead)
+			return new ScanRuleSet("Bench", common);
+		ScanRule[] rules= new ScanRule[common.length+1];
+		rules[0]= new ScanRule("include(?=\\s)", "include");
+		System.arraycopy(common, 0, rules, 1, common.length);
+		return new ScanRuleSet("Bench", rules);
+	}
+
+	static void run(ScanRuleSet[] rules, int maxMB) throws Exception {
+		for (int mb=1; mb <= maxMB; mb*= 2) {
+			String text= makeInput(mb*1024*1024);
+			// warm up on the first size
+			if (mb == 1)
+				scan(rules, text);
+			long startTime= System.nanoTime();
+			int tokens= scan(rules, text);
+			long elapsed= System.nanoTime() - startTime;
+			System.out.println("  "+mb+" MB: "+tokens+" tokens, "+(elapsed/1000000)+" ms, "
+				+(elapsed/text.length())+" ns/char");
+		}
+	}
+
+	static void runBytes(ScanRuleSet[] rules, int maxMB) throws Exception {
+		for (int mb=1; mb <= maxMB; mb*= 2) {
+			byte[] utf8= makeInput(mb*1024*1024).getBytes("UTF-8");
+			if (mb == 1)
+				scan(new Scanner(rules, utf8));
+			long startTime= System.nanoTime();
+			int tokens= scan(new Scanner(rules, utf8));
+			long elapsed= System.nanoTime() - startTime;
+			System.out.println("  "+mb+" MB: "+tokens+" tokens, "+(elapsed/1000000)+" ms, "
+				+(elapsed/utf8.length)+" ns/byte");
+		}
+	}
+
+	static int scan(ScanRuleSet[] rules, String text) throws ParseException {
+		return scan(new Scanner(rules, text));
+	}
+
+	static int scan(Scanner scanner) throws ParseException {
+		int count= 0;
+		while (scanner.curToken() != TokenSource.EOF) {
+			count++;
+			scanner.next();
+		}
+		return count;
+	}
+
+	static String makeInput(int size) {
+		StringBuffer sb= new StringBuffer(size+64);
+		for (int i=0; sb.length() < size; i++) {
+			sb.append("setting_").append(i).append(" = ").append(i*7919L % 100000).append(";");
+			if (i % 4 == 0)
+				sb.append("  # comment for setting ").append(i);
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+}
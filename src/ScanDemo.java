@@ -1,6 +1,4 @@
 import java.io.*;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 import com.silverdirk.parser.*;
 
 /**
@@ -19,22 +17,16 @@ public class ScanDemo {
 	}
 
 	static final ScanRuleSet scanRules= new ScanRuleSet("Default State", new ScanRule[] {
-		new ScanRule("+"),
-		new ScanRule("-"),
-		new ScanRule("*"),
-		new ScanRule("/"),
-		new ScanRule("("),
-		new ScanRule(")"),
-		new ScanRule(Pattern.compile("[ \t]+"), ScanRule.EMIT_NOTHING),
-		new ScanRule(Pattern.compile("\r?\n|\r")) {
-			public Object onMatch(String text, Scanner sender) {
-				sender.incLineNo();
-				return ScanRule.EMIT_NOTHING;
-			}
-		},
-		new ScanRule(Pattern.compile("([0-9]+(\\.[0-9]*)?|[0-9]*\\.[0-9]+)([Ee][+-]?[0-9]+)?")) {
-			public Object onMatch(String text, Scanner sender) {
-				return new Double(text);
+		new ScanRule("\\+", "+"),
+		new ScanRule("-", "-"),
+		new ScanRule("\\*", "*"),
+		new ScanRule("/", "/"),
+		new ScanRule("\\(", "("),
+		new ScanRule("\\)", ")"),
+		new ScanRule("[ \t\r\n]+", ScanRule.EMIT_NOTHING),
+		new ScanRule("([0-9]+(\\.[0-9]*)?|[0-9]*\\.[0-9]+)([Ee][+-]?[0-9]+)?") {
+			public Object onMatch(MatchedText match, Scanner sender) {
+				return new Double(match.toString());
 			}
 		}
 	});
@@ -9,7 +9,7 @@ package com.silverdirk.parser;
  * @author Michael Conrad
  * @version $Revision$
  */
-public class ArrayTokenSource implements TokenSource {
+public class ArrayTokenSource implements OffsetTokenSource {
 	Object[] tokens;
 	SourcePos[] locations;
 	int curPos= 0;
@@ -70,6 +70,49 @@ public class ArrayTokenSource implements TokenSource {
 			throw new RuntimeException();
 	}
 
+	/** Get the start offset of the current token.
+	 * <p>Offsets are simply indicies into the token array.
+	 *
+	 * @return long The index of the current token
+	 */
+	public long curTokenStart() {
+		return curPos;
+	}
+
+	/** Get the end offset of the current token.
+	 * @return long One past the index of the current token
+	 */
+	public long curTokenEnd() {
+		return curPos < tokens.length? curPos+1 : curPos;
+	}
+
+	/** Build a SourcePos covering a range of tokens.
+	 * <p>The start coordinates come from the location of the first token and
+	 * the end coordinates from the location of the last one.  If no locations
+	 * were given to the constructor, the result is all zeros.
+	 *
+	 * @param start long The index of the first token, or NO_OFFSET
+	 * @param end long One past the index of the last token, or NO_OFFSET
+	 * @return SourcePos The coordinates covering that range of tokens
+	 */
+	public SourcePos getSourcePos(long start, long end) {
+		SourcePos result= new SourcePos();
+		if (locations != null) {
+			if (start >= 0 && start < locations.length && locations[(int)start] != null) {
+				result.lineStart= locations[(int)start].lineStart;
+				result.charStart= locations[(int)start].charStart;
+			}
+			if (end > 0 && end <= locations.length && locations[(int)end-1] != null) {
+				result.lineEnd= locations[(int)end-1].lineEnd;
+				result.charEnd= locations[(int)end-1].charEnd;
+			}
+		}
+		return result;
+	}
+
+	public void releaseOffsetsBefore(long offset) {
+	}
+
 	/** Get the context for the coordinates used in the SourcePos.
 	 * <p>Returns the context given to the constructor.
 	 *
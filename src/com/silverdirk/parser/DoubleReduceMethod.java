@@ -0,0 +1,27 @@
+package com.silverdirk.parser;
+
+/**
+ * <p>Project: Dynamic LR(1) Parsing Library</p>
+ * <p>Title: Double Reduce Method</p>
+ * <p>Description: A reduce method whose result is an unboxed double</p>
+ * <p>Copyright: Copyright (c) 2007</p>
+ *
+ * <p>The parser keeps the result of reduceDouble on its primitive value
+ * stack, so expression evaluators built from DoubleReduceMethods and
+ * ReduceArgs.getDouble never box intermediate results.  Anything that reads
+ * the value as an Object gets a Double.
+ *
+ * <p>Extend ReduceMethod.DoubleHandler rather than implementing this directly.
+ *
+ * @author Michael Conrad
+ * @version $Revision$
+ */
+public interface DoubleReduceMethod extends StackReduceMethod {
+	/** Reduce the symbols to a double.
+	 *
+	 * @param rule ParseRule The rule being reduced
+	 * @param args ReduceArgs A view of the symbol values, valid only during this call
+	 * @return double The value of the rule's target
+	 */
+	public double reduceDouble(ParseRule rule, ReduceArgs args);
+}
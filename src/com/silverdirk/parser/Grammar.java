@@ -15,6 +15,14 @@ import java.util.Set;
  * This set defaults to "EOF" which means that the entire token stream must be
  * consumed for a parse to be successful.
  *
+ * <p>"tableType" selects how LR1_Table builds the parse table.  The default,
+ * TableBuilder.CANONICAL_LR1, handles any LR(1) grammar.  TableBuilder.LALR1
+ * builds far fewer states, far faster, for grammars which are LALR(1) (as
+ * most grammars for programming languages are).  TableBuilder.MINIMAL_LR1
+ * handles any LR(1) grammar, like CANONICAL_LR1, but merges states as LALR1
+ * does wherever that can't introduce a conflict, or change how priorities
+ * decide one.
+ *
  * @author Michael Conrad
  * @version $Revision$
  */
@@ -23,6 +31,7 @@ public class Grammar {
 	public ParseRule[] rules;
 	public Parser.Priorities priorities;
 	public Set startFollowSet= TableBuilder.EOF_SET;
+	public int tableType= TableBuilder.CANONICAL_LR1;
 
 	public Grammar(Nonterminal start, java.util.Collection rules) {
 		this(start, (ParseRule[]) rules.toArray(new ParseRule[rules.size()]));
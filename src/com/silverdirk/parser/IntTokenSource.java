@@ -0,0 +1,33 @@
+package com.silverdirk.parser;
+
+/**
+ * <p>Project: Dynamic LR(1) Parsing Library</p>
+ * <p>Title: Integer Token Source</p>
+ * <p>Description: A TokenSource which can also report the terminal id of each token</p>
+ * <p>Copyright: Copyright (c) 2007</p>
+ *
+ * <p>The parser normally has to discover which terminal a token belongs to by
+ * looking up its value, and then its class, in the parse tables.  Producers
+ * that already know which terminal they are emitting can implement this
+ * interface and hand the parser the terminal id directly, so the lookup is
+ * skipped entirely.
+ *
+ * <p>Terminal ids come from Parser.getTerminalId, and are only meaningful to
+ * the parser that assigned them.  A token source may report UNKNOWN_KIND for
+ * any token, in which case the parser falls back to its usual lookup.
+ *
+ * @author Michael Conrad
+ * @version $Revision$
+ */
+public interface IntTokenSource extends TokenSource {
+	/** Get the terminal id of the current token.
+	 * <p>If the parse table has no action for this id in the current state,
+	 * the parser will still try to match the token by value and class, so a
+	 * token source only needs to be correct, not complete.
+	 *
+	 * @return int The parser's id for the current token's terminal, or UNKNOWN_KIND
+	 */
+	public int curTokenKind();
+
+	public static final int UNKNOWN_KIND= -1;
+}
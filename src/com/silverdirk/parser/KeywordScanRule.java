@@ -0,0 +1,174 @@
+package com.silverdirk.parser;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Project: Dynamic LR(1) Parsing Library</p>
+ * <p>Title: Keyword Scan Rule</p>
+ * <p>Description: A scan rule for identifiers, which recognizes keywords among them</p>
+ * <p>Copyright: Copyright (c) 2007</p>
+ *
+ * <p>Rather than listing a ScanRule for every keyword ahead of the
+ * identifier rule, one KeywordScanRule matches the identifier pattern and
+ * then looks the matched text up in a table of keywords.  A keyword emits
+ * its own token; anything else is an identifier, and is handled like a
+ * plain ScanRule (by default emitting the matched text).
+ *
+ * <p>The table is an open-addressed hash table, and when the rule is run by
+ * a Scanner the lookup is done on the scanner's input (chars or UTF-8
+ * bytes), so a keyword token is produced without creating a String.
+ *
+ * <p>Since the keywords are found by matching the whole identifier, a
+ * keyword never matches the front of a longer identifier ("if" in "iffy"),
+ * which is usually what a language wants.
+ *
+ * <p>onMatch calls onKeyword or onIdentifier, so subclasses should override
+ * those rather than onMatch.
+ *
+ * @author Michael Conrad
+ * @version $Revision$
+ */
+public class KeywordScanRule extends ScanRule {
+	String[] table;
+	Object[] tableTokens;
+	int mask;
+
+	/** Constructor.
+	 * <p>Each keyword emits the keyword string as its token, and identifiers
+	 * emit the matched text.
+	 *
+	 * @param pattern String The regex of an identifier
+	 * @param keywords String[] The identifiers which are keywords
+	 */
+	public KeywordScanRule(String pattern, String[] keywords) {
+		this(pattern, keywords, keywords, EMIT_MATCH);
+	}
+
+	/** Constructor.
+	 *
+	 * @param pattern String The regex of an identifier
+	 * @param keywords String[] The identifiers which are keywords
+	 * @param tokens Object[] The token to emit for each keyword
+	 */
+	public KeywordScanRule(String pattern, String[] keywords, Object[] tokens) {
+		this(pattern, keywords, tokens, EMIT_MATCH);
+	}
+
+	/** Constructor.
+	 *
+	 * @param pattern String The regex of an identifier
+	 * @param keywords String[] The identifiers which are keywords
+	 * @param tokens Object[] The token to emit for each keyword
+	 * @param identToken Object The token for identifiers which aren't keywords, as for ScanRule
+	 */
+	public KeywordScanRule(String pattern, String[] keywords, Object[] tokens, Object identToken) {
+		super(pattern, identToken);
+		if (keywords.length != tokens.length)
+			throw new IllegalArgumentException("Need one token per keyword");
+		int size= 4;
+		while (size < keywords.length*2)
+			size<<= 1;
+		table= new String[size];
+		tableTokens= new Object[size];
+		mask= size-1;
+		for (int i=0; i<keywords.length; i++) {
+			if (tokens[i] == null || tokens[i] == EMIT_NOTHING || tokens[i] == EMIT_MATCH)
+				throw new IllegalArgumentException("Keyword "+keywords[i]+" needs a token");
+			int slot= keywords[i].hashCode() & mask;
+			while (table[slot] != null && !table[slot].equals(keywords[i]))
+				slot= (slot+1) & mask;
+			table[slot]= keywords[i];
+			tableTokens[slot]= tokens[i];
+		}
+	}
+
+	/** Look up a range of text in the keyword table.
+	 *
+	 * @param text CharSequence The text containing the identifier
+	 * @param start int The start of the identifier
+	 * @param end int The end of the identifier
+	 * @return Object The keyword's token, or null if the text isn't a keyword
+	 */
+	public Object getKeywordToken(CharSequence text, int start, int end) {
+		int hash= 0;
+		for (int i=start; i<end; i++)
+			hash= 31*hash + text.charAt(i);
+		int len= end-start;
+		for (int slot= hash & mask; table[slot] != null; slot= (slot+1) & mask) {
+			String keyword= table[slot];
+			if (keyword.length() != len)
+				continue;
+			int i= 0;
+			while (i < len && keyword.charAt(i) == text.charAt(start+i))
+				i++;
+			if (i == len)
+				return tableTokens[slot];
+		}
+		return null;
+	}
+
+	/** Look up a range of UTF-8 bytes in the keyword table.
+	 * <p>ASCII is compared byte for byte; anything else is decoded first.
+	 */
+	Object getKeywordToken(ByteBuffer bytes, int start, int end) {
+		int hash= 0;
+		for (int i=start; i<end; i++) {
+			int b= bytes.get(i);
+			if (b < 0) {
+				String text= Scanner.decodeUtf8(bytes, start, end); // not ASCII
+				return getKeywordToken(text, 0, text.length());
+			}
+			hash= 31*hash + b;
+		}
+		int len= end-start;
+		for (int slot= hash & mask; table[slot] != null; slot= (slot+1) & mask) {
+			String keyword= table[slot];
+			if (keyword.length() != len)
+				continue;
+			int i= 0;
+			while (i < len && keyword.charAt(i) == bytes.get(start+i))
+				i++;
+			if (i == len)
+				return tableTokens[slot];
+		}
+		return null;
+	}
+
+	/** Return the token for the match, which is either a keyword or an identifier.
+	 */
+	public Object onMatch(MatchedText match, Scanner scanner) throws Exception {
+		Object keywordToken= match.findKeyword(this);
+		return (keywordToken != null)? onKeyword(keywordToken, scanner) : onIdentifier(match, scanner);
+	}
+
+	/** Return the token for a keyword, and perform other actions.
+	 * <p>The default action performs the rule's state transition, if any, and
+	 * returns the keyword's token.
+	 *
+	 * @param keywordToken Object The token listed for the keyword
+	 * @param scanner Scanner The scanner calling this method
+	 * @return Object The token to pass to the parser, or EMIT_NOTHING
+	 * @throws Exception for convenience to the user overriding this method
+	 */
+	public Object onKeyword(Object keywordToken, Scanner scanner) throws Exception {
+		if (hasStateTransition())
+			scanner.stateTrans(getStateTransition());
+		return keywordToken;
+	}
+
+	/** Return the token for an identifier which isn't a keyword, and perform other actions.
+	 * <p>The default action is that of a plain ScanRule: perform the state
+	 * transition, if any, and return the identifier token from the
+	 * constructor, or the matched text for EMIT_MATCH.
+	 *
+	 * @param match MatchedText The identifier
+	 * @param scanner Scanner The scanner calling this method
+	 * @return Object The token to pass to the parser, or EMIT_NOTHING
+	 * @throws Exception for convenience to the user overriding this method
+	 */
+	public Object onIdentifier(MatchedText match, Scanner scanner) throws Exception {
+		if (hasStateTransition())
+			scanner.stateTrans(getStateTransition());
+		return (token == EMIT_MATCH)? match.toString() : token;
+	}
+}
@@ -19,6 +19,10 @@ import java.util.*;
  * and then looking up the integers in the table would take longer than just
  * mapping them directly to actions and gotos.
  *
+ * <p>That is only true for a single lookup, though.  The parser itself runs
+ * on a PackedLR1_Table compiled from this one, which maps each token to an
+ * integer once and then uses plain arrays for all the actions and gotos.
+ *
  * <p>Another important aspect of this class is its ability to serialize to an
  * array of integers.  This allows a table to be re-used, however the list of
  * rules must still be provided to the constructor, and must be the exact same
@@ -49,7 +53,7 @@ public class LR1_Table {
 	 */
 	public LR1_Table(Grammar g, java.io.PrintStream debug) {
 		this.rules= g.rules;
-		TableBuilder.Tables t= TableBuilder.generate(g.start, g.startFollowSet, g.rules, g.priorities, debug);
+		TableBuilder.Tables t= TableBuilder.generate(g.start, g.startFollowSet, g.rules, g.priorities, g.tableType, debug);
 		if (t.conflicts.length > 0) {
 			StringBuffer conflictList= new StringBuffer();
 			conflictList.append("Grammar has conflicts:\n");
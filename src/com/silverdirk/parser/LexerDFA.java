@@ -0,0 +1,957 @@
+package com.silverdirk.parser;
+
+import java.util.*;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Project: Dynamic LR(1) Parsing Library</p>
+ * <p>Title: Lexer DFA</p>
+ * <p>Description: A single DFA that matches all the regular scan rules of a ScanRuleSet at once</p>
+ * <p>Copyright: Copyright (c) 2007</p>
+ *
+ * <p>This is the "regex engine which processes multiple patterns in parallel"
+ * that Scanner.java used to wish for.  Each rule's pattern is parsed, and if
+ * it only uses regular features (literals, character classes, groups,
+ * alternation, and greedy or lazy quantifiers) it is compiled into one NFA
+ * together with the other regular rules.  The NFA is then turned into a DFA
+ * and minimized, and its transitions are indexed by character equivalence
+ * class rather than by character.
+ *
+ * <p>The ScanRuleSet used to match with one big java.util.regex alternation
+ * "(a)|(b)|(c)", which picks the first rule that matches, using the first
+ * match that the backtracking search finds for that rule.  The DFA keeps
+ * exactly those semantics: its states are ordered lists of NFA states (in
+ * the order the backtracking search would try them) and everything after
+ * a completed match is dropped, as described in Russ Cox's articles on
+ * RE2.  So the rule and length reported by the DFA are always the same as
+ * what java.util.regex would report, just found in one pass with no
+ * backtracking.
+ *
+ * <p>Rules using anything else (anchors, lookaround, back references,
+ * possessive quantifiers, flags, unicode properties...) are left out of the
+ * DFA, and ScanRuleSet matches those with their own Pattern.  Input
+ * containing surrogate pairs also falls back to java.util.regex, since it
+ * matches by code point and the DFA works on chars.
+ *
+ * <p>A DFA can also be built to run directly on UTF-8 bytes.  Each character
+ * set is then split into the sequences of byte ranges which encode its code
+ * points (as RE2 and Rust's utf8-ranges do), so the patterns match exactly
+ * the same text they would if it were decoded first.  Sets are kept over the
+ * whole code point range for this, so that a negated class or '.' matches
+ * a 4-byte sequence just as java.util.regex matches a surrogate pair.
+ * Malformed UTF-8 isn't matched by any set.
+ *
+ * @author Michael Conrad
+ * @version $Revision$
+ */
+final class LexerDFA {
+	int startState;
+	int classCount;
+	int[] trans;      // state*classCount+class -> next state, or -1
+	int[] accept;     // state -> rule matched on reaching the state, or -1
+	boolean[] live;   // state -> whether any char leads to another state
+	int[] asciiClass; // class of each char below 128
+	char[] rangeStart;// classes of chars 128 and up, as sorted ranges
+	int[] rangeClass;
+	int[] byteClass;  // for a byte DFA, the class of each byte
+	boolean[] regular;// which rules are handled by the DFA
+
+	static final long
+		NO_MATCH= -1,
+		BAIL= -2,
+		NEED_MORE= -3;
+	static final int
+		MAX_DFA_STATES= 10000,
+		MAX_NFA_STATES= 100000,
+		MAX_REPEAT= 1000,
+		INF= -1;
+
+	/** Build a DFA for the regular subset of the patterns.
+	 *
+	 * @param patterns String[] The regex of each rule, in priority order
+	 * @return LexerDFA The DFA, or null if none of the patterns are regular or the DFA would be too large
+	 */
+	static LexerDFA build(String[] patterns) {
+		try {
+			return new Builder(patterns, false).build();
+		}
+		catch (Unsupported ex) {
+			return null;
+		}
+	}
+
+	/** Build a DFA which matches the patterns against UTF-8 bytes.
+	 * <p>The byte DFA has no fallback, so it is only built if every pattern
+	 * is regular.
+	 *
+	 * @param patterns String[] The regex of each rule, in priority order
+	 * @return LexerDFA The DFA, or null if any pattern isn't regular or the DFA would be too large
+	 */
+	static LexerDFA buildBytes(String[] patterns) {
+		try {
+			LexerDFA result= new Builder(patterns, true).build();
+			if (result != null)
+				for (int i=0; i<patterns.length; i++)
+					if (!result.regular[i])
+						return null;
+			return result;
+		}
+		catch (Unsupported ex) {
+			return null;
+		}
+	}
+
+	/** Get the string a pattern matches, if it only matches one.
+	 *
+	 * @param pattern String A regex
+	 * @return String The literal text of the pattern, or null if it isn't a plain literal
+	 */
+	static String literalOf(String pattern) {
+		Node n;
+		try {
+			n= new RegexParser(pattern).parse();
+		}
+		catch (Unsupported ex) {
+			return null;
+		}
+		StringBuffer sb= new StringBuffer();
+		return appendLiteral(n, sb)? sb.toString() : null;
+	}
+
+	private static boolean appendLiteral(Node n, StringBuffer sb) {
+		if (n.type == Node.CHARS && isSingle(n.set)) {
+			sb.append((char) n.set[0]);
+			return true;
+		}
+		if (n.type != Node.CAT)
+			return false;
+		for (int i=0; i<n.kids.length; i++)
+			if (!appendLiteral(n.kids[i], sb))
+				return false;
+		return true;
+	}
+
+	/** Whether the DFA handles the given rule.
+	 */
+	boolean isRegular(int rule) {
+		return regular[rule];
+	}
+
+	/** Find the rule which matches at 'start', and where the match ends.
+	 * <p>Only rules handled by the DFA are considered.
+	 *
+	 * @return long (rule << 32 | matchEnd), NO_MATCH, or BAIL if the text contains a surrogate the DFA can't handle
+	 */
+	long match(CharSequence text, int start, int end) {
+		return match(text, start, end, false);
+	}
+
+	/** Find the rule which matches at 'start', for text which may continue past 'end'.
+	 * <p>If moreInput is true and the DFA could still extend the match when
+	 * it reaches 'end', this returns NEED_MORE instead of a result.
+	 */
+	long match(CharSequence text, int start, int end, boolean moreInput) {
+		int[] trans= this.trans, accept= this.accept, asciiClass= this.asciiClass;
+		int classes= classCount;
+		int state= startState, rule= -1, matchEnd= start;
+		for (int i=start; i<end; i++) {
+			char ch= text.charAt(i);
+			int cls= ch < 128? asciiClass[ch] : classOf(ch);
+			if (cls < 0)
+				return BAIL;
+			state= trans[state*classes+cls];
+			if (state < 0)
+				break;
+			if (accept[state] >= 0) {
+				rule= accept[state];
+				matchEnd= i+1;
+			}
+		}
+		if (moreInput && state >= 0 && live[state])
+			return NEED_MORE;
+		return rule < 0? NO_MATCH : ((long)rule << 32) | matchEnd;
+	}
+
+	/** Find the rule which matches the UTF-8 bytes at 'start', for a DFA built by buildBytes.
+	 * <p>Indexes are absolute positions in the buffer.
+	 *
+	 * @return long (rule << 32 | matchEnd), or NO_MATCH
+	 */
+	long match(ByteBuffer bytes, int start, int end) {
+		int[] trans= this.trans, accept= this.accept, byteClass= this.byteClass;
+		int classes= classCount;
+		int state= startState, rule= -1, matchEnd= start;
+		for (int i=start; i<end; i++) {
+			state= trans[state*classes+byteClass[bytes.get(i) & 0xFF]];
+			if (state < 0)
+				break;
+			if (accept[state] >= 0) {
+				rule= accept[state];
+				matchEnd= i+1;
+			}
+		}
+		return rule < 0? NO_MATCH : ((long)rule << 32) | matchEnd;
+	}
+
+	final int classOf(char ch) {
+		int low= 0, high= rangeStart.length-1;
+		while (low < high) {
+			int mid= (low+high+1) >>> 1;
+			if (rangeStart[mid] <= ch)
+				low= mid;
+			else
+				high= mid-1;
+		}
+		return rangeClass[low];
+	}
+
+	static final class Unsupported extends Exception {
+		Unsupported() {
+			super(null, null);
+		}
+	}
+	static final Unsupported UNSUPPORTED= new Unsupported();
+
+	/** A node of a parsed regex.
+	 */
+	static final class Node {
+		static final int CHARS= 0, CAT= 1, ALT= 2, REPEAT= 3;
+		int type;
+		int[] set;
+		Node[] kids;
+		int min, max;
+		boolean greedy;
+
+		Node(int type, Node[] kids) {
+			this.type= type;
+			this.kids= kids;
+		}
+
+		Node(int[] set) {
+			this.type= CHARS;
+			this.set= set;
+		}
+
+		boolean nullable() {
+			switch (type) {
+			case CHARS: return false;
+			case CAT:
+				for (int i=0; i<kids.length; i++)
+					if (!kids[i].nullable())
+						return false;
+				return true;
+			case ALT:
+				for (int i=0; i<kids.length; i++)
+					if (kids[i].nullable())
+						return true;
+				return false;
+			default:
+				return min == 0 || kids[0].nullable();
+			}
+		}
+	}
+
+	/** Parser for the regular subset of java.util.regex syntax.
+	 * <p>The pattern has already been accepted by Pattern.compile, so this only
+	 * needs to recognize what it supports, and throw Unsupported for
+	 * everything else.
+	 */
+	static final class RegexParser {
+		String re;
+		int pos= 0;
+
+		RegexParser(String re) {
+			this.re= re;
+		}
+
+		Node parse() throws Unsupported {
+			Node result= parseAlt();
+			if (pos < re.length())
+				throw UNSUPPORTED;
+			return result;
+		}
+
+		Node parseAlt() throws Unsupported {
+			ArrayList alts= new ArrayList();
+			alts.add(parseConcat());
+			while (pos < re.length() && re.charAt(pos) == '|') {
+				pos++;
+				alts.add(parseConcat());
+			}
+			return alts.size() == 1? (Node) alts.get(0) : new Node(Node.ALT, (Node[]) alts.toArray(new Node[alts.size()]));
+		}
+
+		Node parseConcat() throws Unsupported {
+			ArrayList items= new ArrayList();
+			while (pos < re.length() && re.charAt(pos) != '|' && re.charAt(pos) != ')')
+				items.add(parseRepeat());
+			return items.size() == 1? (Node) items.get(0) : new Node(Node.CAT, (Node[]) items.toArray(new Node[items.size()]));
+		}
+
+		Node parseRepeat() throws Unsupported {
+			Node atom= parseAtom();
+			if (pos >= re.length())
+				return atom;
+			int min, max;
+			switch (re.charAt(pos)) {
+			case '*': min= 0; max= INF; pos++; break;
+			case '+': min= 1; max= INF; pos++; break;
+			case '?': min= 0; max= 1; pos++; break;
+			case '{':
+				pos++;
+				min= max= parseInt();
+				if (pos < re.length() && re.charAt(pos) == ',') {
+					pos++;
+					max= (pos < re.length() && re.charAt(pos) == '}')? INF : parseInt();
+				}
+				if (pos >= re.length() || re.charAt(pos) != '}')
+					throw UNSUPPORTED;
+				pos++;
+				if (min > MAX_REPEAT || max > MAX_REPEAT || (max != INF && max < min))
+					throw UNSUPPORTED;
+				break;
+			default:
+				return atom;
+			}
+			boolean greedy= true;
+			if (pos < re.length() && re.charAt(pos) == '?') {
+				greedy= false;
+				pos++;
+			}
+			else if (pos < re.length() && re.charAt(pos) == '+')
+				throw UNSUPPORTED; // possessive
+			if (pos < re.length() && "*+?{".indexOf(re.charAt(pos)) >= 0)
+				throw UNSUPPORTED;
+			// the backtracking engine has its own rules for loops over empty matches
+			if ((max == INF || max > 1) && atom.nullable())
+				throw UNSUPPORTED;
+			Node result= new Node(Node.REPEAT, new Node[] { atom });
+			result.min= min;
+			result.max= max;
+			result.greedy= greedy;
+			return result;
+		}
+
+		int parseInt() throws Unsupported {
+			int start= pos;
+			while (pos < re.length() && re.charAt(pos) >= '0' && re.charAt(pos) <= '9' && pos-start < 6)
+				pos++;
+			if (pos == start || (pos < re.length() && re.charAt(pos) >= '0' && re.charAt(pos) <= '9'))
+				throw UNSUPPORTED;
+			return Integer.parseInt(re.substring(start, pos));
+		}
+
+		Node parseAtom() throws Unsupported {
+			char ch= re.charAt(pos++);
+			switch (ch) {
+			case '(':
+				if (re.startsWith("?:", pos))
+					pos+= 2;
+				else if (re.startsWith("?<", pos) && pos+2 < re.length() && Character.isLetter(re.charAt(pos+2))) {
+					int close= re.indexOf('>', pos);
+					if (close < 0)
+						throw UNSUPPORTED;
+					pos= close+1;
+				}
+				else if (re.startsWith("?", pos))
+					throw UNSUPPORTED;
+				Node result= parseAlt();
+				if (pos >= re.length() || re.charAt(pos) != ')')
+					throw UNSUPPORTED;
+				pos++;
+				return result;
+			case '[':
+				return new Node(parseClass());
+			case '.':
+				return new Node(DOT);
+			case '\\':
+				return new Node(parseEscape());
+			case '^': case '$': case ')': case '*': case '+': case '?': case '{':
+				throw UNSUPPORTED;
+			default:
+				return new Node(single(ch));
+			}
+		}
+
+		int[] parseClass() throws Unsupported {
+			boolean negate= false;
+			if (pos < re.length() && re.charAt(pos) == '^') {
+				negate= true;
+				pos++;
+			}
+			if (pos < re.length() && re.charAt(pos) == ']')
+				throw UNSUPPORTED;
+			int[] result= EMPTY;
+			while (true) {
+				if (pos >= re.length())
+					throw UNSUPPORTED;
+				char ch= re.charAt(pos);
+				if (ch == ']') {
+					pos++;
+					break;
+				}
+				if (ch == '[' || (ch == '&' && re.startsWith("&&", pos)))
+					throw UNSUPPORTED; // unions and intersections
+				pos++;
+				int[] item= (ch == '\\')? parseEscape() : single(ch);
+				if (isSingle(item) && pos+1 < re.length() && re.charAt(pos) == '-' && re.charAt(pos+1) != ']') {
+					pos++;
+					char hiCh= re.charAt(pos++);
+					int[] hi= (hiCh == '\\')? parseEscape() : (hiCh == '[')? null : single(hiCh);
+					if (hi == null || !isSingle(hi) || hi[0] < item[0])
+						throw UNSUPPORTED;
+					item= new int[] { item[0], hi[0] };
+				}
+				result= union(result, item);
+			}
+			return negate? negate(result) : result;
+		}
+
+		int[] parseEscape() throws Unsupported {
+			if (pos >= re.length())
+				throw UNSUPPORTED;
+			char ch= re.charAt(pos++);
+			switch (ch) {
+			case 'd': return DIGIT;
+			case 'D': return negate(DIGIT);
+			case 'w': return WORD;
+			case 'W': return negate(WORD);
+			case 's': return SPACE;
+			case 'S': return negate(SPACE);
+			case 't': return single('\t');
+			case 'n': return single('\n');
+			case 'r': return single('\r');
+			case 'f': return single('\f');
+			case 'a': return single('\u0007');
+			case 'e': return single('\u001B');
+			case '0': {
+				int val= octalDigit();
+				if (val < 0)
+					throw UNSUPPORTED;
+				int d= octalDigit();
+				if (d >= 0) {
+					int d3= (val <= 3)? octalDigit() : -1;
+					val= (d3 >= 0)? val*64+d*8+d3 : val*8+d;
+				}
+				return single((char) val);
+			}
+			case 'x':
+				return single((char) hex(2));
+			case 'u':
+				return single((char) hex(4));
+			default:
+				if (Character.isLetterOrDigit(ch))
+					throw UNSUPPORTED; // back references, anchors, properties, quoting...
+				return single(ch);
+			}
+		}
+
+		int octalDigit() {
+			if (pos < re.length() && re.charAt(pos) >= '0' && re.charAt(pos) <= '7')
+				return re.charAt(pos++) - '0';
+			return -1;
+		}
+
+		int hex(int digits) throws Unsupported {
+			if (pos+digits > re.length())
+				throw UNSUPPORTED;
+			int val= 0;
+			for (int i=0; i<digits; i++) {
+				int d= Character.digit(re.charAt(pos++), 16);
+				if (d < 0)
+					throw UNSUPPORTED;
+				val= val*16+d;
+			}
+			return val;
+		}
+
+		int[] single(char ch) throws Unsupported {
+			if (ch >= 0xD800 && ch < 0xE000)
+				throw UNSUPPORTED;
+			return new int[] { ch, ch };
+		}
+	}
+
+	// Character sets are sorted arrays of inclusive ranges of code points: { lo, hi, lo, hi, ... }
+	static final int[]
+		EMPTY= new int[0],
+		DIGIT= new int[] { '0', '9' },
+		WORD= new int[] { '0', '9', 'A', 'Z', '_', '_', 'a', 'z' },
+		SPACE= new int[] { '\t', '\r', ' ', ' ' },
+		DOT= negate(new int[] { '\n', '\n', '\r', '\r', 0x85, 0x85, 0x2028, 0x2029 }),
+		SURROGATES= new int[] { 0xD800, 0xDFFF };
+	static final int MAX_CODE_POINT= 0x10FFFF;
+
+	static boolean isSingle(int[] set) {
+		return set.length == 2 && set[0] == set[1];
+	}
+
+	static int[] negate(int[] set) {
+		int[] result= new int[set.length+2];
+		int n= 0, next= 0;
+		for (int i=0; i<set.length; i+= 2) {
+			if (set[i] > next) {
+				result[n++]= next;
+				result[n++]= set[i]-1;
+			}
+			next= set[i+1]+1;
+		}
+		if (next <= MAX_CODE_POINT) {
+			result[n++]= next;
+			result[n++]= MAX_CODE_POINT;
+		}
+		return n == result.length? result : copyOf(result, n);
+	}
+
+	static int[] union(int[] a, int[] b) {
+		int[] result= new int[a.length+b.length];
+		int n= 0, ia= 0, ib= 0;
+		while (ia < a.length || ib < b.length) {
+			int lo, hi;
+			if (ib >= b.length || (ia < a.length && a[ia] <= b[ib])) {
+				lo= a[ia]; hi= a[ia+1]; ia+= 2;
+			}
+			else {
+				lo= b[ib]; hi= b[ib+1]; ib+= 2;
+			}
+			if (n > 0 && lo <= result[n-1]+1)
+				result[n-1]= Math.max(result[n-1], hi);
+			else {
+				result[n++]= lo;
+				result[n++]= hi;
+			}
+		}
+		return n == result.length? result : copyOf(result, n);
+	}
+
+	static int[] intersect(int[] a, int[] b) {
+		return negate(union(negate(a), negate(b)));
+	}
+
+	static boolean contains(int[] set, int ch) {
+		for (int i=0; i<set.length && set[i] <= ch; i+= 2)
+			if (ch <= set[i+1])
+				return true;
+		return false;
+	}
+
+	static int[] copyOf(int[] array, int len) {
+		int[] result= new int[len];
+		System.arraycopy(array, 0, result, 0, Math.min(len, array.length));
+		return result;
+	}
+
+	/** Split the code points [lo, hi] into UTF-8 byte range sequences.
+	 * <p>Each sequence is added to 'out' as { lo1, hi1, lo2, hi2, ... }, one
+	 * range per byte, such that the encodings of the code points are exactly
+	 * the byte strings matched by the sequences.  The sequences never overlap.
+	 */
+	static void utf8Ranges(int lo, int hi, ArrayList out) {
+		int[] limits= { 0x7F, 0x7FF, 0xFFFF };
+		for (int i=0; i<limits.length; i++)
+			if (lo <= limits[i] && hi > limits[i]) {
+				utf8Ranges(lo, limits[i], out);
+				utf8Ranges(limits[i]+1, hi, out);
+				return;
+			}
+		int len= utf8Length(lo);
+		// split until every byte after the first differing one covers its full range
+		for (int i=1; i<len; i++) {
+			int m= (1 << 6*i) - 1;
+			if ((lo & ~m) != (hi & ~m)) {
+				if ((lo & m) != 0) {
+					utf8Ranges(lo, lo | m, out);
+					utf8Ranges((lo | m) + 1, hi, out);
+					return;
+				}
+				if ((hi & m) != m) {
+					utf8Ranges(lo, (hi & ~m) - 1, out);
+					utf8Ranges(hi & ~m, hi, out);
+					return;
+				}
+			}
+		}
+		byte[] loBytes= utf8Encode(lo), hiBytes= utf8Encode(hi);
+		int[] seq= new int[len*2];
+		for (int i=0; i<len; i++) {
+			seq[i*2]= loBytes[i] & 0xFF;
+			seq[i*2+1]= hiBytes[i] & 0xFF;
+		}
+		out.add(seq);
+	}
+
+	static int utf8Length(int cpt) {
+		return cpt < 0x80? 1 : cpt < 0x800? 2 : cpt < 0x10000? 3 : 4;
+	}
+
+	static byte[] utf8Encode(int cpt) {
+		switch (utf8Length(cpt)) {
+		case 1: return new byte[] { (byte) cpt };
+		case 2: return new byte[] { (byte)(0xC0 | cpt >> 6), (byte)(0x80 | cpt & 0x3F) };
+		case 3: return new byte[] { (byte)(0xE0 | cpt >> 12), (byte)(0x80 | cpt >> 6 & 0x3F), (byte)(0x80 | cpt & 0x3F) };
+		default: return new byte[] { (byte)(0xF0 | cpt >> 18), (byte)(0x80 | cpt >> 12 & 0x3F), (byte)(0x80 | cpt >> 6 & 0x3F), (byte)(0x80 | cpt & 0x3F) };
+		}
+	}
+
+	/** Builds the NFA, then the DFA, then minimizes it.
+	 */
+	static final class Builder {
+		static final int CHAR= 0, SPLIT= 1, MATCH= 2;
+		String[] patterns;
+		boolean[] regular;
+		boolean bytes;    // whether the NFA reads UTF-8 bytes rather than chars
+		// NFA
+		int[] type= new int[64], next1= new int[64], next2= new int[64], arg= new int[64];
+		int nfaCount= 0;
+		ArrayList sets= new ArrayList();
+		HashMap setIds= new HashMap();
+		// equivalence classes
+		int classCount;
+		boolean[][] setHasClass;
+		int[] asciiClass;
+		char[] rangeStart;
+		int[] rangeClass;
+		int[] byteClass;
+		// subset construction
+		int[] mark, stack, list;
+		int gen= 0, listLen;
+		boolean listMatched;
+
+		Builder(String[] patterns, boolean bytes) {
+			this.patterns= patterns;
+			this.bytes= bytes;
+			regular= new boolean[patterns.length];
+		}
+
+		LexerDFA build() throws Unsupported {
+			int root= -1;
+			for (int i=patterns.length-1; i >= 0; i--) {
+				int savedCount= nfaCount, savedSets= sets.size();
+				try {
+					Node ast= new RegexParser(patterns[i]).parse();
+					int start= compile(ast, add(MATCH, -1, -1, i));
+					root= (root < 0)? start : add(SPLIT, start, root, 0);
+					regular[i]= true;
+				}
+				catch (Unsupported ex) {
+					nfaCount= savedCount;
+					while (sets.size() > savedSets)
+						setIds.remove(new PackedLR1_Table.RowKey((int[]) sets.remove(sets.size()-1)));
+				}
+			}
+			if (root < 0)
+				return null;
+			buildClasses();
+			return buildDFA(root);
+		}
+
+		int add(int t, int n1, int n2, int a) throws Unsupported {
+			if (nfaCount == type.length) {
+				if (nfaCount >= MAX_NFA_STATES)
+					throw UNSUPPORTED;
+				type= copyOf(type, nfaCount*2);
+				next1= copyOf(next1, nfaCount*2);
+				next2= copyOf(next2, nfaCount*2);
+				arg= copyOf(arg, nfaCount*2);
+			}
+			type[nfaCount]= t;
+			next1[nfaCount]= n1;
+			next2[nfaCount]= n2;
+			arg[nfaCount]= a;
+			return nfaCount++;
+		}
+
+		/** Compile the node so that it continues to 'next', and return its start state.
+		 * <p>Splits list the path that the backtracking search would try first as next1.
+		 */
+		int compile(Node n, int next) throws Unsupported {
+			switch (n.type) {
+			case Node.CHARS:
+				return bytes? compileUtf8(n.set, next) : add(CHAR, next, -1, setId(n.set));
+			case Node.CAT:
+				for (int i=n.kids.length-1; i >= 0; i--)
+					next= compile(n.kids[i], next);
+				return next;
+			case Node.ALT: {
+				int result= compile(n.kids[n.kids.length-1], next);
+				for (int i=n.kids.length-2; i >= 0; i--)
+					result= add(SPLIT, compile(n.kids[i], next), result, 0);
+				return result;
+			}
+			default: {
+				Node kid= n.kids[0];
+				int tail;
+				if (n.max == INF) {
+					int loop= add(SPLIT, -1, -1, 0);
+					int body= compile(kid, loop);
+					next1[loop]= n.greedy? body : next;
+					next2[loop]= n.greedy? next : body;
+					tail= loop;
+				}
+				else {
+					tail= next;
+					for (int i=n.min; i < n.max; i++) {
+						int body= compile(kid, tail);
+						tail= n.greedy? add(SPLIT, body, next, 0) : add(SPLIT, next, body, 0);
+					}
+				}
+				for (int i=0; i < n.min; i++)
+					tail= compile(kid, tail);
+				return tail;
+			}
+			}
+		}
+
+		/** Compile a code point set as an alternation of UTF-8 byte range sequences.
+		 */
+		int compileUtf8(int[] set, int next) throws Unsupported {
+			set= intersect(set, negate(SURROGATES));
+			ArrayList seqs= new ArrayList();
+			for (int i=0; i<set.length; i+= 2)
+				utf8Ranges(set[i], set[i+1], seqs);
+			if (seqs.isEmpty())
+				return add(CHAR, next, -1, setId(EMPTY));
+			int result= -1;
+			for (int i=seqs.size()-1; i >= 0; i--) {
+				int[] seq= (int[]) seqs.get(i);
+				int start= next;
+				for (int j=seq.length-2; j >= 0; j-= 2)
+					start= add(CHAR, start, -1, setId(new int[] { seq[j], seq[j+1] }));
+				result= (result < 0)? start : add(SPLIT, start, result, 0);
+			}
+			return result;
+		}
+
+		int setId(int[] set) {
+			PackedLR1_Table.RowKey key= new PackedLR1_Table.RowKey(set);
+			Integer id= (Integer) setIds.get(key);
+			if (id == null) {
+				id= new Integer(sets.size());
+				sets.add(set);
+				setIds.put(key, id);
+			}
+			return id.intValue();
+		}
+
+		/** Split the chars (or bytes) into classes that no character set distinguishes between.
+		 * <p>Surrogates get class -1, which makes a char DFA give up.
+		 */
+		void buildClasses() {
+			int limit= bytes? 0x100 : 0x10000;
+			TreeSet points= new TreeSet();
+			points.add(new Integer(0));
+			points.add(new Integer(limit));
+			if (!bytes) {
+				points.add(new Integer(128));
+				points.add(new Integer(0xD800));
+				points.add(new Integer(0xE000));
+			}
+			for (int s=0; s<sets.size(); s++) {
+				int[] set= (int[]) sets.get(s);
+				for (int i=0; i<set.length; i+= 2) {
+					points.add(new Integer(set[i]));
+					points.add(new Integer(set[i+1]+1));
+				}
+			}
+			int[] starts= new int[points.size()];
+			int n= 0;
+			for (Iterator i= points.iterator(); i.hasNext();) {
+				int point= ((Integer) i.next()).intValue();
+				if (point <= limit)
+					starts[n++]= point;
+			}
+			int intervals= n-1;
+			int[] intervalClass= new int[intervals];
+			HashMap classIds= new HashMap();
+			ArrayList signatures= new ArrayList();
+			for (int k=0; k<intervals; k++) {
+				if (!bytes && starts[k] >= 0xD800 && starts[k] < 0xE000) {
+					intervalClass[k]= -1;
+					continue;
+				}
+				BitSet sig= new BitSet();
+				for (int s=0; s<sets.size(); s++)
+					if (contains((int[]) sets.get(s), starts[k]))
+						sig.set(s);
+				Integer id= (Integer) classIds.get(sig);
+				if (id == null) {
+					id= new Integer(signatures.size());
+					signatures.add(sig);
+					classIds.put(sig, id);
+				}
+				intervalClass[k]= id.intValue();
+			}
+			classCount= signatures.size();
+			setHasClass= new boolean[sets.size()][classCount];
+			for (int c=0; c<classCount; c++) {
+				BitSet sig= (BitSet) signatures.get(c);
+				for (int s= sig.nextSetBit(0); s >= 0; s= sig.nextSetBit(s+1))
+					setHasClass[s][c]= true;
+			}
+			if (bytes) {
+				byteClass= new int[0x100];
+				for (int k=0; k<intervals; k++)
+					for (int b= starts[k]; b < starts[k+1]; b++)
+						byteClass[b]= intervalClass[k];
+				return;
+			}
+			asciiClass= new int[128];
+			ArrayList rStart= new ArrayList(), rClass= new ArrayList();
+			for (int k=0; k<intervals; k++) {
+				if (starts[k] < 128) {
+					for (int ch= starts[k]; ch < starts[k+1]; ch++)
+						asciiClass[ch]= intervalClass[k];
+				}
+				else if (rClass.isEmpty() || ((Integer) rClass.get(rClass.size()-1)).intValue() != intervalClass[k]) {
+					rStart.add(new Integer(starts[k]));
+					rClass.add(new Integer(intervalClass[k]));
+				}
+			}
+			rangeStart= new char[rStart.size()];
+			rangeClass= new int[rClass.size()];
+			for (int i=0; i<rangeStart.length; i++) {
+				rangeStart[i]= (char) ((Integer) rStart.get(i)).intValue();
+				rangeClass[i]= ((Integer) rClass.get(i)).intValue();
+			}
+		}
+
+		/** Add the states reachable from 'state' to the list, in priority order.
+		 * <p>Once a MATCH is reached nothing more is added, since the
+		 * backtracking search would never try the remaining paths.
+		 */
+		void addClosure(int state) {
+			int sp= 0;
+			stack[sp++]= state;
+			while (sp > 0 && !listMatched) {
+				int s= stack[--sp];
+				if (mark[s] == gen)
+					continue;
+				mark[s]= gen;
+				switch (type[s]) {
+				case SPLIT:
+					stack[sp++]= next2[s];
+					stack[sp++]= next1[s];
+					break;
+				case CHAR:
+					list[listLen++]= s;
+					break;
+				case MATCH:
+					list[listLen++]= -1-arg[s];
+					listMatched= true;
+					break;
+				}
+			}
+		}
+
+		LexerDFA buildDFA(int root) throws Unsupported {
+			mark= new int[nfaCount];
+			stack= new int[nfaCount*2+1];
+			list= new int[nfaCount+1];
+			ArrayList dfaStates= new ArrayList(), dfaTrans= new ArrayList();
+			HashMap dfaIds= new HashMap();
+			gen++;
+			listLen= 0;
+			listMatched= false;
+			addClosure(root);
+			addDFAState(dfaStates, dfaIds);
+			for (int d=0; d<dfaStates.size(); d++) {
+				int[] nfaStates= (int[]) dfaStates.get(d);
+				int[] row= new int[classCount];
+				for (int c=0; c<classCount; c++) {
+					gen++;
+					listLen= 0;
+					listMatched= false;
+					for (int i=0; i<nfaStates.length && !listMatched; i++) {
+						int s= nfaStates[i];
+						if (s >= 0 && setHasClass[arg[s]][c])
+							addClosure(next1[s]);
+					}
+					row[c]= (listLen == 0)? -1 : addDFAState(dfaStates, dfaIds);
+				}
+				dfaTrans.add(row);
+			}
+			// Minimize, treating the DFA as a machine whose output is the matched rule
+			int n= dfaStates.size();
+			int[] accept= new int[n];
+			for (int d=0; d<n; d++) {
+				int[] nfaStates= (int[]) dfaStates.get(d);
+				int last= nfaStates[nfaStates.length-1];
+				accept[d]= (last < 0)? -1-last : -1;
+			}
+			int[] block= new int[n];
+			int blockCount= partition(accept, block, n);
+			while (true) {
+				HashMap sigIds= new HashMap();
+				int[] newBlock= new int[n];
+				for (int d=0; d<n; d++) {
+					int[] row= (int[]) dfaTrans.get(d);
+					int[] sig= new int[classCount+1];
+					sig[0]= block[d];
+					for (int c=0; c<classCount; c++)
+						sig[c+1]= (row[c] < 0)? -1 : block[row[c]];
+					PackedLR1_Table.RowKey key= new PackedLR1_Table.RowKey(sig);
+					Integer id= (Integer) sigIds.get(key);
+					if (id == null) {
+						id= new Integer(sigIds.size());
+						sigIds.put(key, id);
+					}
+					newBlock[d]= id.intValue();
+				}
+				block= newBlock;
+				if (sigIds.size() == blockCount)
+					break;
+				blockCount= sigIds.size();
+			}
+			LexerDFA result= new LexerDFA();
+			result.classCount= classCount;
+			result.trans= new int[blockCount*classCount];
+			result.accept= new int[blockCount];
+			result.live= new boolean[blockCount];
+			for (int d=0; d<n; d++) {
+				int[] row= (int[]) dfaTrans.get(d);
+				int b= block[d];
+				result.accept[b]= accept[d];
+				for (int c=0; c<classCount; c++) {
+					result.trans[b*classCount+c]= (row[c] < 0)? -1 : block[row[c]];
+					if (row[c] >= 0)
+						result.live[b]= true;
+				}
+			}
+			result.startState= block[0];
+			result.asciiClass= asciiClass;
+			result.rangeStart= rangeStart;
+			result.rangeClass= rangeClass;
+			result.byteClass= byteClass;
+			result.regular= regular;
+			return result;
+		}
+
+		int addDFAState(ArrayList dfaStates, HashMap dfaIds) throws Unsupported {
+			int[] nfaStates= copyOf(list, listLen);
+			PackedLR1_Table.RowKey key= new PackedLR1_Table.RowKey(nfaStates);
+			Integer id= (Integer) dfaIds.get(key);
+			if (id == null) {
+				if (dfaStates.size() >= MAX_DFA_STATES)
+					throw UNSUPPORTED;
+				id= new Integer(dfaStates.size());
+				dfaStates.add(nfaStates);
+				dfaIds.put(key, id);
+			}
+			return id.intValue();
+		}
+
+		static int partition(int[] labels, int[] block, int n) {
+			HashMap ids= new HashMap();
+			for (int d=0; d<n; d++) {
+				Integer label= new Integer(labels[d]);
+				Integer id= (Integer) ids.get(label);
+				if (id == null) {
+					id= new Integer(ids.size());
+					ids.put(label, id);
+				}
+				block[d]= id.intValue();
+			}
+			return ids.size();
+		}
+	}
+}
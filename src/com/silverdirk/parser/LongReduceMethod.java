@@ -0,0 +1,27 @@
+package com.silverdirk.parser;
+
+/**
+ * <p>Project: Dynamic LR(1) Parsing Library</p>
+ * <p>Title: Long Reduce Method</p>
+ * <p>Description: A reduce method whose result is an unboxed long</p>
+ * <p>Copyright: Copyright (c) 2007</p>
+ *
+ * <p>The parser keeps the result of reduceLong on its primitive value stack,
+ * so a chain of LongReduceMethods reading each other's results with
+ * ReduceArgs.getLong never boxes a value.  Anything that reads the value as
+ * an Object (ReduceArgs.get, or a plain ReduceMethod) gets a Long.
+ *
+ * <p>Extend ReduceMethod.LongHandler rather than implementing this directly.
+ *
+ * @author Michael Conrad
+ * @version $Revision$
+ */
+public interface LongReduceMethod extends StackReduceMethod {
+	/** Reduce the symbols to a long.
+	 *
+	 * @param rule ParseRule The rule being reduced
+	 * @param args ReduceArgs A view of the symbol values, valid only during this call
+	 * @return long The value of the rule's target
+	 */
+	public long reduceLong(ParseRule rule, ReduceArgs args);
+}
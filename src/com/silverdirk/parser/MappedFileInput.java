@@ -0,0 +1,289 @@
+package com.silverdirk.parser;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * <p>Project: Dynamic LR(1) Parsing Library</p>
+ * <p>Title: Mapped File Input</p>
+ * <p>Description: A CharSequence that reads a memory-mapped ASCII or UTF-8 file</p>
+ * <p>Copyright: Copyright (c) 2007</p>
+ *
+ * <p>This lets a Scanner read a file directly out of the OS page cache
+ * rather than from a copy of the file on the heap.  The file is mapped
+ * read-only (in segments of up to 1 GB, since a single mapping is limited
+ * to 2 GB) and characters are decoded from the bytes as they are asked for.
+ *
+ * <p>When the object is created, one pass is made over the bytes to count
+ * the characters and check whether the file is pure ASCII.  ASCII files are
+ * then read one byte per char with no further work.  For UTF-8 files, the
+ * byte offset of every 4096th char is recorded during that pass, and a
+ * cursor follows the most recent charAt, so the scanner's mostly-sequential
+ * access is cheap.  Malformed bytes decode to U+FFFD.
+ *
+ * <p>A CharSequence can't be longer than Integer.MAX_VALUE chars, so the
+ * CharSequence methods throw IllegalStateException for larger files.  Any
+ * size of file can be scanned by giving newReader() to the streaming
+ * Scanner constructor instead.
+ *
+ * <p>The cursor makes this class unsafe for use by multiple threads; create
+ * one per Scanner.
+ *
+ * @author Michael Conrad
+ * @version $Revision$
+ */
+public class MappedFileInput implements CharSequence {
+	ByteBuffer[] segments;
+	int segmentBits;
+	long byteLength;
+	long charLength;
+	boolean ascii;
+	// for UTF-8: (byteOffset << 1 | secondHalf) of every (1 << CHECKPOINT_BITS)th char
+	long[] checkpoints;
+	// the char most recently located, as in checkpoints
+	int cursorChar;
+	long cursorByte;
+	boolean cursorSecondHalf;
+
+	static final int
+		DEFAULT_SEGMENT_BITS= 30,
+		CHECKPOINT_BITS= 12;
+
+	/** Map a file.
+	 * <p>The file is closed again once it is mapped; the mapping stays valid.
+	 *
+	 * @param file File The file to read
+	 * @throws IOException if the file can't be opened or mapped
+	 */
+	public MappedFileInput(File file) throws IOException {
+		RandomAccessFile raf= new RandomAccessFile(file, "r");
+		try {
+			init(raf.getChannel(), DEFAULT_SEGMENT_BITS);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/** Map the contents of an open channel.
+	 *
+	 * @param channel FileChannel The file to read
+	 * @throws IOException if the file can't be mapped
+	 */
+	public MappedFileInput(FileChannel channel) throws IOException {
+		init(channel, DEFAULT_SEGMENT_BITS);
+	}
+
+	MappedFileInput(FileChannel channel, int segmentBits) throws IOException {
+		init(channel, segmentBits);
+	}
+
+	private void init(FileChannel channel, int segmentBits) throws IOException {
+		this.segmentBits= segmentBits;
+		byteLength= channel.size();
+		long segSize= 1L << segmentBits;
+		segments= new ByteBuffer[(int)((byteLength + segSize - 1) >>> segmentBits)];
+		for (int i=0; i<segments.length; i++) {
+			long start= (long)i << segmentBits;
+			segments[i]= channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segSize, byteLength-start));
+		}
+		index();
+	}
+
+	/** Count the chars, check for non-ASCII bytes, and record the checkpoints.
+	 */
+	private void index() {
+		long chars= 0;
+		long[] cp= new long[16];
+		int cpCount= 0;
+		int interval= 1 << CHECKPOINT_BITS;
+		ascii= true;
+		for (long b=0; b<byteLength;) {
+			int first= getByte(b);
+			int len, charCount;
+			if (first < 0x80) {
+				len= 1;
+				charCount= 1;
+			}
+			else {
+				ascii= false;
+				long cpt= decode(b);
+				len= (int)(cpt >>> 32);
+				charCount= ((int) cpt >= 0x10000)? 2 : 1;
+			}
+			for (int i=0; i<charCount; i++, chars++)
+				if ((chars & (interval-1)) == 0) {
+					if (cpCount == cp.length) {
+						long[] newCp= new long[cpCount*2];
+						System.arraycopy(cp, 0, newCp, 0, cpCount);
+						cp= newCp;
+					}
+					cp[cpCount++]= (b << 1) | i;
+				}
+			b+= len;
+		}
+		charLength= chars;
+		if (!ascii) {
+			checkpoints= new long[cpCount];
+			System.arraycopy(cp, 0, checkpoints, 0, cpCount);
+			cursorChar= 0;
+			cursorByte= 0;
+			cursorSecondHalf= false;
+		}
+	}
+
+	/** Get the length of the file in bytes.
+	 * @return long The size of the file
+	 */
+	public long byteLength() {
+		return byteLength;
+	}
+
+	/** Get the number of chars the file decodes to.
+	 * <p>Unlike length(), this works for files of any size.
+	 * @return long The number of UTF-16 chars in the file
+	 */
+	public long charLength() {
+		return charLength;
+	}
+
+	/** Whether every byte of the file is ASCII.
+	 * @return boolean True if chars are read directly from bytes
+	 */
+	public boolean isAscii() {
+		return ascii;
+	}
+
+	final int getByte(long offset) {
+		return segments[(int)(offset >>> segmentBits)].get((int)(offset & ((1L << segmentBits)-1))) & 0xFF;
+	}
+
+	/** Decode the code point starting at a byte offset.
+	 * @return long (byteLength << 32 | codePoint)
+	 */
+	final long decode(long offset) {
+		int first= getByte(offset);
+		if (first < 0x80)
+			return (1L << 32) | first;
+		int len, cpt, min;
+		if (first >= 0xC2 && first < 0xE0) { len= 2; cpt= first & 0x1F; min= 0x80; }
+		else if (first >= 0xE0 && first < 0xF0) { len= 3; cpt= first & 0x0F; min= 0x800; }
+		else if (first >= 0xF0 && first < 0xF5) { len= 4; cpt= first & 0x07; min= 0x10000; }
+		else return (1L << 32) | 0xFFFD;
+		if (offset + len > byteLength)
+			return (1L << 32) | 0xFFFD;
+		for (int i=1; i<len; i++) {
+			int next= getByte(offset+i);
+			if ((next & 0xC0) != 0x80)
+				return (1L << 32) | 0xFFFD;
+			cpt= (cpt << 6) | (next & 0x3F);
+		}
+		if (cpt < min || cpt > 0x10FFFF || (cpt >= 0xD800 && cpt < 0xE000))
+			return (1L << 32) | 0xFFFD;
+		return ((long)len << 32) | cpt;
+	}
+
+	public int length() {
+		if (charLength > Integer.MAX_VALUE)
+			throw new IllegalStateException("File is too large for a CharSequence; use newReader()");
+		return (int) charLength;
+	}
+
+	public char charAt(int index) {
+		if (index < 0 || index >= charLength)
+			throw new IndexOutOfBoundsException("Index "+index+" of "+charLength);
+		if (ascii)
+			return (char) getByte(index);
+		seek(index);
+		int cpt= (int) decode(cursorByte);
+		if (cpt < 0x10000)
+			return (char) cpt;
+		return cursorSecondHalf? (char)(0xDC00 + ((cpt - 0x10000) & 0x3FF)) : (char)(0xD800 + ((cpt - 0x10000) >>> 10));
+	}
+
+	/** Move the cursor to the char at 'index'.
+	 */
+	private void seek(int index) {
+		if (index < cursorChar || index - cursorChar > (1 << CHECKPOINT_BITS)) {
+			long cp= checkpoints[index >>> CHECKPOINT_BITS];
+			cursorChar= index & ~((1 << CHECKPOINT_BITS)-1);
+			cursorByte= cp >>> 1;
+			cursorSecondHalf= (cp & 1) != 0;
+		}
+		while (cursorChar < index) {
+			long cpt= decode(cursorByte);
+			if ((int) cpt >= 0x10000 && !cursorSecondHalf)
+				cursorSecondHalf= true;
+			else {
+				cursorByte+= cpt >>> 32;
+				cursorSecondHalf= false;
+			}
+			cursorChar++;
+		}
+	}
+
+	public CharSequence subSequence(int start, int end) {
+		if (start < 0 || end > length() || start > end)
+			throw new IndexOutOfBoundsException();
+		char[] chars= new char[end-start];
+		for (int i=start; i<end; i++)
+			chars[i-start]= charAt(i);
+		return new String(chars);
+	}
+
+	public String toString() {
+		return subSequence(0, length()).toString();
+	}
+
+	/** Create a Reader which decodes the whole file from the mapping.
+	 * <p>This works for files of any size, and is meant for the streaming
+	 * Scanner constructor.  Each Reader has its own position, and doesn't
+	 * disturb the CharSequence methods.
+	 *
+	 * @return Reader A reader of the file's characters
+	 */
+	public Reader newReader() {
+		return new Reader() {
+			long offset= 0;
+			int pendingLow= -1;
+
+			public int read(char[] buf, int off, int len) {
+				if (len == 0)
+					return 0;
+				if (offset >= byteLength && pendingLow < 0)
+					return -1;
+				int count= 0;
+				if (pendingLow >= 0) {
+					buf[off+count++]= (char) pendingLow;
+					pendingLow= -1;
+				}
+				while (count < len && offset < byteLength) {
+					int first= getByte(offset);
+					if (first < 0x80) {
+						buf[off+count++]= (char) first;
+						offset++;
+						continue;
+					}
+					long cpt= decode(offset);
+					offset+= cpt >>> 32;
+					int c= (int) cpt;
+					if (c < 0x10000)
+						buf[off+count++]= (char) c;
+					else {
+						buf[off+count++]= (char)(0xD800 + ((c - 0x10000) >>> 10));
+						int low= 0xDC00 + ((c - 0x10000) & 0x3FF);
+						if (count < len)
+							buf[off+count++]= (char) low;
+						else
+							pendingLow= low;
+					}
+				}
+				return count;
+			}
+
+			public void close() {
+			}
+		};
+	}
+}
@@ -0,0 +1,221 @@
+package com.silverdirk.parser;
+
+import java.nio.ByteBuffer;
+import java.util.regex.*;
+
+/**
+ * <p>Project: Dynamic LR(1) Parsing Library</p>
+ * <p>Title: Matched Text</p>
+ * <p>Description: A view of the text matched by a scan rule, passed to ScanRule.onMatch</p>
+ * <p>Copyright: Copyright (c) 2007</p>
+ *
+ * <p>The MatchedText is a CharSequence of the matched text which reads the
+ * scanner's input in place, so a rule can examine the token (or ignore it)
+ * without any Strings being created.  The offsets of the rule's groups are
+ * only worked out (by running the rule's Pattern on the token) if they are
+ * asked for, and the group Strings only if group() or toGroups() is called.
+ * When scanning UTF-8 bytes, an ASCII token is read byte by byte, and any
+ * other token is decoded the first time its characters are needed.
+ *
+ * <p>Each Scanner has one MatchedText which it reuses for every token, so
+ * it is only valid during the call to onMatch.  Call toString() to keep the
+ * text (which is interned, if the scanner has a SymbolTable).
+ *
+ * @author Michael Conrad
+ * @version $Revision$
+ */
+public final class MatchedText implements CharSequence {
+	CharSequence text; // the scanner's input, or the decoded token when scanning bytes
+	int start, end;
+	ByteBuffer bytes;  // when scanning bytes, until the token is decoded
+	int byteStart, byteEnd;
+	int ascii;         // whether the bytes are all ASCII: 0 unknown, 1 yes, -1 no
+	String literal;    // the token, if the rule is a literal
+	// for finding the groups
+	Scanner scanner;
+	int ruleState, rule;
+	Pattern pattern;
+	int groupCount;
+	Matcher matcher;
+
+	MatchedText(Scanner scanner) {
+		this.scanner= scanner;
+	}
+
+	/** Point the view at a token of the scanner's char input.
+	 */
+	void set(CharSequence text, int start, int end, int ruleState, int rule, ScanRuleSet rules) {
+		this.text= text;
+		this.start= start;
+		this.end= end;
+		bytes= null;
+		setRule(ruleState, rule, rules);
+	}
+
+	/** Point the view at a token of the scanner's UTF-8 input.
+	 */
+	void setBytes(ByteBuffer bytes, int start, int end, int ruleState, int rule, ScanRuleSet rules) {
+		this.bytes= bytes;
+		byteStart= start;
+		byteEnd= end;
+		ascii= 0;
+		text= null;
+		setRule(ruleState, rule, rules);
+	}
+
+	private void setRule(int ruleState, int rule, ScanRuleSet rules) {
+		this.ruleState= ruleState;
+		this.rule= rule;
+		pattern= rules.rulePatterns[rule];
+		groupCount= rules.ruleGroupCount[rule];
+		literal= rules.literals[rule];
+		matcher= null;
+	}
+
+	/** Supply a matcher which has already matched the token (with lookingAt on a region).
+	 */
+	void setMatcher(Matcher m) {
+		matcher= m;
+	}
+
+	final CharSequence text() {
+		if (text == null) {
+			text= Scanner.decodeUtf8(bytes, byteStart, byteEnd);
+			start= 0;
+			end= text.length();
+			bytes= null;
+		}
+		return text;
+	}
+
+	final Matcher matcher() {
+		if (matcher == null) {
+			CharSequence t= text();
+			if (t == scanner.data) {
+				matcher= scanner.getMatcher(ruleState, rule, pattern);
+				matcher.region(start, end);
+			}
+			else
+				matcher= pattern.matcher(t).region(start, end);
+			if (!matcher.matches())
+				throw new RuntimeException("BUG: DFA match of "+pattern.pattern()+" not matched by the regex");
+		}
+		return matcher;
+	}
+
+	/** Whether the token is undecoded bytes which are all ASCII, and so can be
+	 * read as chars one byte at a time.
+	 */
+	final boolean isAsciiBytes() {
+		if (text != null)
+			return false;
+		if (ascii == 0) {
+			ascii= 1;
+			for (int i=byteStart; i<byteEnd; i++)
+				if (bytes.get(i) < 0) {
+					ascii= -1;
+					break;
+				}
+		}
+		return ascii > 0;
+	}
+
+	/** Look the token up in a keyword table, without decoding it if it is bytes.
+	 */
+	Object findKeyword(KeywordScanRule keywords) {
+		if (text == null)
+			return keywords.getKeywordToken(bytes, byteStart, byteEnd);
+		return keywords.getKeywordToken(text, start, end);
+	}
+
+	public int length() {
+		if (isAsciiBytes())
+			return byteEnd-byteStart;
+		text();
+		return end-start;
+	}
+
+	public char charAt(int index) {
+		if (index < 0 || index >= length())
+			throw new IndexOutOfBoundsException();
+		if (isAsciiBytes())
+			return (char) bytes.get(byteStart+index);
+		return text.charAt(start+index);
+	}
+
+	public CharSequence subSequence(int from, int to) {
+		if (from < 0 || to > length() || from > to)
+			throw new IndexOutOfBoundsException();
+		text();
+		return text.subSequence(start+from, start+to);
+	}
+
+	/** Get the matched text as a String.
+	 * <p>For a literal rule this is the literal, so no copy is made.  If the
+	 * scanner has a SymbolTable, the String comes from the table.
+	 */
+	public String toString() {
+		if (literal != null)
+			return literal;
+		SymbolTable symbols= scanner.symbols;
+		if (symbols != null)
+			return (text == null)? symbols.intern(bytes, byteStart, byteEnd) : symbols.intern(text, start, end);
+		return text().subSequence(start, end).toString();
+	}
+
+	/** Get the number of capturing groups in the rule's pattern.
+	 */
+	public int groupCount() {
+		return groupCount;
+	}
+
+	/** Get the offset within the token where a group starts.
+	 *
+	 * @param group int The group number, or 0 for the whole token
+	 * @return int The offset, or -1 if the group didn't match anything
+	 */
+	public int start(int group) {
+		if (group == 0)
+			return 0;
+		int result= matcher().start(group);
+		return result < 0? -1 : result-start;
+	}
+
+	/** Get the offset within the token where a group ends.
+	 *
+	 * @param group int The group number, or 0 for the whole token
+	 * @return int The offset, or -1 if the group didn't match anything
+	 */
+	public int end(int group) {
+		if (group == 0)
+			return length();
+		int result= matcher().end(group);
+		return result < 0? -1 : result-start;
+	}
+
+	/** Get the text of a group as a String.
+	 *
+	 * @param group int The group number, or 0 for the whole token
+	 * @return String The group's text, or null if it didn't match anything
+	 */
+	public String group(int group) {
+		if (group == 0)
+			return toString();
+		return matcher().group(group);
+	}
+
+	/** Get the token and all its groups, as passed to ScanRule.onMatch(String[], Scanner).
+	 * <p>This keeps the layout those rules have always been given, from
+	 * when every rule was a group of one combined regex: the matched text is
+	 * at both 0 and 1, and group n of the rule's pattern is at n+1.
+	 *
+	 * @return String[] The matched text twice, followed by each group
+	 */
+	public String[] toGroups() {
+		String[] result= new String[groupCount+2];
+		result[0]= result[1]= toString();
+		for (int i=1; i<=groupCount; i++)
+			result[i+1]= group(i);
+		return result;
+	}
+}
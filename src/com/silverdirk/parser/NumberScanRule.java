@@ -0,0 +1,184 @@
+package com.silverdirk.parser;
+
+/**
+ * <p>Project: Dynamic LR(1) Parsing Library</p>
+ * <p>Title: Number Scan Rule</p>
+ * <p>Description: A scan rule for numeric literals, which emits their values as primitives</p>
+ * <p>Copyright: Copyright (c) 2007</p>
+ *
+ * <p>The number is decoded directly from the scanner's input, with no
+ * String in between, and emitted with Scanner.emitLong or emitDouble, so
+ * it can stay unboxed on the parser's stack (see LongReduceMethod and
+ * DoubleReduceMethod).  Anything that reads the token as an Object gets a
+ * Long or Double.
+ *
+ * <p>Doubles use Clinger's fast path: when the digits fit in 53 bits and
+ * the power of ten is at most 22, the value is one exactly-rounded multiply
+ * or divide of two exact doubles.  Other numbers (which are rare in most
+ * input) are passed to Double.parseDouble, so the result is always the
+ * same as Double.parseDouble's.
+ *
+ * <p>Declare the terminal (setTerminal(Long.class) or Double.class, or
+ * whatever the grammar uses for numbers) to let the parser skip boxing the
+ * value to classify it.
+ *
+ * @author Michael Conrad
+ * @version $Revision$
+ */
+public class NumberScanRule extends ScanRule {
+	int format;
+
+	/** Formats of number */
+	public static final int
+		INTEGER= 0, // digits, as a long
+		DECIMAL= 1, // digits with an optional fraction, as a double
+		FLOAT= 2;   // a decimal with an optional exponent, as a double
+
+	static final String[] PATTERNS= new String[] {
+		"[0-9]+",
+		"[0-9]+(?:\\.[0-9]*)?|\\.[0-9]+",
+		"(?:[0-9]+(?:\\.[0-9]*)?|\\.[0-9]+)(?:[Ee][+-]?[0-9]+)?",
+	};
+
+	/** Constructor, for unsigned numbers in one of the standard formats.
+	 *
+	 * @param format int INTEGER, DECIMAL, or FLOAT
+	 */
+	public NumberScanRule(int format) {
+		this(PATTERNS[format], format);
+	}
+
+	/** Constructor, for numbers matched by a custom pattern.
+	 * <p>The pattern may match a leading sign, and anything else that
+	 * Long.parseLong (for INTEGER) or Double.parseDouble accepts.
+	 *
+	 * @param pattern String The regex of a number
+	 * @param format int INTEGER to emit longs, or DECIMAL or FLOAT to emit doubles
+	 */
+	public NumberScanRule(String pattern, int format) {
+		super(pattern, EMIT_MATCH);
+		if (format < INTEGER || format > FLOAT)
+			throw new IllegalArgumentException("Unknown number format "+format);
+		this.format= format;
+	}
+
+	public int getFormat() {
+		return format;
+	}
+
+	/** Emit the value of the number.
+	 * @throws NumberFormatException if an INTEGER doesn't fit in a long
+	 */
+	public Object onMatch(MatchedText match, Scanner scanner) throws Exception {
+		if (hasStateTransition())
+			scanner.stateTrans(getStateTransition());
+		if (format == INTEGER)
+			return scanner.emitLong(parseLong(match, 0, match.length()));
+		return scanner.emitDouble(parseDouble(match, 0, match.length()));
+	}
+
+	/** Decode a decimal integer, with an optional sign.
+	 *
+	 * @param text CharSequence The text containing the number
+	 * @param start int The start of the number
+	 * @param end int The end of the number
+	 * @return long The value
+	 * @throws NumberFormatException if the text isn't an integer, or doesn't fit in a long
+	 */
+	public static long parseLong(CharSequence text, int start, int end) {
+		int i= start;
+		boolean negative= false;
+		if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+'))
+			negative= (text.charAt(i++) == '-');
+		if (i == end)
+			throw new NumberFormatException("No digits in "+text.subSequence(start, end));
+		// accumulate negatively, since Long.MIN_VALUE has no positive counterpart
+		long limit= negative? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long result= 0;
+		for (; i<end; i++) {
+			int digit= text.charAt(i) - '0';
+			if (digit < 0 || digit > 9)
+				throw new NumberFormatException("Not an integer: "+text.subSequence(start, end));
+			if (result < limit/10 || result*10 < limit+digit)
+				throw new NumberFormatException("Integer too large: "+text.subSequence(start, end));
+			result= result*10 - digit;
+		}
+		return negative? result : -result;
+	}
+
+	/** Decode a decimal number, with an optional sign, fraction, and exponent.
+	 * <p>The result is the same as Double.parseDouble, which is used for
+	 * anything the fast path can't handle exactly.
+	 *
+	 * @param text CharSequence The text containing the number
+	 * @param start int The start of the number
+	 * @param end int The end of the number
+	 * @return double The value
+	 * @throws NumberFormatException if Double.parseDouble would
+	 */
+	public static double parseDouble(CharSequence text, int start, int end) {
+		int i= start;
+		boolean negative= false;
+		if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+'))
+			negative= (text.charAt(i++) == '-');
+		long mantissa= 0;
+		int sigDigits= 0, exp10= 0;
+		boolean anyDigits= false, inexact= false, fraction= false;
+		for (; i<end; i++) {
+			char ch= text.charAt(i);
+			if (ch == '.' && !fraction) {
+				fraction= true;
+				continue;
+			}
+			if (ch < '0' || ch > '9')
+				break;
+			anyDigits= true;
+			if (sigDigits < MAX_SIG_DIGITS) {
+				mantissa= mantissa*10 + (ch - '0');
+				if (mantissa != 0)
+					sigDigits++;
+				if (fraction)
+					exp10--;
+			}
+			else {
+				if (ch != '0')
+					inexact= true;
+				if (!fraction)
+					exp10++;
+			}
+		}
+		if (anyDigits && i < end && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+			i++;
+			boolean negExp= false;
+			if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+'))
+				negExp= (text.charAt(i++) == '-');
+			int exp= 0, expStart= i;
+			for (; i<end && text.charAt(i) >= '0' && text.charAt(i) <= '9'; i++)
+				if (exp < 100000)
+					exp= exp*10 + (text.charAt(i) - '0');
+			if (i == expStart)
+				anyDigits= false; // let parseDouble report it
+			exp10+= negExp? -exp : exp;
+		}
+		if (anyDigits && i == end && !inexact) {
+			if (mantissa == 0)
+				return negative? -0.0 : 0.0;
+			if (mantissa < (1L << 53) && exp10 >= -MAX_EXACT_POW10 && exp10 <= MAX_EXACT_POW10) {
+				double value= (exp10 < 0)? mantissa / POW10[-exp10] : mantissa * POW10[exp10];
+				return negative? -value : value;
+			}
+		}
+		return Double.parseDouble(text.subSequence(start, end).toString());
+	}
+
+	static final int
+		MAX_SIG_DIGITS= 18,
+		MAX_EXACT_POW10= 22;
+	// the powers of ten which doubles represent exactly
+	static final double[] POW10= new double[MAX_EXACT_POW10+1];
+	static {
+		POW10[0]= 1;
+		for (int i=1; i<POW10.length; i++)
+			POW10[i]= POW10[i-1]*10;
+	}
+}
@@ -0,0 +1,56 @@
+package com.silverdirk.parser;
+
+/**
+ * <p>Project: Dynamic LR(1) Parsing Library</p>
+ * <p>Title: Offset Token Source</p>
+ * <p>Description: A TokenSource which describes token positions as plain offsets</p>
+ * <p>Copyright: Copyright (c) 2007</p>
+ *
+ * <p>curTokenPos() has to allocate a SourcePos for every token, even though
+ * almost all of them are thrown away.  A token source implementing this
+ * interface instead reports a start and end offset for each token, and
+ * only builds a SourcePos when getSourcePos is called for a range that
+ * someone actually wants to see (a reduce method, or an error message).
+ *
+ * <p>What the offsets mean is up to the token source, as long as the start
+ * of an earlier token is less than the end of a later one, and getSourcePos
+ * can turn the start of one token and the end of another into a SourcePos
+ * covering both.  The Scanner uses character offsets into its input.
+ *
+ * @author Michael Conrad
+ * @version $Revision$
+ */
+public interface OffsetTokenSource extends TokenSource {
+	/** Get the offset where the current token starts.
+	 * @return long The start offset of the current token
+	 */
+	public long curTokenStart();
+
+	/** Get the offset just past the end of the current token.
+	 * @return long The end offset (exclusive) of the current token
+	 */
+	public long curTokenEnd();
+
+	/** Build a SourcePos for a range of offsets.
+	 * <p>The range may begin and end in different tokens.  Either end may be
+	 * NO_OFFSET (for example, a rule that matched no tokens), in which case
+	 * the coordinates for that end of the range are zero.
+	 *
+	 * @param start long A start offset from curTokenStart, or NO_OFFSET
+	 * @param end long An end offset from curTokenEnd, or NO_OFFSET
+	 * @return SourcePos The coordinates covering that range
+	 */
+	public SourcePos getSourcePos(long start, long end);
+
+	/** Tell the token source that offsets before this one are no longer needed.
+	 * <p>The parser calls this every so often with the oldest offset on its
+	 * stack.  A token source reading an unbounded stream can use it to let go
+	 * of whatever it keeps for building SourcePos objects.  Most token sources
+	 * can ignore it.
+	 *
+	 * @param offset long The oldest offset the parser still holds
+	 */
+	public void releaseOffsetsBefore(long offset);
+
+	public static final long NO_OFFSET= -1;
+}
@@ -0,0 +1,377 @@
+package com.silverdirk.parser;
+
+import java.util.*;
+import com.silverdirk.parser.LR1_Table.ParseAction;
+
+/**
+ * <p>Project: Dynamic LR(1) Parsing Library</p>
+ * <p>Title: Packed LR(1) Table</p>
+ * <p>Description: A runtime form of the LR(1) table indexed entirely by integers</p>
+ * <p>Copyright: Copyright (c) 2007</p>
+ *
+ * <p>LR1_Table keeps each row in a hash table keyed by the symbol objects,
+ * which is convenient for building and serializing, but means the parser
+ * pays for a hash lookup (and the user's equals/hashCode) for every action
+ * and every goto.  This class is compiled from a finished LR1_Table and
+ * assigns every terminal and nonterminal a dense integer id.  Actions are
+ * packed into a single int (type in the low bits, rule or state above it)
+ * and stored in flat arrays, one row per state, with identical rows shared.
+ * The goto table is packed the same way in a separate array.
+ *
+ * <p>The parser only needs to map a token to its terminal id once per token,
+ * and every other lookup is a pair of array indexing operations.
+ *
+ * @author Michael Conrad
+ * @version $Revision$
+ */
+public class PackedLR1_Table {
+	Object[] terminals;
+	Nonterminal[] nonterminals;
+	HashMap terminalIds= new HashMap();
+	HashMap nonterminalIds= new HashMap();
+	int stateCount;
+	int[] actionRowStart, actions;
+	int[] gotoRowStart, gotos;
+	int[] ruleLength, ruleTarget;
+	boolean hasClassTerminals;
+	Map classActions= new java.util.concurrent.ConcurrentHashMap();
+
+	/** Constructor.
+	 * <p>Compile the given table into integer arrays.  The terminal and
+	 * nonterminal ids are assigned in the same deterministic order used for
+	 * serializing the table, followed by any terminals which only appear in
+	 * the table (from the grammar's start follow set).
+	 *
+	 * @param table LR1_Table A fully built (or deserialized) table
+	 */
+	public PackedLR1_Table(LR1_Table table) {
+		ParseRule[] rules= table.rules;
+		Object[] symbols= LR1_Table.buildSymbolLists(rules);
+		ArrayList terms= new ArrayList(), nonterms= new ArrayList();
+		for (int i=0; i<symbols.length; i++)
+			if (symbols[i] instanceof Nonterminal) {
+				nonterminalIds.put(symbols[i], new Integer(nonterms.size()));
+				nonterms.add(symbols[i]);
+			}
+			else {
+				terminalIds.put(symbols[i], new Integer(terms.size()));
+				terms.add(symbols[i]);
+				hasClassTerminals|= (symbols[i] instanceof Class);
+			}
+		// terminals of a custom start follow set only appear in the table
+		for (int state=0; state<table.getStateCount(); state++)
+			for (Iterator i= table.table[state].keySet().iterator(); i.hasNext();) {
+				Object symbol= i.next();
+				if (!(symbol instanceof Nonterminal) && !terminalIds.containsKey(symbol)) {
+					terminalIds.put(symbol, new Integer(terms.size()));
+					terms.add(symbol);
+					hasClassTerminals|= (symbol instanceof Class);
+				}
+			}
+		terminals= terms.toArray();
+		nonterminals= (Nonterminal[]) nonterms.toArray(new Nonterminal[nonterms.size()]);
+
+		ruleLength= new int[rules.length];
+		ruleTarget= new int[rules.length];
+		for (int i=0; i<rules.length; i++) {
+			ruleLength[i]= rules[i].symbols.length;
+			ruleTarget[i]= getNonterminalId(rules[i].target);
+		}
+
+		stateCount= table.getStateCount();
+		actionRowStart= new int[stateCount];
+		gotoRowStart= new int[stateCount];
+		RowPacker actionRows= new RowPacker(terminals.length);
+		RowPacker gotoRows= new RowPacker(nonterminals.length);
+		for (int state=0; state<stateCount; state++) {
+			int[] actionRow= new int[terminals.length];
+			int[] gotoRow= new int[nonterminals.length];
+			for (Iterator i= table.table[state].entrySet().iterator(); i.hasNext();) {
+				Map.Entry ent= (Map.Entry) i.next();
+				if (ent.getKey() instanceof Nonterminal)
+					gotoRow[getNonterminalId((Nonterminal) ent.getKey())]= ((Integer)ent.getValue()).intValue();
+				else
+					actionRow[getTerminalId(ent.getKey())]= encode((ParseAction) ent.getValue());
+			}
+			actionRowStart[state]= actionRows.add(actionRow);
+			gotoRowStart[state]= gotoRows.add(gotoRow);
+		}
+		actions= actionRows.toArray();
+		gotos= gotoRows.toArray();
+	}
+
+	/** Get the number of rows in the table.
+	 * <p>Like LR1_Table, state ids at or above this value are "reduce-only"
+	 * states, which reduce by rule <code>(state - getStateCount())</code>.
+	 *
+	 * @return int The number of real states in the table
+	 */
+	public final int getStateCount() {
+		return stateCount;
+	}
+
+	/** Get the number of distinct terminals known to the table.
+	 * @return int One more than the highest terminal id
+	 */
+	public final int getTerminalCount() {
+		return terminals.length;
+	}
+
+	/** Get the id assigned to a terminal.
+	 * <p>This is a plain hash lookup of the value, so it does not consider
+	 * terminals which are matched by class.
+	 *
+	 * @param terminal Object A terminal symbol (value or class) used in the grammar
+	 * @return int The id of the terminal, or -1 if it is not part of the grammar
+	 */
+	public final int getTerminalId(Object terminal) {
+		Integer id= (Integer) terminalIds.get(terminal);
+		return id == null? -1 : id.intValue();
+	}
+
+	/** Get the terminal symbol which was assigned the given id.
+	 * @param id int A terminal id
+	 * @return Object The terminal
+	 */
+	public final Object getTerminal(int id) {
+		return terminals[id];
+	}
+
+	/** Get the id assigned to a nonterminal.
+	 *
+	 * @param nonterm Nonterminal A nonterminal used in the grammar
+	 * @return int The id of the nonterminal, or -1 if it is not part of the grammar
+	 */
+	public final int getNonterminalId(Nonterminal nonterm) {
+		Integer id= (Integer) nonterminalIds.get(nonterm);
+		return id == null? -1 : id.intValue();
+	}
+
+	/** Get a packed entry from the 'action' table.
+	 * <p>Use actionType() and actionOperand() to decode the result.
+	 *
+	 * @param state int The parse state, or row of the table
+	 * @param terminalId int The terminal id, or column of the table
+	 * @return int The packed action, or NONE if the cell is empty
+	 */
+	public final int getAction(int state, int terminalId) {
+		return actions[actionRowStart[state]+terminalId];
+	}
+
+	/** Find the action for a token, trying its value and then its class.
+	 * <p>This performs the same search the parser has always done: the value
+	 * of the token is looked up first, and if it has no action in this state
+	 * the token's class is matched as described in getClassActions.
+	 *
+	 * @param state int The parse state
+	 * @param token Object The token value
+	 * @return int The packed action, or NONE if no action applies
+	 */
+	public int resolveAction(int state, Object token) {
+		int id= getTerminalId(token);
+		int acn= id < 0? NONE : getAction(state, id);
+		return acn != NONE? acn : getClassActions(token.getClass())[state];
+	}
+
+	/** Get the action each state takes for a token of the given class.
+	 * <p>Terminals which are Class objects match any token of that class or
+	 * a subclass, and interface terminals match any token implementing them.
+	 * In each state, the candidates are tried in order: the class itself,
+	 * its superclasses, and then the interfaces of each of those (nearest
+	 * first).  The first candidate with an action in the state wins.
+	 *
+	 * <p>The result is computed once per class and cached, so the common case
+	 * of class-matched tokens (numbers, identifiers) costs one lookup per
+	 * token no matter how many states the parser passes through with it.
+	 * The returned array must not be modified.
+	 *
+	 * @param tokenClass Class The class of a token
+	 * @return int[] The packed action for each state (NONE where no candidate has an action)
+	 */
+	public int[] getClassActions(Class tokenClass) {
+		int[] result= (int[]) classActions.get(tokenClass);
+		if (result == null) {
+			result= buildClassActions(tokenClass);
+			classActions.put(tokenClass, result);
+		}
+		return result;
+	}
+
+	private int[] buildClassActions(Class tokenClass) {
+		int[] result= new int[stateCount];
+		if (!hasClassTerminals)
+			return result;
+		// collect the ids of all terminals this class can match, in order of preference
+		ArrayList candidates= new ArrayList();
+		LinkedList queue= new LinkedList();
+		HashSet seen= new HashSet();
+		for (Class typ= tokenClass; typ != null; typ= typ.getSuperclass()) {
+			addCandidate(candidates, typ);
+			queue.add(typ);
+		}
+		while (!queue.isEmpty()) {
+			Class[] ifaces= ((Class) queue.removeFirst()).getInterfaces();
+			for (int i=0; i<ifaces.length; i++)
+				if (seen.add(ifaces[i])) {
+					addCandidate(candidates, ifaces[i]);
+					queue.add(ifaces[i]);
+				}
+		}
+		for (int state=0; state<stateCount; state++)
+			for (int i=0; result[state] == NONE && i<candidates.size(); i++)
+				result[state]= getAction(state, ((Integer)candidates.get(i)).intValue());
+		return result;
+	}
+
+	private void addCandidate(List candidates, Class typ) {
+		int id= getTerminalId(typ);
+		if (id >= 0)
+			candidates.add(new Integer(id));
+	}
+
+	/** Get an entry from the 'goto' table.
+	 *
+	 * @param state int The parse state, or row of the table
+	 * @param nonterminalId int The nonterminal id, or column of the table
+	 * @return int The parse state to transition to
+	 */
+	public final int getStateTrans(int state, int nonterminalId) {
+		return gotos[gotoRowStart[state]+nonterminalId];
+	}
+
+	/** Get the number of symbols on the right hand side of a rule.
+	 * @param rule int The index of the rule
+	 * @return int The number of symbols the rule reduces
+	 */
+	public final int getRuleLength(int rule) {
+		return ruleLength[rule];
+	}
+
+	/** Get the nonterminal id produced by a rule.
+	 * @param rule int The index of the rule
+	 * @return int The id of the rule's target nonterminal
+	 */
+	public final int getRuleTarget(int rule) {
+		return ruleTarget[rule];
+	}
+
+	/** Pack a ParseAction into an integer.
+	 */
+	static int encode(ParseAction acn) {
+		switch (acn.type) {
+		case ParseAction.SHIFT: return makeAction(SHIFT, acn.nextState);
+		case ParseAction.REDUCE: return makeAction(REDUCE, acn.rule);
+		case ParseAction.ACCEPT: return makeAction(ACCEPT, 0);
+		case ParseAction.NONASSOC_ERR: return makeAction(NONASSOC_ERR, 0);
+		default:
+			throw new RuntimeException("Undefined action code");
+		}
+	}
+
+	static final int makeAction(int type, int operand) {
+		return (operand << TYPE_BITS) | type;
+	}
+
+	/** Get the type of a packed action.
+	 * @return int One of NONE, SHIFT, REDUCE, ACCEPT, NONASSOC_ERR
+	 */
+	public static final int actionType(int packedAction) {
+		return packedAction & TYPE_MASK;
+	}
+
+	/** Get the parameter of a packed action.
+	 * @return int The next state for a SHIFT, or the rule index for a REDUCE
+	 */
+	public static final int actionOperand(int packedAction) {
+		return packedAction >>> TYPE_BITS;
+	}
+
+	public String toString() {
+		StringBuffer sb= new StringBuffer();
+		for (int state=0; state<stateCount; state++) {
+			sb.append(state).append(':');
+			for (int t=0; t<terminals.length; t++) {
+				int acn= getAction(state, t);
+				if (acn != NONE)
+					sb.append("  ").append(terminals[t]).append(':').append(ACTION_NAMES[actionType(acn)])
+						.append(' ').append(actionOperand(acn));
+			}
+			sb.append("  | Goto:");
+			for (int nt=0; nt<nonterminals.length; nt++) {
+				int next= getStateTrans(state, nt);
+				if (next != 0)
+					sb.append("  ").append(nonterminals[nt]).append(':').append(next);
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * <p>Title: Row Packer</p>
+	 * <p>Description: Concatenates fixed-width rows into one array, sharing duplicates</p>
+	 *
+	 * <p>Many states of an LR table have identical rows (especially in the goto
+	 * table), so each distinct row is stored only once and states refer to
+	 * it by its starting offset.
+	 */
+	static final class RowPacker {
+		int width;
+		int[] buffer;
+		int len= 0;
+		HashMap rowOffsets= new HashMap();
+
+		RowPacker(int width) {
+			this.width= width;
+			buffer= new int[Math.max(width, 1)*16];
+		}
+
+		int add(int[] row) {
+			RowKey key= new RowKey(row);
+			Integer prev= (Integer) rowOffsets.get(key);
+			if (prev != null)
+				return prev.intValue();
+			if (len + width > buffer.length) {
+				int[] newBuf= new int[Math.max(buffer.length*2, len+width)];
+				System.arraycopy(buffer, 0, newBuf, 0, len);
+				buffer= newBuf;
+			}
+			System.arraycopy(row, 0, buffer, len, width);
+			rowOffsets.put(key, new Integer(len));
+			len+= width;
+			return len-width;
+		}
+
+		int[] toArray() {
+			int[] result= new int[len];
+			System.arraycopy(buffer, 0, result, 0, len);
+			return result;
+		}
+	}
+
+	static final class RowKey {
+		int[] row;
+		int hash;
+		RowKey(int[] row) {
+			this.row= row;
+			hash= Arrays.hashCode(row);
+		}
+		public int hashCode() {
+			return hash;
+		}
+		public boolean equals(Object other) {
+			return (other instanceof RowKey) && Arrays.equals(row, ((RowKey)other).row);
+		}
+	}
+
+	static final int
+		TYPE_BITS= 3,
+		TYPE_MASK= (1<<TYPE_BITS)-1;
+	public static final int
+		NONE= 0,
+		SHIFT= 1,
+		REDUCE= 2,
+		ACCEPT= 3,
+		NONASSOC_ERR= 4;
+	static final String[] ACTION_NAMES= new String[] { "None", "Shift", "Reduce", "Accept", "Nonassociation" };
+}
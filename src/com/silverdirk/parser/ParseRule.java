@@ -24,6 +24,13 @@ import java.util.*;
  * <code>  Object reduce(ParseRule rule, SourcePos from, Object[] symbols);  </code>
  * and then pass this object to the ParseRule constructor.
  *
+ * <p>If the handler is a StackReduceMethod, the parser calls
+ * <code>  Object reduce(ParseRule rule, ReduceArgs args);  </code>
+ * instead, which reads the symbols straight off the parse stack.  (Unless a
+ * subclass overrides reduce(SourcePos, Object[]), in which case that method
+ * is always used.)  LongReduceMethod and DoubleReduceMethod handlers have
+ * their results kept unboxed on the parser's primitive value stack.
+ *
  * @author Michael Conrad
  * @version $Revision$
  */
@@ -31,6 +38,8 @@ public class ParseRule implements ReduceMethod {
 	Nonterminal target;
 	Object[] symbols;
 	ReduceMethod handler;
+	StackReduceMethod stackHandler;
+	int resultType= PrimitiveTokenSource.NOT_PRIMITIVE;
 
 	/**
 	 * Create a parser production specifying that the target can be created
@@ -45,6 +54,27 @@ public class ParseRule implements ReduceMethod {
 		this.target= target;
 		this.symbols= (Object[]) symbols.clone();
 		this.handler= handler;
+		if (handler instanceof StackReduceMethod && !overridesArrayReduce()) {
+			stackHandler= (StackReduceMethod) handler;
+			if (handler instanceof LongReduceMethod)
+				resultType= PrimitiveTokenSource.LONG;
+			else if (handler instanceof DoubleReduceMethod)
+				resultType= PrimitiveTokenSource.DOUBLE;
+		}
+	}
+
+	/** Check whether a subclass has overridden reduce(SourcePos, Object[]).
+	 * <p>If it has, the parser must keep calling that method rather than
+	 * going straight to a StackReduceMethod handler.
+	 */
+	private boolean overridesArrayReduce() {
+		for (Class c= getClass(); c != ParseRule.class; c= c.getSuperclass())
+			try {
+				c.getDeclaredMethod("reduce", new Class[] { SourcePos.class, Object[].class });
+				return true;
+			}
+			catch (NoSuchMethodException ex) {}
+		return false;
 	}
 
 	/**
@@ -89,6 +119,34 @@ public class ParseRule implements ReduceMethod {
 		return handler.reduce(this, from, symbols);
 	}
 
+	/** Reduce the symbols on the parse stack to an object.
+	 * <p>This is what the parser calls.  A StackReduceMethod handler is given
+	 * the view directly; otherwise the symbols are copied into an array and
+	 * passed to reduce(SourcePos, Object[]).
+	 *
+	 * @param args ReduceArgs A view of the symbols being reduced, valid only during this call
+	 * @return Object An object representing the target of this rule
+	 */
+	public Object reduce(ReduceArgs args) {
+		if (stackHandler != null)
+			return stackHandler.reduce(this, args);
+		return reduce(args.getSourcePos(), args.toArray());
+	}
+
+	/** Reduce the symbols on the parse stack to a long.
+	 * <p>The parser only calls this if the handler is a LongReduceMethod.
+	 */
+	final long reduceLong(ReduceArgs args) {
+		return ((LongReduceMethod) stackHandler).reduceLong(this, args);
+	}
+
+	/** Reduce the symbols on the parse stack to a double.
+	 * <p>The parser only calls this if the handler is a DoubleReduceMethod.
+	 */
+	final double reduceDouble(ReduceArgs args) {
+		return ((DoubleReduceMethod) stackHandler).reduceDouble(this, args);
+	}
+
 	/** Implementation of interface ReduceMethod.
 	 * <p>This allows ParseRules to be used as instances of ReduceMethod.
 	 *
@@ -0,0 +1,141 @@
+package com.silverdirk.parser;
+
+/**
+ * <p>Project: Dynamic LR(1) Parsing Library</p>
+ * <p>Title: Parse Session</p>
+ * <p>Description: A reusable scanner and parse stack for parsing many inputs</p>
+ * <p>Copyright: Copyright (c) 2007</p>
+ *
+ * <p>Parsing a string normally means constructing a Scanner, and the parser
+ * then builds a new parse stack.  For lots of short inputs that setup is a
+ * noticeable part of the work, so a ParseSession keeps one Scanner (with
+ * terminal ids already assigned for the parser, see Scanner.setTokenKinds)
+ * and one parse stack, and resets them for each input.
+ *
+ * <p>A session is not thread-safe, but Parsers are, so the usual arrangement
+ * is one session per thread per parser.  Parser.getThreadSession keeps one
+ * for the calling thread.
+ *
+ * <p>After a parse, the session still refers to the last input (through its
+ * scanner) until the next parse.
+ *
+ * @author Michael Conrad
+ * @version $Revision$
+ */
+public class ParseSession {
+	Parser parser;
+	ScanRuleSet[] scanRules;
+	Scanner scanner;
+	ParseStack stack= new ParseStack();
+
+	/** Constructor.
+	 *
+	 * @param parser Parser The parser to run
+	 * @param scanRules ScanRuleSet[] The scanner states, as would be given to the Scanner constructor
+	 */
+	public ParseSession(Parser parser, ScanRuleSet[] scanRules) {
+		this.parser= parser;
+		this.scanRules= scanRules;
+		scanner= new Scanner(scanRules);
+		scanner.setTokenKinds(parser);
+	}
+
+	public Parser getParser() {
+		return parser;
+	}
+
+	public ScanRuleSet[] getScanRules() {
+		return scanRules;
+	}
+
+	/** Intern token text in a symbol table, for every input this session parses.
+	 * <p>See Scanner.setSymbolTable.  A table given to one session lasts as
+	 * long as the session, so repeated names share a String across all the
+	 * parse trees it produces.
+	 *
+	 * @param symbols SymbolTable The table to use, or null to stop interning
+	 */
+	public void setSymbolTable(SymbolTable symbols) {
+		scanner.setSymbolTable(symbols);
+	}
+
+	/** Point the session's scanner at a new input, without parsing it.
+	 * <p>The scanner is ready on the first token, and can be used to list
+	 * the tokens, or to set up its state data before calling parse().
+	 *
+	 * @param text CharSequence The text to scan
+	 * @return Scanner The session's scanner
+	 * @throws ParseException if the first token can't be scanned
+	 */
+	public Scanner reset(CharSequence text) throws ParseException {
+		scanner.reset(text);
+		return scanner;
+	}
+
+	/** Scan and parse the text.
+	 *
+	 * @param text CharSequence The text to parse
+	 * @return Object The result of the top-level reduce method
+	 * @throws ParseException if the text can't be scanned or parsed
+	 */
+	public Object parse(CharSequence text) throws ParseException {
+		scanner.reset(text);
+		return parse();
+	}
+
+	/** Scan and parse a stream of characters.
+	 * <p>The stream is read as described for the Scanner(ScanRuleSet[], Reader)
+	 * constructor, so the input does not need to fit in memory.
+	 *
+	 * @param in Reader The characters to parse
+	 * @return Object The result of the top-level reduce method
+	 * @throws ParseException if the text can't be read, scanned or parsed
+	 */
+	public Object parse(java.io.Reader in) throws ParseException {
+		scanner.reset(in);
+		return parse();
+	}
+
+	/** Scan and parse UTF-8 bytes.
+	 * <p>The bytes are scanned without decoding them, as described for the
+	 * Scanner(ScanRuleSet[], ByteBuffer) constructor.
+	 *
+	 * @param utf8 ByteBuffer The bytes to parse, from its position to its limit
+	 * @return Object The result of the top-level reduce method
+	 * @throws ParseException if the text can't be scanned or parsed
+	 */
+	public Object parse(java.nio.ByteBuffer utf8) throws ParseException {
+		scanner.reset(utf8);
+		return parse();
+	}
+
+	/** Parse the rest of the input the scanner was last reset to.
+	 *
+	 * @return Object The result of the top-level reduce method
+	 * @throws ParseException if the text can't be scanned or parsed
+	 */
+	public Object parse() throws ParseException {
+		try {
+			return parser.parse(scanner, false, stack);
+		}
+		finally {
+			stack.clear();
+		}
+	}
+
+	/** Scan and parse the text in debug mode (see Parser.debugParse).
+	 *
+	 * @param text CharSequence The text to parse
+	 * @return GenericParseNode The parse tree
+	 * @throws ParseException if the text can't be scanned or parsed
+	 */
+	public GenericParseNode debugParse(CharSequence text) throws ParseException {
+		scanner.reset(text);
+		try {
+			return (GenericParseNode) parser.parse(scanner, true, stack);
+		}
+		finally {
+			stack.clear();
+		}
+	}
+}
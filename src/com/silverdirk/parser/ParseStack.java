@@ -0,0 +1,191 @@
+package com.silverdirk.parser;
+
+/**
+ * <p>Project: Dynamic LR(1) Parsing Library</p>
+ * <p>Title: Parse Stack</p>
+ * <p>Description: The parser's stack of states, values, and source positions</p>
+ * <p>Copyright: Copyright (c) 2007</p>
+ *
+ * <p>This replaces a java.util.Stack of ParseState objects.  Each "entry" of
+ * the stack is spread across parallel arrays (the state id, the semantic
+ * value, and a start and end offset) so that pushing and popping never
+ * allocates, and nothing is synchronized.  The arrays grow as needed and
+ * are kept, so a stack can be cleared and reused for another parse.
+ *
+ * <p>The offsets are whatever the token source reported (see
+ * OffsetTokenSource), so a SourcePos only has to be built when somebody
+ * asks for one.  ParseState objects are only created when a ParseException
+ * needs a snapshot of the stack.
+ *
+ * <p>Long and double values (from a PrimitiveTokenSource, or the result of
+ * a LongReduceMethod or DoubleReduceMethod) are kept unboxed in a parallel
+ * long[] (doubles as their raw bits), and the value slot holds one of the
+ * PRIM_ markers to say which.  They are only boxed if something reads them
+ * as an Object.
+ *
+ * @author Michael Conrad
+ * @version $Revision$
+ */
+final class ParseStack {
+	int[] states;
+	Object[] values;
+	long[] starts, ends, prims;
+	int size= 0;
+	final ReduceArgs args= new ReduceArgs();
+
+	ParseStack() {
+		this(32);
+	}
+
+	ParseStack(int capacity) {
+		states= new int[capacity];
+		values= new Object[capacity];
+		starts= new long[capacity];
+		ends= new long[capacity];
+		prims= new long[capacity];
+	}
+
+	/** Markers stored in the value slot of an entry whose value is in prims[] */
+	static final Object
+		PRIM_LONG= new Object(),
+		PRIM_DOUBLE= new Object();
+
+	/** Remove all entries, releasing the references to their values.
+	 */
+	void clear() {
+		java.util.Arrays.fill(values, 0, size, null);
+		size= 0;
+	}
+
+	void push(int state, Object value, long start, long end) {
+		if (size == states.length)
+			grow();
+		states[size]= state;
+		values[size]= value;
+		starts[size]= start;
+		ends[size]= end;
+		size++;
+	}
+
+	/** Push an unboxed value.
+	 * @param type int PrimitiveTokenSource.LONG or PrimitiveTokenSource.DOUBLE
+	 * @param bits long The value, with doubles given as raw long bits
+	 */
+	void pushPrimitive(int state, int type, long bits, long start, long end) {
+		if (size == states.length)
+			grow();
+		states[size]= state;
+		values[size]= (type == PrimitiveTokenSource.LONG)? PRIM_LONG : PRIM_DOUBLE;
+		prims[size]= bits;
+		starts[size]= start;
+		ends[size]= end;
+		size++;
+	}
+
+	/** Get the value of an entry as an Object, boxing it if it is primitive.
+	 */
+	Object getValue(int idx) {
+		Object val= values[idx];
+		if (val == PRIM_LONG)
+			return new Long(prims[idx]);
+		if (val == PRIM_DOUBLE)
+			return new Double(Double.longBitsToDouble(prims[idx]));
+		return val;
+	}
+
+	/** Get the value of an entry as a long.
+	 * <p>Doubles are truncated, and boxed values must be Numbers.
+	 */
+	long getLong(int idx) {
+		Object val= values[idx];
+		if (val == PRIM_LONG)
+			return prims[idx];
+		if (val == PRIM_DOUBLE)
+			return (long) Double.longBitsToDouble(prims[idx]);
+		return ((Number) val).longValue();
+	}
+
+	/** Get the value of an entry as a double.
+	 * <p>Longs are converted, and boxed values must be Numbers.
+	 */
+	double getDouble(int idx) {
+		Object val= values[idx];
+		if (val == PRIM_DOUBLE)
+			return Double.longBitsToDouble(prims[idx]);
+		if (val == PRIM_LONG)
+			return prims[idx];
+		return ((Number) val).doubleValue();
+	}
+
+	/** Remove the top 'count' entries.
+	 */
+	void pop(int count) {
+		int newSize= size-count;
+		for (int i=newSize; i<size; i++)
+			values[i]= null;
+		size= newSize;
+	}
+
+	int topState() {
+		return states[size-1];
+	}
+
+	Object topValue() {
+		return getValue(size-1);
+	}
+
+	/** Get the start offset of the range covered by the top 'count' entries.
+	 */
+	long spanStart(int count) {
+		return count > 0? starts[size-count] : OffsetTokenSource.NO_OFFSET;
+	}
+
+	/** Get the end offset of the range covered by the top 'count' entries.
+	 */
+	long spanEnd(int count) {
+		return count > 0? ends[size-1] : OffsetTokenSource.NO_OFFSET;
+	}
+
+	/** Get the earliest start offset of any entry, or 'otherwise' if none have one.
+	 */
+	long oldestOffset(long otherwise) {
+		for (int i=0; i<size; i++)
+			if (starts[i] != OffsetTokenSource.NO_OFFSET)
+				return starts[i];
+		return otherwise;
+	}
+
+	/** Get the view of the top 'count' entries for a reduce method.
+	 * <p>The same view object is reused for every reduction.
+	 */
+	ReduceArgs getArgs(int count, TokenSource input) {
+		args.bind(this, count, input);
+		return args;
+	}
+
+	/** Create a snapshot of the stack as ParseState objects, for error reporting.
+	 */
+	Parser.ParseState[] toParseStates(TokenSource input) {
+		Parser.ParseState[] result= new Parser.ParseState[size];
+		for (int i=0; i<size; i++)
+			result[i]= new Parser.ParseState(states[i], getValue(i), Parser.toSourcePos(input, starts[i], ends[i]));
+		return result;
+	}
+
+	private void grow() {
+		int newCap= states.length*2;
+		int[] newStates= new int[newCap];
+		Object[] newValues= new Object[newCap];
+		long[] newStarts= new long[newCap], newEnds= new long[newCap], newPrims= new long[newCap];
+		System.arraycopy(states, 0, newStates, 0, size);
+		System.arraycopy(values, 0, newValues, 0, size);
+		System.arraycopy(starts, 0, newStarts, 0, size);
+		System.arraycopy(ends, 0, newEnds, 0, size);
+		System.arraycopy(prims, 0, newPrims, 0, size);
+		states= newStates;
+		values= newValues;
+		starts= newStarts;
+		ends= newEnds;
+		prims= newPrims;
+	}
+}
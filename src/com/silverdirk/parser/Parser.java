@@ -1,7 +1,6 @@
 package com.silverdirk.parser;
 
 import java.util.*;
-import com.silverdirk.parser.LR1_Table.ParseAction;
 
 /**
  * <p>Project: Dynamic LR(1) Parsing Library</p>
@@ -28,6 +27,9 @@ import com.silverdirk.parser.LR1_Table.ParseAction;
 public class Parser {
 	ParseRule[] rules;
 	LR1_Table table;
+	PackedLR1_Table packed;
+	boolean trackPositions= true;
+	ThreadLocal threadSession= new ThreadLocal();
 
 	public Parser(Grammar g) {
 		this(g, new LR1_Table(g));
@@ -36,6 +38,53 @@ public class Parser {
 	public Parser(Grammar g, LR1_Table precompiledTable) {
 		rules= g.rules;
 		table= precompiledTable;
+		packed= new PackedLR1_Table(table);
+	}
+
+	/** Get the integer id the parse tables use for a terminal.
+	 * <p>Terminal ids are assigned when the parser is constructed, and are
+	 * only meaningful to this parser.
+	 *
+	 * @param terminal Object A terminal symbol (value or class) used in the grammar
+	 * @return int The id of the terminal, or -1 if it is not part of the grammar
+	 */
+	public int getTerminalId(Object terminal) {
+		return packed.getTerminalId(terminal);
+	}
+
+	/** Turn source position tracking on or off.
+	 * <p>With tracking off, the parser never asks the token source for
+	 * positions, and reduce methods receive a null SourcePos.  This is meant
+	 * for throughput-only parsing (like validation) where nobody looks at
+	 * positions.  Positions are still reported in ParseExceptions.
+	 *
+	 * @param enable boolean Whether reduce methods should receive source positions (default true)
+	 */
+	public void setTrackPositions(boolean enable) {
+		trackPositions= enable;
+	}
+
+	public boolean getTrackPositions() {
+		return trackPositions;
+	}
+
+	/** Get a ParseSession for the calling thread.
+	 * <p>The session is created the first time a thread asks, and kept for
+	 * later calls with the same scan rules, so a server can parse each
+	 * request with <code>parser.getThreadSession(rules).parse(text)</code>
+	 * without any per-parse setup.  If the scan rules differ from the last
+	 * call on this thread, the old session is replaced.
+	 *
+	 * @param scanRules ScanRuleSet[] The scanner states for the session
+	 * @return ParseSession A session private to the calling thread
+	 */
+	public ParseSession getThreadSession(ScanRuleSet[] scanRules) {
+		ParseSession session= (ParseSession) threadSession.get();
+		if (session == null || session.scanRules != scanRules) {
+			session= new ParseSession(this, scanRules);
+			threadSession.set(session);
+		}
+		return session;
 	}
 
 	/** Parse (non-debug).
@@ -64,6 +113,17 @@ public class Parser {
 	 * <p>This parses a token stream using the tables given to the constructor, and
 	 * returns the root of the parse tree.
 	 *
+	 * <p>The parse stack is a set of parallel arrays (see ParseStack) so that
+	 * shifting and reducing don't allocate any bookkeeping objects.  Token
+	 * positions are carried as offsets, and a SourcePos is only built when a
+	 * reduce method asks for one.  Reduce methods that implement
+	 * StackReduceMethod read their symbols directly from the stack.
+	 *
+	 * <p>Values from a PrimitiveTokenSource, and the results of
+	 * LongReduceMethods and DoubleReduceMethods, stay unboxed on the stack
+	 * (except in debug mode), so a numeric grammar can be evaluated without
+	 * allocating a Long or Double for every token and reduction.
+	 *
 	 * <p>It has an optional debugging mode, where GenericparseNodes are returned
 	 * instead of running the user's code during a rule-reduce.
 	 *
@@ -73,73 +133,123 @@ public class Parser {
 	 * @throws ParseException whenever a token is encountered which cannot match a current rule, and if there is no error action registered
 	 */
 	public Object parse(TokenSource input, boolean debug) throws ParseException {
-		ParseState state;
-		ParseAction temp= ParseAction.MkReduce(0);
-		int symbol;
-		int stateCount= table.getStateCount();
-		Stack parseStack= new Stack();
-		parseStack.push(new ParseState(0, null, null));
-		Object nextTok= input.curToken();
+		return parse(input, debug, new ParseStack());
+	}
+
+	Object parse(TokenSource input, boolean debug, ParseStack stack) throws ParseException {
+		int stateCount= packed.getStateCount();
+		stack.clear();
+		stack.push(0, null, OffsetTokenSource.NO_OFFSET, OffsetTokenSource.NO_OFFSET);
+		IntTokenSource kindSource= (input instanceof IntTokenSource)? (IntTokenSource) input : null;
+		OffsetTokenSource offsetSource= (input instanceof OffsetTokenSource)? (OffsetTokenSource) input : null;
+		PrimitiveTokenSource primSource= (input instanceof PrimitiveTokenSource)? (PrimitiveTokenSource) input : null;
+		boolean positions= trackPositions || debug;
+		boolean needToken= true, haveTokObj= false;
+		Object nextTok= null;
+		int nextTokKind= IntTokenSource.UNKNOWN_KIND, nextTokPrim= PrimitiveTokenSource.NOT_PRIMITIVE, nextTokId= -1;
+		int[] nextTokClassActions= null;
+		int shiftCount= 0;
 		while (true) {
-			state= (ParseState) parseStack.peek();
-			ParseAction action;
-			// Check for "optimized" reduce actions
-			if (state.id >= stateCount) {
-				action= temp;
-				temp.rule= state.id - stateCount;
+			if (needToken) {
+				nextTokKind= (kindSource == null)? IntTokenSource.UNKNOWN_KIND : kindSource.curTokenKind();
+				nextTokPrim= (primSource == null)? PrimitiveTokenSource.NOT_PRIMITIVE : primSource.curTokenPrimitive();
+				// A classified primitive token doesn't need to be boxed unless it turns out not to match
+				haveTokObj= nextTokKind == IntTokenSource.UNKNOWN_KIND || nextTokPrim == PrimitiveTokenSource.NOT_PRIMITIVE;
+				nextTok= haveTokObj? input.curToken() : null;
+				nextTokId= (nextTokKind != IntTokenSource.UNKNOWN_KIND)? nextTokKind : packed.getTerminalId(nextTok);
+				nextTokClassActions= null;
+				needToken= false;
 			}
+			int state= stack.topState();
+			int action;
+			// Check for "optimized" reduce actions
+			if (state >= stateCount)
+				action= PackedLR1_Table.makeAction(PackedLR1_Table.REDUCE, state - stateCount);
 			else {
 				// Find the action for this token
-				action= table.getAction(state.id, nextTok);
-				// If we didn't match the value, try matching the class
-				// (not speed-optimal, but very handy)
-				if (action == null) {
-					Class typ= nextTok.getClass();
-					do {
-						action= table.getAction(state.id, typ);
-						typ= typ.getSuperclass();
-					} while (action == null && typ != null);
-					if (action == null) {
-						Object[] expectedSet= table.getOptions(state.id);
-//					action= table.getErrAction(state.id, nextTok, expectedSet, input.curTokenPos());
+				action= nextTokId < 0? PackedLR1_Table.NONE : packed.getAction(state, nextTokId);
+				if (action == PackedLR1_Table.NONE) {
+					if (!haveTokObj) {
+						nextTok= input.curToken();
+						haveTokObj= true;
+					}
+					// If the token source classified the token, it didn't apply here, so try the value
+					if (nextTokKind != IntTokenSource.UNKNOWN_KIND) {
+						int valueId= packed.getTerminalId(nextTok);
+						if (valueId >= 0)
+							action= packed.getAction(state, valueId);
+					}
+					// If we didn't match the value, try matching the class.
+					// The table caches the per-state result for each class, so
+					// we only look it up once per token
+					if (action == PackedLR1_Table.NONE) {
+						if (nextTokClassActions == null)
+							nextTokClassActions= packed.getClassActions(nextTok.getClass());
+						action= nextTokClassActions[state];
+					}
+					if (action == PackedLR1_Table.NONE) {
+						Object[] expectedSet= table.getOptions(state);
+//					action= table.getErrAction(state, nextTok, expectedSet, input.curTokenPos());
 //					if (action == null)
 						throw new ParseException("Unexpected "+nextTok+" encountered",
-							input.getContext(),
-							(ParseState[]) parseStack.toArray(new ParseState[parseStack.size()]),
+							input.getContext(), stack.toParseStates(input),
 							expectedSet, input.curTokenPos());
 					}
 				}
 			}
-			switch (action.type) {
-			case ParseAction.SHIFT:
-				parseStack.push(new ParseState(action.nextState, nextTok, input.curTokenPos()));
+			switch (PackedLR1_Table.actionType(action)) {
+			case PackedLR1_Table.SHIFT:
+				long tokStart, tokEnd;
+				if (!positions)
+					tokStart= tokEnd= OffsetTokenSource.NO_OFFSET;
+				else if (offsetSource != null) {
+					tokStart= offsetSource.curTokenStart();
+					tokEnd= offsetSource.curTokenEnd();
+				}
+				else {
+					SourcePos tokPos= input.curTokenPos();
+					tokStart= tokPos == null? OffsetTokenSource.NO_OFFSET : packLineCol(tokPos.lineStart, tokPos.charStart);
+					tokEnd= tokPos == null? OffsetTokenSource.NO_OFFSET : packLineCol(tokPos.lineEnd, tokPos.charEnd);
+				}
+				if (nextTokPrim != PrimitiveTokenSource.NOT_PRIMITIVE)
+					stack.pushPrimitive(PackedLR1_Table.actionOperand(action), nextTokPrim, primSource.curTokenBits(), tokStart, tokEnd);
+				else
+					stack.push(PackedLR1_Table.actionOperand(action), nextTok, tokStart, tokEnd);
+				// let a streaming token source forget positions that nothing refers to any more
+				if (offsetSource != null && (++shiftCount & RELEASE_INTERVAL_MASK) == 0)
+					offsetSource.releaseOffsetsBefore(stack.oldestOffset(offsetSource.curTokenStart()));
 				input.next();
-				nextTok= input.curToken();
+				needToken= true;
 				break;
-			case ParseAction.ACCEPT:
-				return state.data;
-			case ParseAction.REDUCE:
-				ParseRule rule= rules[action.rule];
-				SourcePos pos= new SourcePos();
-				Object[] symbols= new Object[rule.symbols.length];
-				if (symbols.length > 0) {
-					ParseState st= (ParseState) parseStack.peek();
-					pos.lineEnd= st.pos.lineEnd;
-					pos.charEnd= st.pos.charEnd;
-					for (int i= symbols.length-1; i>0; i--)
-						symbols[i]= ((ParseState) parseStack.pop()).data;
-					st= (ParseState) parseStack.pop();
-					symbols[0]= st.data;
-					pos.lineStart= st.pos.lineStart;
-					pos.charStart= st.pos.charStart;
-				}
-				Object data= debug? new GenericParseNode(rule.getNonterminal(), pos, symbols)
-					: rule.reduce(pos, symbols);
-				state= (ParseState) parseStack.peek();
-				int nextState= table.getStateTrans(state.id, rule.target);
-				parseStack.push(new ParseState(nextState, data, pos));
+			case PackedLR1_Table.ACCEPT:
+				return stack.topValue();
+			case PackedLR1_Table.REDUCE:
+				int ruleIdx= PackedLR1_Table.actionOperand(action);
+				ParseRule rule= rules[ruleIdx];
+				int len= packed.getRuleLength(ruleIdx);
+				long start= stack.spanStart(len), end= stack.spanEnd(len);
+				ReduceArgs args= stack.getArgs(len, positions? input : null);
+				int resultType= debug? PrimitiveTokenSource.NOT_PRIMITIVE : rule.resultType;
+				Object data= null;
+				long bits= 0;
+				if (resultType == PrimitiveTokenSource.LONG)
+					bits= rule.reduceLong(args);
+				else if (resultType == PrimitiveTokenSource.DOUBLE)
+					bits= Double.doubleToRawLongBits(rule.reduceDouble(args));
+				else
+					data= debug? new GenericParseNode(rule.getNonterminal(), args.getSourcePos(), args.toArray())
+						: rule.reduce(args);
+				args.release();
+				stack.pop(len);
+				int nextState= packed.getStateTrans(stack.topState(), packed.getRuleTarget(ruleIdx));
+				if (resultType != PrimitiveTokenSource.NOT_PRIMITIVE)
+					stack.pushPrimitive(nextState, resultType, bits, start, end);
+				else
+					stack.push(nextState, data, start, end);
 				break;
-			case ParseAction.NONASSOC_ERR:
+			case PackedLR1_Table.NONASSOC_ERR:
+				if (!haveTokObj)
+					nextTok= input.curToken();
 				throw new ParseException("Cannot use multiple "+nextTok+" without grouping them. (nonassociative operator)", input.getContext(), input.curTokenPos());
 			default:
 				throw new RuntimeException("Undefined action code");
@@ -147,6 +257,32 @@ public class Parser {
 		}
 	}
 
+	static final int RELEASE_INTERVAL_MASK= 4096-1;
+
+	/** Build the SourcePos for a range of offsets recorded on the parse stack.
+	 * <p>Offsets come from the token source if it is an OffsetTokenSource.
+	 * For any other token source the parser packs the line and column of
+	 * each end of the token's SourcePos into the offsets itself.
+	 */
+	static SourcePos toSourcePos(TokenSource input, long start, long end) {
+		if (input instanceof OffsetTokenSource)
+			return ((OffsetTokenSource) input).getSourcePos(start, end);
+		SourcePos result= new SourcePos();
+		if (start != OffsetTokenSource.NO_OFFSET) {
+			result.lineStart= (int)(start >>> 32);
+			result.charStart= (int) start;
+		}
+		if (end != OffsetTokenSource.NO_OFFSET) {
+			result.lineEnd= (int)(end >>> 32);
+			result.charEnd= (int) end;
+		}
+		return result;
+	}
+
+	static long packLineCol(int line, int col) {
+		return ((long)line << 32) | (col & 0xFFFFFFFFL);
+	}
+
 	/**
 	 * <p>Title: Parse Rule Priorities</p>
 	 * <p>Description: A class that record priority values for parse rules</p>
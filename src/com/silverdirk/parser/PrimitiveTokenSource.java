@@ -0,0 +1,40 @@
+package com.silverdirk.parser;
+
+/**
+ * <p>Project: Dynamic LR(1) Parsing Library</p>
+ * <p>Title: Primitive Token Source</p>
+ * <p>Description: A TokenSource whose tokens may be unboxed long or double values</p>
+ * <p>Copyright: Copyright (c) 2007</p>
+ *
+ * <p>Numeric tokens normally reach the parser as Long or Double objects.  A
+ * token source implementing this interface can instead report the value of
+ * a numeric token as raw bits, and the parser will push it onto its
+ * primitive value stack without boxing it.  LongReduceMethod and
+ * DoubleReduceMethod handlers can then compute with the values directly.
+ *
+ * <p>curToken() must still return the boxed value if it is called, since the
+ * parser needs an object when it can't classify the token by its kind (see
+ * IntTokenSource), or when it reports an error.
+ *
+ * @author Michael Conrad
+ * @version $Revision$
+ */
+public interface PrimitiveTokenSource extends TokenSource {
+	/** Get the primitive type of the current token.
+	 * @return int One of NOT_PRIMITIVE, LONG, or DOUBLE
+	 */
+	public int curTokenPrimitive();
+
+	/** Get the value of the current token as raw bits.
+	 * <p>For LONG tokens this is the value itself, and for DOUBLE tokens it
+	 * is the result of Double.doubleToRawLongBits.
+	 *
+	 * @return long The bits of the current primitive token
+	 */
+	public long curTokenBits();
+
+	public static final int
+		NOT_PRIMITIVE= 0,
+		LONG= 1,
+		DOUBLE= 2;
+}
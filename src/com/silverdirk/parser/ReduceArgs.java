@@ -0,0 +1,158 @@
+package com.silverdirk.parser;
+
+/**
+ * <p>Project: Dynamic LR(1) Parsing Library</p>
+ * <p>Title: Reduce Arguments</p>
+ * <p>Description: A read-only view of the symbols being reduced by a parse rule</p>
+ * <p>Copyright: Copyright (c) 2007</p>
+ *
+ * <p>When the parser reduces a rule, the values of the rule's symbols are the
+ * top N entries of its value stack.  Rather than copying them into a new
+ * Object[] for every reduction, the parser hands a StackReduceMethod one of
+ * these, which reads the stack in place.  The source position of the
+ * reduction is likewise only built if getSourcePos is called.
+ *
+ * <p>Numeric values can be read with getLong and getDouble, which don't box
+ * values that the parser is holding in primitive form (see
+ * LongReduceMethod and DoubleReduceMethod).
+ *
+ * <p>The view is reused by the parser, so it is only valid for the duration
+ * of the reduce call.  Use toArray() to keep a copy of the symbols.
+ *
+ * @author Michael Conrad
+ * @version $Revision$
+ */
+public final class ReduceArgs {
+	ParseStack stack;
+	Object[] values;
+	int base, count;
+	SourcePos pos;
+	TokenSource input;
+	long start, end;
+
+	/** Create a view of an ordinary array of symbols.
+	 * <p>This is how a StackReduceMethod gets called through the older
+	 * ReduceMethod interface.
+	 *
+	 * @param from SourcePos The source position of the symbols (may be null)
+	 * @param symbols Object[] The symbol values
+	 */
+	public ReduceArgs(SourcePos from, Object[] symbols) {
+		values= symbols;
+		count= symbols.length;
+		pos= from;
+		start= end= OffsetTokenSource.NO_OFFSET;
+	}
+
+	ReduceArgs() {
+	}
+
+	/** Point this view at the top 'count' entries of the parse stack.
+	 * <p>If input is null, no source position is available.
+	 */
+	final void bind(ParseStack stack, int count, TokenSource input) {
+		this.stack= stack;
+		this.values= null;
+		this.count= count;
+		this.base= stack.size - count;
+		this.input= input;
+		this.start= stack.spanStart(count);
+		this.end= stack.spanEnd(count);
+		this.pos= null;
+	}
+
+	/** Drop the references to the stack and input.
+	 */
+	final void release() {
+		stack= null;
+		values= null;
+		input= null;
+		pos= null;
+	}
+
+	/** Get the number of symbols in the rule.
+	 * @return int The number of symbol values
+	 */
+	public int size() {
+		return count;
+	}
+
+	/** Get the value of one of the rule's symbols.
+	 *
+	 * @param idx int The index of the symbol within the rule
+	 * @return Object The token or nonterminal value for that symbol
+	 */
+	public Object get(int idx) {
+		checkIdx(idx);
+		return stack != null? stack.getValue(base+idx) : values[idx];
+	}
+
+	/** Get the value of one of the rule's symbols as a long.
+	 * <p>The value must be a primitive on the parse stack, or a Number.
+	 *
+	 * @param idx int The index of the symbol within the rule
+	 * @return long The numeric value of that symbol
+	 */
+	public long getLong(int idx) {
+		checkIdx(idx);
+		return stack != null? stack.getLong(base+idx) : ((Number) values[idx]).longValue();
+	}
+
+	/** Get the value of one of the rule's symbols as a double.
+	 * <p>The value must be a primitive on the parse stack, or a Number.
+	 *
+	 * @param idx int The index of the symbol within the rule
+	 * @return double The numeric value of that symbol
+	 */
+	public double getDouble(int idx) {
+		checkIdx(idx);
+		return stack != null? stack.getDouble(base+idx) : ((Number) values[idx]).doubleValue();
+	}
+
+	private void checkIdx(int idx) {
+		if (idx < 0 || idx >= count)
+			throw new IndexOutOfBoundsException("Symbol "+idx+" of "+count);
+	}
+
+	/** Copy the symbol values into a new array.
+	 * @return Object[] A new array holding the symbol values
+	 */
+	public Object[] toArray() {
+		if (stack == null)
+			return (Object[]) values.clone();
+		Object[] result= new Object[count];
+		for (int i=0; i<count; i++)
+			result[i]= stack.getValue(base+i);
+		return result;
+	}
+
+	/** Get the source position covered by the rule's symbols.
+	 * <p>The SourcePos is built the first time this is called, and the same
+	 * object is returned for the rest of the reduce call.  If the parser is
+	 * not tracking positions, this returns null.
+	 *
+	 * @return SourcePos The coordinates of the symbols, or null if unknown
+	 */
+	public SourcePos getSourcePos() {
+		if (pos == null && input != null)
+			pos= Parser.toSourcePos(input, start, end);
+		return pos;
+	}
+
+	/** Get the offset where the first symbol starts.
+	 * <p>The meaning of the offset depends on the token source (see
+	 * OffsetTokenSource).
+	 *
+	 * @return long The start offset, or NO_OFFSET if unknown
+	 */
+	public long getStartOffset() {
+		return start;
+	}
+
+	/** Get the offset just past where the last symbol ends.
+	 * @return long The end offset, or NO_OFFSET if unknown
+	 */
+	public long getEndOffset() {
+		return end;
+	}
+}
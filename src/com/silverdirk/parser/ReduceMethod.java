@@ -14,7 +14,8 @@ import java.util.ArrayList;
  * multiple parse rules with the same code.
  *
  * <p>Within this interface are several useful implementations for building lists
- * and returning single elements form the parameter list.
+ * and returning single elements form the parameter list.  They implement
+ * StackReduceMethod, so the parser doesn't need to copy the symbols for them.
  *
  * @author Michael Conrad
  * @version $Revision$
@@ -22,7 +23,34 @@ import java.util.ArrayList;
 public interface ReduceMethod {
 	public Object reduce(ParseRule rule, SourcePos from, Object[] symbols);
 
-	public static class PassthroughHandler implements ReduceMethod {
+	/** Base class for handlers written against the ReduceArgs view.
+	 * <p>Subclasses only need to implement reduce(ParseRule, ReduceArgs).
+	 */
+	public static abstract class StackHandler implements StackReduceMethod {
+		public Object reduce(ParseRule rule, SourcePos from, Object[] symbols) {
+			return reduce(rule, new ReduceArgs(from, symbols));
+		}
+	}
+
+	/** Base class for reduce methods producing an unboxed long.
+	 * <p>Subclasses only need to implement reduceLong.
+	 */
+	public static abstract class LongHandler extends StackHandler implements LongReduceMethod {
+		public Object reduce(ParseRule rule, ReduceArgs args) {
+			return new Long(reduceLong(rule, args));
+		}
+	}
+
+	/** Base class for reduce methods producing an unboxed double.
+	 * <p>Subclasses only need to implement reduceDouble.
+	 */
+	public static abstract class DoubleHandler extends StackHandler implements DoubleReduceMethod {
+		public Object reduce(ParseRule rule, ReduceArgs args) {
+			return new Double(reduceDouble(rule, args));
+		}
+	}
+
+	public static class PassthroughHandler extends StackHandler {
 		int fieldIdx;
 		public static final int ALL= -1;
 
@@ -38,9 +66,18 @@ public interface ReduceMethod {
 			else
 				return null;
 		}
+
+		public Object reduce(ParseRule rule, ReduceArgs args) {
+			if (fieldIdx < 0)
+				return args.toArray();
+			else if (args.size() > fieldIdx)
+				return args.get(fieldIdx);
+			else
+				return null;
+		}
 	}
 
-	public static class ElemChooseHandler implements ReduceMethod {
+	public static class ElemChooseHandler extends StackHandler {
 		int[] elemIdxs;
 		public static final int EMPTY= -1;
 		public static final int REMAINDER= -2;
@@ -65,28 +102,28 @@ public interface ReduceMethod {
 			this.elemIdxs= elems;
 		}
 
-		public Object reduce(ParseRule rule, SourcePos from, Object[] symbols) {
-			ArrayList result= new ArrayList(Math.max(elemIdxs.length, symbols.length));
+		public Object reduce(ParseRule rule, ReduceArgs args) {
+			ArrayList result= new ArrayList(Math.max(elemIdxs.length, args.size()));
 			for (int i= 0; i < elemIdxs.length; i++) {
 				if (elemIdxs[i] == EMPTY)
 					result.add(null);
 				else if (elemIdxs[i] == REMAINDER) {
 					int fromIdx= (i == 0) ? 0 : elemIdxs[i - 1];
-					for (int j= fromIdx; j < symbols.length; j++)
-						result.add(symbols[j]);
+					for (int j= fromIdx; j < args.size(); j++)
+						result.add(args.get(j));
 				}
 				else {
-					if (elemIdxs[i] > symbols.length)
+					if (elemIdxs[i] >= args.size())
 						result.add(null);
 					else
-						result.add(symbols[elemIdxs[i]]);
+						result.add(args.get(elemIdxs[i]));
 				}
 			}
-			return new GenericParseNode(rule.getNonterminal(), from, result.toArray());
+			return new GenericParseNode(rule.getNonterminal(), args.getSourcePos(), result.toArray());
 		}
 	}
 
-	public static class ListBuildHandler implements ReduceMethod {
+	public static class ListBuildHandler extends StackHandler {
 		int listIdx, itemIdx;
 
 		public ListBuildHandler(int listIdx, int itemIdx) {
@@ -94,19 +131,19 @@ public interface ReduceMethod {
 			this.itemIdx= itemIdx;
 		}
 
-		public Object reduce(ParseRule rule, SourcePos from, Object[] symbols) {
+		public Object reduce(ParseRule rule, ReduceArgs args) {
 			Object item= null;
 			List list= null;
-			if (symbols.length > listIdx) {
-				if (symbols[listIdx] instanceof List)
-					list= (List) symbols[listIdx];
+			if (args.size() > listIdx) {
+				if (args.get(listIdx) instanceof List)
+					list= (List) args.get(listIdx);
 				else {
 					list= new LinkedList();
-					list.add(symbols[listIdx]);
+					list.add(args.get(listIdx));
 				}
 			}
-			if (symbols.length > itemIdx)
-				item= symbols[itemIdx];
+			if (args.size() > itemIdx)
+				item= args.get(itemIdx);
 			if (list == null)
 				list= new LinkedList();
 			if (item != null) {
@@ -26,6 +26,13 @@ import java.util.regex.*;
  * to return the matched string, or EMIT_NOTHING to tell the scanner not to
  * generate a token from this rule.
  *
+ * <p>A rule can also declare which terminal of the grammar its tokens belong
+ * to.  When the Scanner is bound to a Parser (Scanner.setTokenKinds) it
+ * reports the terminal id of each token along with the token, and the parser
+ * can skip looking the token up.  Plain rules which emit a fixed token
+ * declare that token automatically; subclasses and EMIT_MATCH rules must call
+ * setTerminal to opt in.
+ *
  * @author Michael Conrad
  * @version $Revision$
  */
@@ -33,6 +40,8 @@ public class ScanRule {
 	String pattern;
 	Object token;
 	int stateTrans= NO_STATE_TRANS;
+	Object terminal;
+	boolean terminalDeclared= false;
 
 	static final Pattern regexSpecialChars= Pattern.compile("([]\\[(){}*+?.|\\\\^$])");
 	public static final String escapeLiteralStr(String literal) {
@@ -74,9 +83,67 @@ public class ScanRule {
 		return stateTrans >= 0;
 	}
 
+	/** Declare the grammar terminal that every token from this rule matches.
+	 * <p>The terminal may be a token value or a class, exactly as it appears
+	 * in the parse rules.  Only declare a terminal if <i>every</i> token this
+	 * rule emits should be treated as that terminal; for instance an
+	 * identifier rule using EMIT_MATCH could declare String.class, but then
+	 * its tokens will no longer match keyword strings used as terminals.
+	 *
+	 * @param terminal Object The terminal symbol this rule produces
+	 * @return ScanRule This rule, for convenience in initializers
+	 */
+	public ScanRule setTerminal(Object terminal) {
+		this.terminal= terminal;
+		terminalDeclared= true;
+		return this;
+	}
+
+	/** Get the grammar terminal that this rule's tokens belong to.
+	 * <p>If no terminal was declared, a plain ScanRule which emits a fixed
+	 * token reports that token.  Anything else reports null, meaning the
+	 * parser must classify the tokens itself.
+	 *
+	 * @return Object The terminal symbol, or null if unknown
+	 */
+	public Object getTerminal() {
+		if (terminalDeclared)
+			return terminal;
+		if (getClass() == ScanRule.class && token != EMIT_MATCH && token != EMIT_NOTHING)
+			return token;
+		return null;
+	}
+
+	/** Return the token scanned, and perform other actions.
+	 * <p>This is the method the Scanner calls.  The matched text is a view of
+	 * the scanner's input, valid only during the call, so a rule which
+	 * overrides this method and doesn't ask for Strings costs no allocation.
+	 *
+	 * <p>For a plain ScanRule this returns the token described in the
+	 * constructor (only creating a String for EMIT_MATCH).  For subclasses it
+	 * calls onMatch(String[], Scanner), so existing rules which override that
+	 * method keep working.
+	 *
+	 * @param match MatchedText The text which the rule matched
+	 * @param scanner Scanner The scanner calling this method
+	 * @return Object An object, including NULL, which should be passed as a token to the parser, or EMIT_NOTHING if no token should be generated.
+	 * @throws Exception for convenience to the user overriding this method
+	 */
+	public Object onMatch(MatchedText match, Scanner scanner) throws Exception {
+		if (getClass() != ScanRule.class)
+			return onMatch(match.toGroups(), scanner);
+		if (hasStateTransition())
+			scanner.stateTrans(getStateTransition());
+		return (token == EMIT_MATCH)? match.toString() : token;
+	}
+
 	/** Return the token scanned, and perform other actions.
 	 * The default action is to return the token described in the constructor.
 	 *
+	 * <p>The groups are laid out as they always have been: the matched text
+	 * at both 0 and 1, then group n of the rule's pattern at n+1 (see
+	 * MatchedText.toGroups).
+	 *
 	 * @param scannedData String The "groups" of the Matcher which matched the string
 	 * @param scanner Scanner The scanner calling this method
 	 * @return Object An object, including NULL, which should be passed as a token to the parser, or EMIT_NOTHING if no token should be generated.
@@ -90,6 +157,7 @@ public class ScanRule {
 
 	public static final Object
 		EMIT_MATCH= new Object(),
-		EMIT_NOTHING= new Object();
+		EMIT_NOTHING= new Object(),
+		EMIT_PRIMITIVE= new Object(); // returned by Scanner.emitLong and Scanner.emitDouble
 	public static final int NO_STATE_TRANS= -1;
 }
@@ -1,5 +1,6 @@
 package com.silverdirk.parser;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.regex.*;
 
@@ -9,27 +10,59 @@ import java.util.regex.*;
  * <p>Description: Holds a named set of scan rules representing the options for one state of the Scanner</p>
  * <p>Copyright: Copyright (c) 2004-2006</p>
  *
- * <p>The implementation of this class is clumsy.  See comments at the top of
- * Scanner.java.  As I intend to destroy all the code in this file, I am not
- * going to document it further.
+ * <p>The rules are matched as if they were one big regex alternation
+ * <code>String[] { a, b, c, d } => "(a)|(b)|(c)|(d)"</code>
+ * so the first rule (in order) which matches is the one that gets run.
  *
- * <p>After the rewrite, this class will hold a reference to parameters for a
- * regex engine, so that the scanner can plug the parameters and the current
- * input into the regex engine and come up with a sequence of rules to execute.
+ * <p>Rules whose patterns are regular are compiled into a single LexerDFA,
+ * which finds the matching rule in one pass over the input.  Any rule that
+ * uses features the DFA can't handle is matched with its own Pattern, as are
+ * all the rules when the DFA bails out.
+ *
+ * <p>To avoid trying rules that can't possibly match, each rule set keeps a
+ * table of the rules which can match text starting with a given character.
+ * It is found by asking each Pattern whether it matches (or would need more
+ * input to match) the one-character string, which is exact, and works for
+ * any pattern.  Every ASCII character is checked when the rule set is
+ * created; other characters are checked as they are seen.
+ *
+ * <p>Rules whose pattern is a plain literal (such as those made with
+ * ScanRule.escapeLiteralStr) are compared directly with the text instead of
+ * using their Pattern, and their tokens' text is the literal itself rather
+ * than a copy of the input.  In the DFA, literal rules form a trie of
+ * states, so a set of keyword and operator rules is scanned in one pass
+ * either way.
+ *
+ * <p>For scanning UTF-8 bytes, a second DFA is built (the first time it is
+ * needed) which reads bytes instead of chars.  That one can only be used
+ * if every rule is regular.
  *
  * @author Michael Conrad
  * @version $Revision$
  */
 public class ScanRuleSet {
 	String stateName;
-	Pattern masterRegex;
 	ScanRule[] rules;
-	int[] ruleGroupIdx;
+	int[] ruleGroupCount;
+	Pattern[] rulePatterns;
+	String[] literals; // the text of each rule that is a plain literal, or null
+	// the rules which can match text starting with each char, in order
+	int[][] asciiCandidates;
+	HashMap otherCandidates= new HashMap();
+	int[] allRules;
+	LexerDFA lexer;
+	LexerDFA byteLexer;
+	boolean byteLexerBuilt= false;
 
 	public ScanRuleSet(String name, ScanRule[] rules) {
 		this.stateName= name;
 		this.rules= rules;
-		buildMasterRegex();
+		compilePatterns();
+		buildCandidates();
+		String[] patterns= new String[rules.length];
+		for (int i=0; i<rules.length; i++)
+			patterns[i]= rules[i].pattern;
+		lexer= LexerDFA.build(patterns);
 	}
 
 	public String getName() {
@@ -41,71 +74,215 @@ public class ScanRuleSet {
 		return (ScanRule[]) rules.clone();
 	}
 
-	private void buildMasterRegex() {
-		ruleGroupIdx= new int[rules.length+1];
-		ruleGroupIdx[0]= 1;
-		StringBuffer sb= new StringBuffer("(");
+	private void compilePatterns() {
+		ruleGroupCount= new int[rules.length];
+		rulePatterns= new Pattern[rules.length];
+		literals= new String[rules.length];
 		for (int i=0; i<rules.length; i++) {
+			literals[i]= LexerDFA.literalOf(rules[i].pattern);
 			Pattern p= Pattern.compile(rules[i].pattern);
+			rulePatterns[i]= p;
 			Matcher m= p.matcher("");
 			if (m.lookingAt())
 				throw new RuntimeException("ScanRules must consume at least one character.  The pattern "+rules[i].pattern+" can match an empty string");
-			ruleGroupIdx[i+1]= ruleGroupIdx[i] + 1 + m.groupCount();
-			if (i != 0) sb.append(")|(");
-			sb.append(rules[i].pattern);
+			ruleGroupCount[i]= m.groupCount();
+		}
+	}
+
+	private void buildCandidates() {
+		allRules= new int[rules.length];
+		for (int i=0; i<rules.length; i++)
+			allRules[i]= i;
+		asciiCandidates= new int[128][];
+		HashMap shared= new HashMap();
+		for (int ch=0; ch<128; ch++) {
+			int[] candidates= findCandidates((char) ch);
+			PackedLR1_Table.RowKey key= new PackedLR1_Table.RowKey(candidates);
+			int[] prev= (int[]) shared.get(key);
+			if (prev == null)
+				shared.put(key, prev= candidates);
+			asciiCandidates[ch]= prev;
+		}
+	}
+
+	/** List the rules which might match text starting with 'ch'.
+	 * <p>If a pattern can match some text starting with 'ch', then when
+	 * given just 'ch' it either matches, or runs off the end trying to.
+	 */
+	private int[] findCandidates(char ch) {
+		String text= String.valueOf(ch);
+		int[] result= new int[rules.length];
+		int n= 0;
+		for (int i=0; i<rules.length; i++) {
+			Matcher m= rulePatterns[i].matcher(text);
+			if (m.lookingAt() || m.hitEnd())
+				result[n++]= i;
+		}
+		return LexerDFA.copyOf(result, n);
+	}
+
+	/** Get the rules which might match text starting with 'ch', in order.
+	 */
+	final int[] getCandidates(char ch) {
+		if (ch < 128)
+			return asciiCandidates[ch];
+		if (ch >= 0xD800 && ch < 0xE000)
+			return allRules; // the pattern could match the whole code point
+		synchronized (otherCandidates) {
+			Character key= new Character(ch);
+			int[] result= (int[]) otherCandidates.get(key);
+			if (result == null) {
+				if (otherCandidates.size() >= MAX_CACHED_CHARS)
+					return allRules;
+				otherCandidates.put(key, result= findCandidates(ch));
+			}
+			return result;
+		}
+	}
+
+	static final int MAX_CACHED_CHARS= 1024;
+
+	/** Get the DFA which matches these rules against UTF-8 bytes.
+	 *
+	 * @return LexerDFA The byte DFA, or null if some rule isn't regular
+	 */
+	synchronized LexerDFA getByteLexer() {
+		if (!byteLexerBuilt) {
+			String[] patterns= new String[rules.length];
+			for (int i=0; i<rules.length; i++)
+				patterns[i]= rules[i].pattern;
+			byteLexer= LexerDFA.buildBytes(patterns);
+			byteLexerBuilt= true;
 		}
-		sb.append(')');
-		masterRegex= Pattern.compile(sb.toString());
-		// check for the condition of matching the empty string
-		Matcher m= masterRegex.matcher("");
-		if (m.lookingAt())
-			throw new RuntimeException("BUG: Somehow the master regex can match the empty string, though none of the components can");
-		if (m.groupCount() != ruleGroupIdx[rules.length]-1)
-			throw new RuntimeException("Unexpected number of groups");
+		return byteLexer;
 	}
 
 	static class ScanMatch {
 		int charsConsumed;
 		Object token;
-		public ScanMatch(Object token, int charsConsumed) {
+		int rule;
+		public ScanMatch(Object token, int charsConsumed, int rule) {
+			set(token, charsConsumed, rule);
+		}
+		final ScanMatch set(Object token, int charsConsumed, int rule) {
 			this.token= token;
 			this.charsConsumed= charsConsumed;
+			this.rule= rule;
+			return this;
 		}
 	}
 
-	/** Attempt to match this rule against a characterSource, and return a match if successful.
+	/** Attempt to match the rules against the text at 'start', and return a match if successful.
+	 * <p>The text is matched in place; java.util.regex matchers are borrowed
+	 * from the scanner (which keeps one per pattern) and limited to the
+	 * region [start, end).
 	 *
 	 * @param sender Scanner The scanner object calling this method
-	 * @param source CharSequence The character source to compare against
-	 * @return ScanMatch An object describing the match if successful, or null if no match was found
+	 * @param ruleState int The scanner state this rule set belongs to
+	 * @param text CharSequence The character source to compare against
+	 * @param start int The offset to match at
+	 * @param end int The end of the available text
+	 * @param moreInput boolean Whether the text may continue past 'end'
+	 * @return ScanMatch An object describing the match if successful, null if no match was found, or NEED_MORE if the result depends on text past 'end'
 	 */
-	ScanMatch getMatch(Scanner sender, CharSequence source) {
-		String text= null;
-		Object token= null;
-		int charsConsumed= 0;
+	ScanMatch getMatch(Scanner sender, int ruleState, CharSequence text, int start, int end, boolean moreInput) {
+		int[] candidates= getCandidates(text.charAt(start));
+		if (candidates.length == 0)
+			return null;
+		// a Pattern which stops at half of a surrogate pair doesn't report
+		// hitting the end, so never let a pair straddle it
+		if (moreInput && Character.isHighSurrogate(text.charAt(end-1)))
+			return NEED_MORE;
+		long dfaMatch= LexerDFA.BAIL;
+		if (lexer != null) {
+			dfaMatch= lexer.match(text, start, end, moreInput);
+			if (dfaMatch == LexerDFA.NEED_MORE)
+				return NEED_MORE;
+		}
+		// without the DFA every candidate is tried with its Pattern, otherwise
+		// only the ones the DFA doesn't handle which come before its match
+		int dfaRule= (dfaMatch == LexerDFA.BAIL || dfaMatch == LexerDFA.NO_MATCH)? rules.length : (int)(dfaMatch >>> 32);
+		MatchedText match= sender.matchedText;
 		try {
-			Matcher m= masterRegex.matcher(source);
-			if (m.lookingAt()) {
-				int rule= -1;
-				for (int i=0; rule == -1 && i<rules.length; i++)
-					if (m.start(ruleGroupIdx[i]) != -1)
-						rule= i;
-				String[] groups= collectGroups(m, ruleGroupIdx[rule], ruleGroupIdx[rule+1]);
-				token= rules[rule].onMatch(groups, sender);
-				charsConsumed= m.end();
+			for (int k=0; k<candidates.length && candidates[k] < dfaRule; k++) {
+				int i= candidates[k];
+				if (dfaMatch != LexerDFA.BAIL && lexer.isRegular(i))
+					continue;
+				if (literals[i] != null) {
+					int len= literalMatch(literals[i], text, start, end);
+					if (len < 0 && moreInput)
+						return NEED_MORE;
+					if (len > 0) {
+						match.set(text, start, start+len, ruleState, i, this);
+						return sender.scanMatch.set(rules[i].onMatch(match, sender), len, i);
+					}
+					continue;
+				}
+				Matcher m= sender.getMatcher(ruleState, i, rulePatterns[i]);
+				m.region(start, end);
+				boolean found= m.lookingAt();
+				if (moreInput && m.hitEnd())
+					return NEED_MORE;
+				if (found) {
+					int matchEnd= m.end();
+					match.set(text, start, matchEnd, ruleState, i, this);
+					match.setMatcher(m);
+					return sender.scanMatch.set(rules[i].onMatch(match, sender), matchEnd-start, i);
+				}
 			}
+			if (dfaRule == rules.length)
+				return null;
+			int matchEnd= (int) dfaMatch;
+			match.set(text, start, matchEnd, ruleState, dfaRule, this);
+			return sender.scanMatch.set(rules[dfaRule].onMatch(match, sender), matchEnd-start, dfaRule);
+		}
+		catch (Exception ex) {
+			throw (ex instanceof RuntimeException)? (RuntimeException)ex : new RuntimeException(ex);
+		}
+	}
+
+	/** Match the rules against UTF-8 bytes at 'start', using the byte DFA.
+	 * <p>The matched bytes are only decoded if the rule's onMatch asks the
+	 * MatchedText for characters.
+	 *
+	 * @param sender Scanner The scanner object calling this method
+	 * @param ruleState int The scanner state this rule set belongs to
+	 * @param bytes ByteBuffer The UTF-8 input
+	 * @param start int The offset to match at
+	 * @param end int The end of the input
+	 * @return ScanMatch An object describing the match if successful, or null if no match was found
+	 */
+	ScanMatch getByteMatch(Scanner sender, int ruleState, ByteBuffer bytes, int start, int end) {
+		long dfaMatch= byteLexer.match(bytes, start, end);
+		if (dfaMatch == LexerDFA.NO_MATCH)
+			return null;
+		int rule= (int)(dfaMatch >>> 32);
+		int matchEnd= (int) dfaMatch;
+		try {
+			MatchedText match= sender.matchedText;
+			match.setBytes(bytes, start, matchEnd, ruleState, rule, this);
+			return sender.scanMatch.set(rules[rule].onMatch(match, sender), matchEnd-start, rule);
 		}
 		catch (Exception ex) {
 			throw (ex instanceof RuntimeException)? (RuntimeException)ex : new RuntimeException(ex);
 		}
-		return charsConsumed == 0? null : new ScanMatch(token, charsConsumed);
 	}
 
-	static final String[] collectGroups(Matcher m, int from, int to) {
-		String[] result= new String[to-from+1];
-		result[0]= m.group();
-		for (int i=from; i<to; i++)
-			result[i-from+1]= m.group(i);
-		return result;
+	/** Compare a literal with the text at 'start'.
+	 *
+	 * @return int The length of the literal if it matches, 0 if not, or -1 if the text ends before it is known
+	 */
+	static final int literalMatch(String literal, CharSequence text, int start, int end) {
+		int len= literal.length();
+		for (int i=0; i<len; i++) {
+			if (start+i >= end)
+				return -1;
+			if (text.charAt(start+i) != literal.charAt(i))
+				return 0;
+		}
+		return len;
 	}
+
+	/** Returned by getMatch when the scanner needs to read more input */
+	static final ScanMatch NEED_MORE= new ScanMatch(null, 0, -1);
 }
@@ -1,35 +1,76 @@
 package com.silverdirk.parser;
 
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.regex.*;
+
 /**
  * <p>Project: Dynamic LR(1) Parsing Library</p>
  * <p>Title: Scanner</p>
  * <p>Description: Cheap implementation of a scanner for use with the parser</p>
  * <p>Copyright: Copyright (c) 2004-2006</p>
  *
- * <p>This class should be rewritten as a regex engine which processes multiple
- * regex patterns in parallel looking for the first match, perhaps with a
- * priority system.
+ * <p>The scanner runs the ScanRuleSet of its current state against the
+ * input, and the first rule (in order) that matches produces the next token.
+ * The rule sets match all their regular rules in parallel with a LexerDFA,
+ * and only use java.util.regex for the rules that need it.
+ *
+ * <p>Input can be a CharSequence, a stream of characters, or UTF-8 bytes in
+ * a byte[] or ByteBuffer.  Bytes are scanned without being decoded: the rule
+ * sets run a DFA over the bytes themselves, and only the text of tokens
+ * which need it (EMIT_MATCH rules, and subclasses' onMatch) is decoded.
+ * When scanning bytes, all offsets and columns are counted in bytes.
  *
- * <p>This could almost be accomplished with java.util.regex by taking each scan
- * rule's pattern and merging them into a giant multi-condition regex:
- * <code>String[] { a, b, c, d } => "(a)|(b)|(c)|(d)"</code>
- * and then checking which group was found to determine which rule was matched.
- * However, this would also involve parsing the regexes to determine how many
- * groups the user had used in their pattern for each rule, and by the time I
- * do that I might as well just implement the regex engine.
+ * <p>Line numbers are found from the input: the scanner only keeps track of
+ * offsets, and the first time a position is asked for (curTokenPos,
+ * getSourcePos, getLineNo, or an error) it searches the input up to that
+ * offset for line breaks ("\n", "\r\n" or "\r"), and records where each line
+ * starts.  Positions are then found by a binary search of the line starts,
+ * so no scan rule needs to count lines, and tokens which span lines report
+ * both of their lines.  Rules which call incLineNo or setLineNo switch the
+ * scanner back to counting lines only by those calls, for the rest of the
+ * input.
  *
  * @author Michael Conrad
  * @version $Revision$
  */
-public class Scanner implements TokenSource {
+public class Scanner implements IntTokenSource, OffsetTokenSource, PrimitiveTokenSource {
 	ScanRuleSet[] states;
 	Object[] stateData;
+	boolean ownStateData= true;
 	int state= 0;
 	int pos= 0;
 	int lastPos= 0;
 	int lineNum= 1, lineStart= 0;
+	// whether lines are found by searching the input, rather than by calls to incLineNo
+	boolean autoLines= true;
+	// the offset up to which the input has been searched for line breaks
+	long indexedTo= 0;
+	// every change of line number is recorded, so old offsets can be converted to lines later
+	long[] lineMarkOffsets= new long[] { 0 };
+	int[] lineMarkLines= new int[] { 1 };
+	int lineMarkCount= 1;
 	Object token;
+	int tokenKind= UNKNOWN_KIND;
+	int tokenPrim= NOT_PRIMITIVE;
+	long tokenBits;
+	int tokenState= 0, tokenRule= -1;
+	int[][] ruleKinds;
+	int eofKind= UNKNOWN_KIND;
 	CharSequence data;
+	// when scanning a stream, data is this buffer, and baseOffset is the stream offset of data[0]
+	StreamBuffer stream;
+	long baseOffset= 0;
+	// when scanning UTF-8, the bytes (and data is empty)
+	ByteBuffer bytes;
+	// java.util.regex matchers for the rule sets, created as needed and reused for every token
+	Matcher[][] matchers;
+	// reused for every token
+	final MatchedText matchedText= new MatchedText(this);
+	SymbolTable symbols;
+	final ScanRuleSet.ScanMatch scanMatch= new ScanRuleSet.ScanMatch(null, 0, -1);
 
 	/** Constructor.
 	 *
@@ -46,16 +87,395 @@ public class Scanner implements TokenSource {
 		next();
 	}
 
+	/** Constructor for scanning a stream.
+	 * <p>The characters are read into a buffer as the scanner needs them.
+	 * Text is dropped from the buffer once it is behind the current token
+	 * (except for a little of the current line, for getContext), so the
+	 * memory used depends on the longest token rather than on the size of
+	 * the input.
+	 *
+	 * <p>Token offsets (curTokenStart, curTokenEnd) are counted from the
+	 * start of the stream.  To keep the line information bounded as well,
+	 * the scanner forgets the line numbers of offsets that the parser no
+	 * longer holds (see releaseOffsetsBefore), so build any SourcePos you
+	 * want to keep during the reduce.
+	 *
+	 * @param stateRuleSets ScanRuleSet[] A list of sets of scan rules, one for each state the scanner can reach.
+	 * @param in Reader The characters to scan
+	 * @throws ParseException whever a token cannot be generated, when no rules match the input, or if the Reader throws an IOException
+	 */
+	public Scanner(ScanRuleSet[] stateRuleSets, Reader in) throws ParseException {
+		this(stateRuleSets);
+		reset(in);
+	}
+
+	/** Constructor for scanning a stream of bytes.
+	 * <p>The bytes are decoded as they are read, and otherwise this is the
+	 * same as scanning a Reader.
+	 *
+	 * @param stateRuleSets ScanRuleSet[] A list of sets of scan rules, one for each state the scanner can reach.
+	 * @param in ReadableByteChannel The bytes to scan
+	 * @param charsetName String The encoding of the bytes, such as "UTF-8"
+	 * @throws ParseException whever a token cannot be generated, when no rules match the input, or if the channel throws an IOException
+	 */
+	public Scanner(ScanRuleSet[] stateRuleSets, ReadableByteChannel in, String charsetName) throws ParseException {
+		this(stateRuleSets, Channels.newReader(in, charsetName));
+	}
+
+	/** Constructor for scanning UTF-8 bytes.
+	 * <p>The rules are matched against the bytes directly, which requires
+	 * every rule of every state to be regular (see LexerDFA): no anchors,
+	 * lookaround, back references, possessive quantifiers or flags.
+	 * Malformed UTF-8 doesn't match any rule.
+	 *
+	 * @param stateRuleSets ScanRuleSet[] A list of sets of scan rules, one for each state the scanner can reach.
+	 * @param utf8 ByteBuffer The bytes to scan, from its position to its limit
+	 * @throws ParseException whever a token cannot be generated, or when no rules match the input
+	 * @throws IllegalArgumentException if some rule can't be matched against bytes
+	 */
+	public Scanner(ScanRuleSet[] stateRuleSets, ByteBuffer utf8) throws ParseException {
+		this(stateRuleSets);
+		reset(utf8);
+	}
+
+	/** Constructor for scanning UTF-8 bytes.
+	 * <p>Same as the ByteBuffer constructor, for the whole array.
+	 *
+	 * @param stateRuleSets ScanRuleSet[] A list of sets of scan rules, one for each state the scanner can reach.
+	 * @param utf8 byte[] The bytes to scan
+	 * @throws ParseException whever a token cannot be generated, or when no rules match the input
+	 * @throws IllegalArgumentException if some rule can't be matched against bytes
+	 */
+	public Scanner(ScanRuleSet[] stateRuleSets, byte[] utf8) throws ParseException {
+		this(stateRuleSets, ByteBuffer.wrap(utf8));
+	}
+
+	/** Create a scanner with no input, for ParseSession to reset later.
+	 */
+	Scanner(ScanRuleSet[] stateRuleSets) {
+		if (stateRuleSets == null || stateRuleSets.length < 1)
+			throw new IllegalArgumentException();
+		states= stateRuleSets;
+		stateData= new Object[states.length];
+		data= "";
+		token= EOF;
+	}
+
+	/** Start scanning a new sequence of characters.
+	 * <p>This puts the scanner back into the condition of a newly constructed
+	 * one (state 0, line 1, lines found automatically, all state data null) and scans the first token,
+	 * but keeps its arrays, and the terminal ids from setTokenKinds, so that
+	 * one scanner can be reused for any number of inputs.
+	 *
+	 * @param data CharSequence The sequence of characters to scan
+	 * @throws ParseException whever a token cannot be generated, or when no rules match the input
+	 */
+	public void reset(CharSequence data) throws ParseException {
+		bytes= null;
+		restart(data);
+	}
+
+	/** Start scanning a new stream of characters.
+	 * <p>This is the same as reset(CharSequence), but reads the input as
+	 * described for the Reader constructor.  The buffer of the last stream
+	 * is reused.
+	 *
+	 * @param in Reader The characters to scan
+	 * @throws ParseException whever a token cannot be generated, when no rules match the input, or if the Reader throws an IOException
+	 */
+	public void reset(Reader in) throws ParseException {
+		if (stream == null)
+			stream= new StreamBuffer();
+		stream.reset(in);
+		bytes= null;
+		restart(stream);
+	}
+
+	/** Start scanning new UTF-8 bytes.
+	 * <p>This is the same as reset(CharSequence), but scans the bytes as
+	 * described for the ByteBuffer constructor.  The buffer's position and
+	 * limit are not changed.
+	 *
+	 * @param utf8 ByteBuffer The bytes to scan, from its position to its limit
+	 * @throws ParseException whever a token cannot be generated, or when no rules match the input
+	 * @throws IllegalArgumentException if some rule can't be matched against bytes
+	 */
+	public void reset(ByteBuffer utf8) throws ParseException {
+		for (int i=0; i<states.length; i++)
+			if (states[i].getByteLexer() == null)
+				throw new IllegalArgumentException("The rules of state "+states[i].stateName+" can't be matched against bytes");
+		bytes= utf8.slice();
+		restart("");
+	}
+
+	private void restart(CharSequence data) throws ParseException {
+		this.data= data;
+		baseOffset= 0;
+		if (matchers != null)
+			for (int i=0; i<matchers.length; i++)
+				if (matchers[i] != null)
+					for (int j=0; j<matchers[i].length; j++)
+						if (matchers[i][j] != null)
+							matchers[i][j].reset(data);
+		state= 0;
+		pos= lastPos= 0;
+		lineNum= 1;
+		lineStart= 0;
+		autoLines= true;
+		indexedTo= 0;
+		lineMarkOffsets[0]= 0;
+		lineMarkLines[0]= 1;
+		lineMarkCount= 1;
+		if (ownStateData)
+			java.util.Arrays.fill(stateData, null);
+		else {
+			// don't clobber an array the caller gave to initAllStateData
+			stateData= new Object[states.length];
+			ownStateData= true;
+		}
+		tokenRule= -1;
+		tokenPrim= NOT_PRIMITIVE;
+		next();
+	}
+
 	public Object curToken() {
+		if (token == ScanRule.EMIT_PRIMITIVE)
+			token= (tokenPrim == LONG)? (Object) new Long(tokenBits) : new Double(Double.longBitsToDouble(tokenBits));
 		return token;
 	}
 
+	public int curTokenPrimitive() {
+		return tokenPrim;
+	}
+
+	public long curTokenBits() {
+		return tokenBits;
+	}
+
+	/** Emit a long value as the token, without boxing it.
+	 * <p>Call this from ScanRule.onMatch, and return its result:
+	 * <code>  return scanner.emitLong(value);  </code>
+	 * The parser keeps the value unboxed on its stack, and only creates a
+	 * Long if something reads the token as an Object.
+	 *
+	 * @param value long The value of the token
+	 * @return Object ScanRule.EMIT_PRIMITIVE
+	 */
+	public Object emitLong(long value) {
+		tokenPrim= LONG;
+		tokenBits= value;
+		return ScanRule.EMIT_PRIMITIVE;
+	}
+
+	/** Emit a double value as the token, without boxing it.
+	 * <p>Works the same way as emitLong.
+	 *
+	 * @param value double The value of the token
+	 * @return Object ScanRule.EMIT_PRIMITIVE
+	 */
+	public Object emitDouble(double value) {
+		tokenPrim= DOUBLE;
+		tokenBits= Double.doubleToRawLongBits(value);
+		return ScanRule.EMIT_PRIMITIVE;
+	}
+
+	/** Get the terminal id of the current token.
+	 * <p>This is only known if setTokenKinds has been called, and the rule
+	 * which produced the token declared its terminal.
+	 *
+	 * @return int The parser's id for the token's terminal, or UNKNOWN_KIND
+	 */
+	public int curTokenKind() {
+		return tokenKind;
+	}
+
+	/** Report terminal ids for the given parser along with each token.
+	 * <p>Every scan rule that declares a terminal (see ScanRule.getTerminal)
+	 * has its terminal looked up once, here, so that the parser never needs
+	 * to look up the tokens produced by that rule.  The ids only apply to the
+	 * given parser; pass null to stop reporting ids.
+	 *
+	 * @param parser Parser The parser which will consume this scanner's tokens
+	 */
+	public void setTokenKinds(Parser parser) {
+		if (parser == null) {
+			ruleKinds= null;
+			eofKind= tokenKind= UNKNOWN_KIND;
+			return;
+		}
+		ruleKinds= new int[states.length][];
+		for (int i=0; i<states.length; i++) {
+			ScanRule[] rules= states[i].rules;
+			ruleKinds[i]= new int[rules.length];
+			for (int r=0; r<rules.length; r++) {
+				Object terminal= rules[r].getTerminal();
+				ruleKinds[i][r]= (terminal == null)? UNKNOWN_KIND : parser.getTerminalId(terminal);
+			}
+		}
+		eofKind= parser.getTerminalId(EOF);
+		tokenKind= (token == EOF)? eofKind : kindOf(tokenState, tokenRule);
+	}
+
+	final int kindOf(int ruleState, int rule) {
+		return (ruleKinds == null || rule < 0)? UNKNOWN_KIND : ruleKinds[ruleState][rule];
+	}
+
 	public SourcePos curTokenPos() {
-		return new SourcePos(lineNum, lastPos-lineStart+1, lineNum, pos-lineStart);
+		return getSourcePos(baseOffset+lastPos, baseOffset+pos);
+	}
+
+	/** Get the character offset where the current token starts.
+	 * @return long Offset into the scanned CharSequence
+	 */
+	public long curTokenStart() {
+		return baseOffset+lastPos;
+	}
+
+	/** Get the character offset just past the current token.
+	 * @return long Offset into the scanned CharSequence
+	 */
+	public long curTokenEnd() {
+		return baseOffset+pos;
+	}
+
+	/** Build a SourcePos for a range of character offsets.
+	 * <p>The start and end are each given the line they fall on, and the
+	 * column within it.  If the rules count lines with incLineNo, the line
+	 * number is the one that was in effect at the start offset, and both
+	 * columns are measured from the start of that line.
+	 *
+	 * @param start long A character offset, or NO_OFFSET
+	 * @param end long A character offset, or NO_OFFSET
+	 * @return SourcePos The line and column coordinates of the range
+	 */
+	public SourcePos getSourcePos(long start, long end) {
+		SourcePos result= new SourcePos();
+		if (autoLines)
+			indexLines(Math.max(start, end));
+		int mark= findLineMark(start >= 0? start : end);
+		if (mark < 0)
+			return result;
+		if (start >= 0) {
+			result.lineStart= lineMarkLines[mark];
+			result.charStart= (int)(start-lineMarkOffsets[mark]+1);
+		}
+		if (end >= 0) {
+			// the end is on the line of the last char in the range
+			if (autoLines && end > start && end > 0)
+				mark= Math.max(findLineMark(end-1), mark);
+			result.lineEnd= lineMarkLines[mark];
+			result.charEnd= (int)(end-lineMarkOffsets[mark]);
+		}
+		return result;
+	}
+
+	/** Search the input for line breaks, up to the given offset, and record
+	 * where each line starts.
+	 * <p>When scanning a stream, this is done for all the text before it is
+	 * discarded from the buffer.
+	 */
+	final void indexLines(long upTo) {
+		int i= (int)(indexedTo-baseOffset);
+		int limit= (bytes != null)? bytes.limit() : data.length();
+		int end= (int) Math.min(upTo-baseOffset, limit);
+		boolean moreInput= (data == stream && !stream.eof);
+		for (; i<end; i++) {
+			int ch= (bytes != null)? bytes.get(i) : data.charAt(i);
+			if (ch == '\r') {
+				if (i+1 < limit) {
+					if (((bytes != null)? bytes.get(i+1) : data.charAt(i+1)) == '\n')
+						continue; // the line ends after the \n
+				}
+				else if (moreInput)
+					break; // don't know yet whether \n follows
+			}
+			else if (ch != '\n')
+				continue;
+			lineNum++;
+			lineStart= i+1;
+			addLineMark();
+		}
+		if (i > indexedTo-baseOffset)
+			indexedTo= baseOffset+i;
+	}
+
+	/** Find the last line mark at or before the offset.
+	 */
+	final int findLineMark(long offset) {
+		if (offset < lineMarkOffsets[0])
+			return -1; // unknown, or released
+		int low= 0, high= lineMarkCount-1;
+		while (low < high) {
+			int mid= (low+high+1) >>> 1;
+			if (lineMarkOffsets[mid] <= offset)
+				low= mid;
+			else
+				high= mid-1;
+		}
+		return low;
+	}
+
+	/** Record that the line number changed at the current position.
+	 */
+	final void addLineMark() {
+		long offset= baseOffset+lineStart;
+		if (lineMarkOffsets[lineMarkCount-1] == offset)
+			lineMarkCount--; // replace a mark at the same offset
+		else if (lineMarkCount == lineMarkOffsets.length) {
+			long[] newOffsets= new long[lineMarkCount*2];
+			int[] newLines= new int[lineMarkCount*2];
+			System.arraycopy(lineMarkOffsets, 0, newOffsets, 0, lineMarkCount);
+			System.arraycopy(lineMarkLines, 0, newLines, 0, lineMarkCount);
+			lineMarkOffsets= newOffsets;
+			lineMarkLines= newLines;
+		}
+		lineMarkOffsets[lineMarkCount]= offset;
+		lineMarkLines[lineMarkCount]= lineNum;
+		lineMarkCount++;
+	}
+
+	/** Forget the line numbers of offsets before the given one.
+	 * <p>This only has an effect when scanning a stream, where the parser
+	 * calls it periodically with the oldest offset on its stack, so that the
+	 * line information doesn't grow with the size of the input.
+	 * getSourcePos returns zeros for offsets which have been released.
+	 *
+	 * @param offset long The oldest offset still in use
+	 */
+	public void releaseOffsetsBefore(long offset) {
+		if (data != stream)
+			return;
+		int mark= findLineMark(offset);
+		if (mark > 0) {
+			lineMarkCount-= mark;
+			System.arraycopy(lineMarkOffsets, mark, lineMarkOffsets, 0, lineMarkCount);
+			System.arraycopy(lineMarkLines, mark, lineMarkLines, 0, lineMarkCount);
+		}
 	}
 
 	public String getContext() {
-		return data.subSequence(lineStart, Math.min(pos+20, data.length())).toString();
+		int from= lineStart;
+		if (autoLines) {
+			// the line of the current token
+			long tokenStart= baseOffset+lastPos;
+			indexLines(tokenStart);
+			int mark= findLineMark(tokenStart);
+			from= (mark < 0)? 0 : (int)(lineMarkOffsets[mark]-baseOffset);
+		}
+		if (bytes != null)
+			return decodeUtf8(bytes, Math.max(from, 0), Math.min(pos+20, bytes.limit()));
+		return data.subSequence(Math.max(from, 0), Math.min(pos+20, data.length())).toString();
+	}
+
+	static final Charset UTF8= Charset.forName("UTF-8");
+
+	/** Decode a range of UTF-8 bytes, with malformed bytes becoming U+FFFD.
+	 */
+	static String decodeUtf8(ByteBuffer bytes, int start, int end) {
+		ByteBuffer range= bytes.duplicate();
+		range.limit(end);
+		range.position(start);
+		return UTF8.decode(range).toString();
 	}
 
 	/** Advance to the next token.
@@ -69,15 +489,28 @@ public class Scanner implements TokenSource {
 		token= ScanRule.EMIT_NOTHING;
 		while (token == ScanRule.EMIT_NOTHING) {
 			lastPos= pos; // beginning of the char range we will find
-			if (pos >= data.length()) {
+			int end= (bytes != null)? bytes.limit() : data.length();
+			if (pos >= end && !(data == stream && fill())) {
 				token= EOF;
+				tokenKind= eofKind;
+				tokenPrim= NOT_PRIMITIVE;
 				break;
 			}
 			ScanRuleSet curState= states[state];
-			CharSequence bufferTail= data.subSequence(pos, data.length());
+			tokenState= state;
 			ScanRuleSet.ScanMatch match;
 			try {
-				match= curState.getMatch(this, bufferTail);
+				if (bytes != null)
+					match= curState.getByteMatch(this, state, bytes, pos, end);
+				else while (true) {
+					match= curState.getMatch(this, state, data, pos, data.length(), data == stream && !stream.eof);
+					if (match != ScanRuleSet.NEED_MORE)
+						break;
+					fill();
+				}
+			}
+			catch (ParseException ex) {
+				throw ex;
 			}
 			catch (Exception ex) {
 				throw new ParseException(ex.getClass().getName()+": "+ex.getMessage(), getContext(), curTokenPos());
@@ -86,6 +519,10 @@ public class Scanner implements TokenSource {
 				if (match.charsConsumed <= 0)
 					throw new RuntimeException("Error in spec: scan rule can potentially match empty string");
 				token= match.token;
+				if (token != ScanRule.EMIT_PRIMITIVE)
+					tokenPrim= NOT_PRIMITIVE;
+				tokenRule= match.rule;
+				tokenKind= kindOf(tokenState, tokenRule);
 				pos+= match.charsConsumed;
 			}
 			else
@@ -93,6 +530,132 @@ public class Scanner implements TokenSource {
 		}
 	}
 
+	/** Read more of the stream into the buffer.
+	 * <p>Text before the current token is discarded first, except for up to
+	 * MAX_CONTEXT chars of the current line.
+	 *
+	 * @return boolean False if the stream has ended
+	 */
+	final boolean fill() throws ParseException {
+		if (stream.eof)
+			return false;
+		if (autoLines)
+			indexLines(baseOffset+pos); // before the text is discarded
+		int keepFrom= Math.max(Math.min(lineStart, pos), pos - MAX_CONTEXT);
+		if (keepFrom > 0) {
+			stream.discard(keepFrom);
+			baseOffset+= keepFrom;
+			pos-= keepFrom;
+			lastPos-= keepFrom;
+			lineStart= Math.max(lineStart-keepFrom, -1); // -1 when the start of the line is gone
+		}
+		try {
+			return stream.read();
+		}
+		catch (IOException ex) {
+			throw new ParseException("Error reading input: "+ex.getMessage(), getContext(), curTokenPos());
+		}
+	}
+
+	static final int MAX_CONTEXT= 256;
+
+	/** The buffer holding the part of a stream that is being scanned.
+	 */
+	static final class StreamBuffer implements CharSequence {
+		char[] buf= new char[16*1024];
+		int len;
+		Reader in;
+		boolean eof;
+
+		void reset(Reader in) {
+			this.in= in;
+			len= 0;
+			eof= false;
+		}
+
+		/** Drop the first 'count' chars.
+		 */
+		void discard(int count) {
+			len-= count;
+			System.arraycopy(buf, count, buf, 0, len);
+		}
+
+		/** Read at least one more char, growing the buffer if it is full.
+		 */
+		boolean read() throws IOException {
+			if (len == buf.length) {
+				char[] newBuf= new char[buf.length*2];
+				System.arraycopy(buf, 0, newBuf, 0, len);
+				buf= newBuf;
+			}
+			int count= in.read(buf, len, buf.length-len);
+			if (count < 0) {
+				eof= true;
+				return false;
+			}
+			len+= count;
+			return true;
+		}
+
+		public int length() {
+			return len;
+		}
+
+		public char charAt(int index) {
+			if (index >= len)
+				throw new IndexOutOfBoundsException();
+			return buf[index];
+		}
+
+		public CharSequence subSequence(int start, int end) {
+			if (end > len || start > end)
+				throw new IndexOutOfBoundsException();
+			return new String(buf, start, end-start);
+		}
+
+		public String toString() {
+			return new String(buf, 0, len);
+		}
+	}
+
+	/** Intern the text of tokens in a symbol table.
+	 * <p>With a symbol table, MatchedText.toString (and so EMIT_MATCH rules,
+	 * and the groups given to onMatch(String[], Scanner)) returns the table's
+	 * String for the token, and only creates one for text it hasn't seen.
+	 * The table is kept across reset, so it can be shared by all the inputs
+	 * a scanner reads.
+	 *
+	 * @param symbols SymbolTable The table to use, or null to stop interning
+	 */
+	public void setSymbolTable(SymbolTable symbols) {
+		this.symbols= symbols;
+	}
+
+	public SymbolTable getSymbolTable() {
+		return symbols;
+	}
+
+	/** Get this scanner's matcher for one of the patterns of a rule set.
+	 * <p>Each pattern gets one Matcher on the scanner's input, which is
+	 * reused (with a new region) for every token.
+	 *
+	 * @param ruleState int The state whose rule set owns the pattern
+	 * @param rule int The index of the rule
+	 * @param pattern Pattern The pattern to match
+	 * @return Matcher A matcher for the pattern on the current input
+	 */
+	final Matcher getMatcher(int ruleState, int rule, Pattern pattern) {
+		if (matchers == null)
+			matchers= new Matcher[states.length][];
+		Matcher[] row= matchers[ruleState];
+		if (row == null)
+			row= matchers[ruleState]= new Matcher[states[ruleState].rules.length];
+		Matcher m= row[rule];
+		if (m == null)
+			m= row[rule]= pattern.matcher(data);
+		return m;
+	}
+
 	/** Initialize the data for each state.
 	 * <p>Each state gets "stateData" where temporary values can be stored.  This
 	 * fnction can be used to initialize the state data for all the states used
@@ -103,6 +666,7 @@ public class Scanner implements TokenSource {
 		if (newStateData.length != states.length)
 			throw new RuntimeException("Array length mismatch");
 		stateData= newStateData;
+		ownStateData= false;
 	}
 
 	/** Get the stateData for all states, as an array
@@ -147,19 +711,26 @@ public class Scanner implements TokenSource {
 	}
 
 	/** Get the index of the current line.
-	 * <p>These values are 1-based by default, though the scan rules can set the
-	 * line number to any value they choose.
+	 * <p>This is the line at the end of the current token.  These values are
+	 * 1-based by default, though the scan rules can set the line number to
+	 * any value they choose.
 	 * @return int The index of the current line.
 	 */
 	public int getLineNo() {
+		if (autoLines)
+			indexLines(baseOffset+pos);
 		return lineNum;
 	}
 
 	/** Increment the current line number.
+	 * <p>The first call to this (or setLineNo) stops the scanner finding line
+	 * breaks itself, so that lines are only counted by these calls.
 	 */
 	public void incLineNo() {
+		countLinesManually();
 		lineNum++;
 		lineStart= pos;
+		addLineMark();
 	}
 
 	/** Set the current line number to an arbitrary value.
@@ -170,7 +741,23 @@ public class Scanner implements TokenSource {
 	 * @param newVal int The new lineNo value
 	 */
 	public void setLineNo(int newVal) {
+		countLinesManually();
 		lineNum= newVal;
 		lineStart= pos;
+		addLineMark();
+	}
+
+	/** Forget the lines found in the input, and count them only by calls to
+	 * incLineNo and setLineNo from now on.
+	 */
+	private void countLinesManually() {
+		if (!autoLines)
+			return;
+		autoLines= false;
+		lineNum= 1;
+		lineStart= Math.min(lineStart, pos);
+		lineMarkOffsets[0]= 0;
+		lineMarkLines[0]= 1;
+		lineMarkCount= 1;
 	}
 }
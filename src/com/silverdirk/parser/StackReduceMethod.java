@@ -0,0 +1,27 @@
+package com.silverdirk.parser;
+
+/**
+ * <p>Project: Dynamic LR(1) Parsing Library</p>
+ * <p>Title: Stack Reduce Method</p>
+ * <p>Description: A ReduceMethod which reads its symbols directly off the parse stack</p>
+ * <p>Copyright: Copyright (c) 2007</p>
+ *
+ * <p>The parser calls reduce(ParseRule, ReduceArgs) on handlers implementing
+ * this interface, which lets them look at the symbols without the parser
+ * allocating an array or a SourcePos for the reduction.  The older
+ * three-argument reduce is still required so the handler can be used
+ * anywhere a ReduceMethod is; ReduceMethod.StackHandler implements it by
+ * wrapping the array in a ReduceArgs.
+ *
+ * @author Michael Conrad
+ * @version $Revision$
+ */
+public interface StackReduceMethod extends ReduceMethod {
+	/** Reduce the symbols to an object.
+	 *
+	 * @param rule ParseRule The rule being reduced
+	 * @param args ReduceArgs A view of the symbol values, valid only during this call
+	 * @return Object An object representing the target of the rule
+	 */
+	public Object reduce(ParseRule rule, ReduceArgs args);
+}
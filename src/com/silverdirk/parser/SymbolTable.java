@@ -0,0 +1,164 @@
+package com.silverdirk.parser;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Project: Dynamic LR(1) Parsing Library</p>
+ * <p>Title: Symbol Table</p>
+ * <p>Description: Interns the text of scanned tokens, so repeated names share one String</p>
+ * <p>Copyright: Copyright (c) 2007</p>
+ *
+ * <p>When a Scanner has a symbol table (Scanner.setSymbolTable), the text of
+ * every token it produces (such as identifiers emitted with EMIT_MATCH) is
+ * looked up here first, by hashing the characters in place in the input.
+ * If the same text was seen before, the earlier String is returned and no
+ * new one is created, so a parse tree of a large input holds one String per
+ * distinct name rather than one per occurrence.
+ *
+ * <p>Unlike String.intern, the table belongs to whoever created it, so its
+ * lifetime can be one parse, one ParseSession, or anything else.  To keep
+ * it from growing without bound on inputs with many distinct tokens, it is
+ * emptied when it reaches its maximum size, after which it fills up again
+ * with the tokens currently being seen.
+ *
+ * <p>A symbol table is not thread-safe, so it should only be shared by
+ * scanners running on the same thread.
+ *
+ * @author Michael Conrad
+ * @version $Revision$
+ */
+public class SymbolTable {
+	String[] table;
+	int[] hashes;
+	int count;
+	int maxSymbols;
+
+	static final int DEFAULT_MAX_SYMBOLS= 64*1024;
+
+	/** Create a symbol table holding up to 65536 symbols.
+	 */
+	public SymbolTable() {
+		this(DEFAULT_MAX_SYMBOLS);
+	}
+
+	/** Create a symbol table.
+	 *
+	 * @param maxSymbols int The number of symbols at which the table is emptied
+	 */
+	public SymbolTable(int maxSymbols) {
+		if (maxSymbols < 1)
+			throw new IllegalArgumentException();
+		this.maxSymbols= maxSymbols;
+		table= new String[16];
+		hashes= new int[16];
+	}
+
+	/** Get the number of symbols in the table.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/** Forget all the symbols.
+	 */
+	public void clear() {
+		java.util.Arrays.fill(table, null);
+		count= 0;
+	}
+
+	/** Get the canonical String for a String.
+	 *
+	 * @param text String Some text
+	 * @return String An equal String, which is the same object for equal text
+	 */
+	public String intern(String text) {
+		return intern(text, 0, text.length());
+	}
+
+	/** Get the canonical String for a range of characters.
+	 * <p>A String is only created if the text isn't already in the table.
+	 *
+	 * @param text CharSequence The text containing the symbol
+	 * @param start int The start of the symbol
+	 * @param end int The end of the symbol
+	 * @return String The symbol's String, which is the same object for equal text
+	 */
+	public String intern(CharSequence text, int start, int end) {
+		int hash= 0;
+		for (int i=start; i<end; i++)
+			hash= 31*hash + text.charAt(i);
+		int len= end-start, mask= table.length-1;
+		int slot= hash & mask;
+		for (; table[slot] != null; slot= (slot+1) & mask) {
+			if (hashes[slot] != hash || table[slot].length() != len)
+				continue;
+			String symbol= table[slot];
+			int i= 0;
+			while (i < len && symbol.charAt(i) == text.charAt(start+i))
+				i++;
+			if (i == len)
+				return symbol;
+		}
+		String symbol= (text instanceof String)? ((String) text).substring(start, end) : text.subSequence(start, end).toString();
+		return add(symbol, hash, slot);
+	}
+
+	/** Get the canonical String for a range of UTF-8 bytes.
+	 * <p>ASCII is compared byte for byte; anything else is decoded first.
+	 */
+	String intern(ByteBuffer bytes, int start, int end) {
+		int hash= 0;
+		for (int i=start; i<end; i++) {
+			int b= bytes.get(i);
+			if (b < 0)
+				return intern(Scanner.decodeUtf8(bytes, start, end)); // not ASCII
+			hash= 31*hash + b;
+		}
+		int len= end-start, mask= table.length-1;
+		int slot= hash & mask;
+		for (; table[slot] != null; slot= (slot+1) & mask) {
+			if (hashes[slot] != hash || table[slot].length() != len)
+				continue;
+			String symbol= table[slot];
+			int i= 0;
+			while (i < len && symbol.charAt(i) == bytes.get(start+i))
+				i++;
+			if (i == len)
+				return symbol;
+		}
+		return add(Scanner.decodeUtf8(bytes, start, end), hash, slot);
+	}
+
+	/** Add a symbol at the empty slot where its lookup ended.
+	 */
+	private String add(String symbol, int hash, int slot) {
+		if (count >= maxSymbols)
+			clear();
+		else if ((count+1)*2 > table.length) {
+			grow();
+			slot= hash & (table.length-1);
+			while (table[slot] != null)
+				slot= (slot+1) & (table.length-1);
+		}
+		table[slot]= symbol;
+		hashes[slot]= hash;
+		count++;
+		return symbol;
+	}
+
+	private void grow() {
+		String[] oldTable= table;
+		int[] oldHashes= hashes;
+		table= new String[oldTable.length*2];
+		hashes= new int[oldTable.length*2];
+		int mask= table.length-1;
+		for (int i=0; i<oldTable.length; i++)
+			if (oldTable[i] != null) {
+				int slot= oldHashes[i] & mask;
+				while (table[slot] != null)
+					slot= (slot+1) & mask;
+				table[slot]= oldTable[i];
+				hashes[slot]= oldHashes[i];
+			}
+	}
+}
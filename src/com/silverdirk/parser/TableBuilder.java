@@ -38,15 +38,42 @@ public class TableBuilder {
 	HashMap productionMap= new HashMap();
 	HashMap terminals= new HashMap();
 	HashMap nonterminals= new HashMap();
-	HashMap firstSets= new HashMap();
-	HashMap cc= new HashMap(); // cc == Canonical Collection, as seen in the text
+	Object[] terminalList;  // terminal by id, after the constructor
+	Nonterminal[] nonterminalList; // nonterminal by id, likewise
+	int[] terminalHash;     // and its hashCode
+	int words;              // the length of a bitset of terminals, with room for outerId
+	int outerId;            // the id after the terminals, which closure's Expansions use for the lookaheads from outside
+	HashMap ruleInfo= new HashMap(); // map of ParseRule => RuleInfo
+	long[][] firstSets;     // the terminals that can begin each nonterminal, by id
+	boolean[] nullable;     // whether each nonterminal can be empty, by id
+	Expansion[] expansions; // the closure of each nonterminal, by id, once needed
+	int closureCount= 0;    // the number of calls to closure, to tell which RuleInfo.closureOptions are current
+	HashMap lookaheadSets= new HashMap(); // map of BitsKey => interned TerminalSet, see intern
+	ArrayList lookaheadList= new ArrayList(); // and by id
+	BitsKey lookaheadProbe= new BitsKey(); // for looking them up
+	ArrayList itemRules= new ArrayList(); // the ParseRule of each item id, see getItemId
+	HashMap cc= new HashMap(); // cc == Canonical Collection, as seen in the text; map of Kernel => ItemSetEntry
+	boolean lr0Items= false;   // whether the states are LR(0) (closed with closureLR0)
+	int stateCount= 0;
 	Set rootFollowSet;
+	TerminalSet rootLookahead; // rootFollowSet, interned
+	ParseRule goalRule;        // GOAL -> (null) start, the item the parser starts with
 	List transitions= new ArrayList();
 	List reductions= new ArrayList();
 	java.io.PrintStream debugOutput;
 	int acceptState= -1;
+	long[] clashLookaheads; // the terminals of cells where two different actions met, even if resolved by priority
+	long[] keepApart;       // lookaheads which buildMinimalLR1Collection never merges
+	long[] mergedLookaheads; // and the lookaheads it did merge, where the merged kernels differed
 	private static Nonterminal GOAL= new Nonterminal("#Goal#");
 	static Set EOF_SET= Collections.singleton(TokenSource.EOF);
+	static final Set NO_LOOKAHEAD= Collections.EMPTY_SET;
+
+	/** Kinds of table that can be built (see Grammar.tableType) */
+	public static final int
+		CANONICAL_LR1= 0, // one state per set of LR(1) items
+		LALR1= 1,         // LR(0) states with LALR(1) lookaheads
+		MINIMAL_LR1= 2;   // LR(1) states, merged where that can't cause conflicts
 
 	public static final class Tables {
 		public Map[] actionTable;
@@ -58,10 +85,18 @@ public class TableBuilder {
 		return generate(startSymbol, EOF_SET, rules, priorities, null);
 	}
 	public static final Tables generate(Nonterminal startSymbol, Set startSymFollowSet, ParseRule[] rules, Priorities priorities, java.io.PrintStream debug) {
+		return generate(startSymbol, startSymFollowSet, rules, priorities, CANONICAL_LR1, debug);
+	}
+	public static final Tables generate(Nonterminal startSymbol, Set startSymFollowSet, ParseRule[] rules, Priorities priorities, int tableType, java.io.PrintStream debug) {
 		TableBuilder tb= new TableBuilder(startSymbol, startSymFollowSet, rules, priorities);
 		tb.debugOutput= debug;
 		tb.buildFirstSets();
-		tb.buildCanonicalCollection();
+		switch (tableType) {
+		case CANONICAL_LR1: tb.buildCanonicalCollection(); break;
+		case LALR1:         tb.buildLALRCollection(); break;
+		case MINIMAL_LR1:   return tb.buildMinimalLR1Tables();
+		default: throw new IllegalArgumentException("Unknown table type "+tableType);
+		}
 		return tb.buildTables();
 	}
 
@@ -73,6 +108,28 @@ public class TableBuilder {
 		catalogSymbol(start);
 		for (int i=0; i<rules.length; i++)
 			processRule(rules[i]);
+		for (Iterator itr= startSymFollowSet.iterator(); itr.hasNext();)
+			catalogSymbol(itr.next());
+		terminalList= new Object[terminals.size()];
+		terminalHash= new int[terminals.size()];
+		for (Iterator itr= terminals.entrySet().iterator(); itr.hasNext();) {
+			Map.Entry e= (Map.Entry) itr.next();
+			int id= ((Integer) e.getValue()).intValue();
+			terminalList[id]= e.getKey();
+			terminalHash[id]= e.getKey().hashCode();
+		}
+		nonterminalList= new Nonterminal[nonterminals.size()];
+		for (Iterator itr= nonterminals.entrySet().iterator(); itr.hasNext();) {
+			Map.Entry e= (Map.Entry) itr.next();
+			nonterminalList[((Integer) e.getValue()).intValue()]= (Nonterminal) e.getKey();
+		}
+		outerId= terminalList.length;
+		words= (outerId+64) >>> 6;
+		clashLookaheads= new long[words];
+		keepApart= new long[words];
+		mergedLookaheads= new long[words];
+		rootLookahead= intern(getLookaheadBits(startSymFollowSet));
+		goalRule= new ParseRule(GOAL, new Object[] { null, start });
 	}
 
 	/** Process the rule, recording all its symbols and adding it to a reverse map of target-symbol => production
@@ -102,10 +159,6 @@ public class TableBuilder {
 				terminals.put(sym, new Integer(terminals.size()));
 	}
 
-	int getItemSetIdx(HashSet itemSet) {
-		return ((ItemSetEntry) cc.get(itemSet)).idx;
-	}
-
 	int getNontermIdx(Nonterminal nonterm) {
 		return ((Integer)nonterminals.get(nonterm)).intValue();
 	}
@@ -118,18 +171,113 @@ public class TableBuilder {
 		return (List) productionMap.get(nt);
 	}
 
+	RuleInfo getRuleInfo(ParseRule rule) {
+		RuleInfo info= (RuleInfo) ruleInfo.get(rule);
+		if (info == null) {
+			int[] ids= new int[rule.symbols.length];
+			for (int i=0; i<ids.length; i++) {
+				Object sym= rule.symbols[i];
+				if (sym instanceof Nonterminal)
+					ids[i]= ~getNontermIdx((Nonterminal) sym);
+				else if (sym != null)
+					ids[i]= getTermIdx(sym);
+			}
+			info= new RuleInfo(rule, ids);
+			ruleInfo.put(rule, info);
+		}
+		return info;
+	}
+
+	/** Get the symbols of a rule as ids.
+	 * <p>A terminal is its id, and a nonterminal is the complement (~) of its
+	 * id, so nonterminals are the negative ones.  (The GOAL rule's first
+	 * symbol, which is never looked at, is 0.)
+	 */
+	int[] getSymbolIds(ParseRule rule) {
+		return getRuleInfo(rule).symbols;
+	}
+
+	/** Get the FIRST sets of each suffix of a rule, computing them the first time.
+	 * <p>Must not be called before buildFirstSets.
+	 */
+	RuleInfo getRuleSuffixes(ParseRule rule) {
+		RuleInfo info= getRuleInfo(rule);
+		if (info.suffixFirst == null) {
+			int[] symbols= info.symbols;
+			info.suffixFirst= new long[symbols.length+1][];
+			info.suffixNullable= new boolean[symbols.length+1];
+			info.suffixFirst[symbols.length]= new long[words];
+			info.suffixNullable[symbols.length]= true;
+			int first= (rule.target == GOAL)? 1 : 0; // the GOAL rule's first symbol isn't real
+			for (int i=symbols.length-1; i>=first; i--) {
+				long[] bits;
+				if (symbols[i] >= 0) {
+					bits= new long[words];
+					TerminalSet.add(bits, symbols[i]);
+				}
+				else if (nullable[~symbols[i]]) {
+					bits= (long[]) info.suffixFirst[i+1].clone();
+					TerminalSet.addAll(bits, firstSets[~symbols[i]]);
+					info.suffixNullable[i]= info.suffixNullable[i+1];
+				}
+				else
+					bits= firstSets[~symbols[i]];
+				info.suffixFirst[i]= bits;
+			}
+		}
+		return info;
+	}
+
 	/** Get the 'firstSet' for a terminal or nonterminal.
 	 * <p>The 'firstSet' of a nonterminal was calculated by 'buildFirstSets'.
 	 * The 'firstSet' of a terminal is the terminal itself.
 	 *
+	 * <p>The table building algorithms use the bitsets in 'firstSets' and
+	 * 'nullable' directly; this is for testing and debugging.
+	 *
 	 * @param symbol The nonterminal or terminal symbol in question
-	 * @return A set of terminal symbols that can begin an instance of this symbol
+	 * @return A set of terminal symbols that can begin an instance of this symbol, and EMPTY if it can be empty
 	 */
 	Set getFirstSet(Object symbol) {
-		if (symbol instanceof Nonterminal)
-			return (HashSet) firstSets.get(symbol);
-		else
+		if (!(symbol instanceof Nonterminal))
 			return Collections.singleton(symbol);
+		int id= getNontermIdx((Nonterminal) symbol);
+		HashSet result= new HashSet(new TerminalSet(firstSets[id], this));
+		if (nullable[id])
+			result.add(EMPTY);
+		return result;
+	}
+
+	boolean isNullable(Object symbol) {
+		return (symbol instanceof Nonterminal) && nullable[getNontermIdx((Nonterminal) symbol)];
+	}
+
+	/** Get the set of terminals with these bits, shared with any equal set already made.
+	 * <p>The array can be changed afterward without affecting the set.
+	 */
+	TerminalSet intern(long[] bits) {
+		lookaheadProbe.set(bits);
+		TerminalSet set= (TerminalSet) lookaheadSets.get(lookaheadProbe);
+		if (set == null) {
+			set= new TerminalSet((long[]) bits.clone(), this);
+			set.id= lookaheadList.size();
+			BitsKey key= new BitsKey();
+			key.set(set.bits);
+			lookaheadSets.put(key, set);
+			lookaheadList.add(set);
+		}
+		return set;
+	}
+
+	/** Get the bits of a set of terminals, which must not be modified.
+	 */
+	long[] getLookaheadBits(Set lookahead) {
+		if (lookahead instanceof TerminalSet)
+			return ((TerminalSet) lookahead).bits;
+		long[] bits= new long[words];
+		for (Iterator itr= lookahead.iterator(); itr.hasNext();)
+			TerminalSet.add(bits, getTermIdx(itr.next()));
+		return bits;
 	}
 
 	/** Calculate the set of terminals that could be seen before each nonterminal.
@@ -142,55 +290,115 @@ public class TableBuilder {
 	 * the list of parse rules.
 	 *
 	 * <p>The sets are maintained within fields of this class, and only used for
-	 * the table building algorithm.
+	 * the table building algorithm.  Each is a bitset of terminal ids, and
+	 * whether the nonterminal can be empty is kept separately in 'nullable'.
 	 */
 	void buildFirstSets() {
-		firstSets.clear();
-		for (Iterator itr= nonterminals.keySet().iterator(); itr.hasNext();)
-			firstSets.put(itr.next(), new HashSet());
+		firstSets= new long[nonterminals.size()][words];
+		nullable= new boolean[nonterminals.size()];
+		expansions= new Expansion[nonterminals.size()];
 		boolean changed= true;
 		while (changed) {
 			changed= false;
 			for (int i=0; i<rules.length; i++) {
-				Set firstSet= getFirstSet(rules[i].target);
-				Object[] symbols= rules[i].symbols;
-				boolean containedEmpty= true;
-				Set symbolFirstSet;
-				if (symbols == null) symbols= new Object[0];
-				for (int b= 0; containedEmpty && b<symbols.length; b++) {
-					symbolFirstSet= getFirstSet(symbols[b]);
-					containedEmpty= symbolFirstSet.remove(EMPTY);
-					changed= changed || firstSet.addAll(symbolFirstSet);
-					if (containedEmpty) symbolFirstSet.add(EMPTY);
+				int target= getNontermIdx(rules[i].target);
+				long[] firstSet= firstSets[target];
+				int[] symbols= getSymbolIds(rules[i]);
+				int b= 0;
+				for (; b<symbols.length; b++) {
+					int sym= symbols[b];
+					if (sym >= 0) {
+						changed|= TerminalSet.add(firstSet, sym);
+						break;
+					}
+					changed|= TerminalSet.addAll(firstSet, firstSets[~sym]);
+					if (!nullable[~sym])
+						break;
 				}
 				// if we left the loop because we ran out of elements, then it means all of the elements could be empty-string
-				// so add EMPTY as a possible first for our production rule's target
-				if (containedEmpty)
-					changed= changed || firstSet.add(EMPTY);
+				// so the production rule's target can be empty
+				if (b == symbols.length && !nullable[target])
+					changed= nullable[target]= true;
 			}
 		}
 	}
 
-	/** Append a new set of LR1Items to the canonical collection.
+	/** Get a number for an item's rule and position, which is the same for all its lookaheads.
+	 */
+	int getItemId(ParseRule rule, int placeholder) {
+		RuleInfo info= getRuleInfo(rule);
+		if (info.itemBase < 0) {
+			info.itemBase= itemRules.size();
+			for (int i=0; i<=rule.symbols.length; i++)
+				itemRules.add(rule);
+		}
+		return info.itemBase + placeholder;
+	}
+
+	/** Get the Kernel which identifies the state with these kernel items.
+	 */
+	Kernel getKernel(Collection kernelItems) {
+		long[] packed= new long[kernelItems.size()];
+		int i= 0;
+		for (Iterator itr= kernelItems.iterator(); itr.hasNext();) {
+			LR1Item item= (LR1Item) itr.next();
+			TerminalSet lookahead= (item.lookahead instanceof TerminalSet)?
+				(TerminalSet) item.lookahead : intern(getLookaheadBits(item.lookahead));
+			packed[i++]= ((long) getItemId(item.rule, item.placeholder) << 32) | lookahead.id;
+		}
+		return new Kernel(packed);
+	}
+
+	/** Get the kernel items of a state back from its Kernel.
+	 */
+	HashSet getKernelItems(Kernel kernel) {
+		HashSet result= new HashSet();
+		for (int i=0; i<kernel.items.length; i++) {
+			int item= (int) (kernel.items[i] >>> 32);
+			ParseRule rule= (ParseRule) itemRules.get(item);
+			int placeholder= item - getRuleInfo(rule).itemBase;
+			result.add(new LR1Item(rule, placeholder, (Set) lookaheadList.get((int) kernel.items[i])));
+		}
+		return result;
+	}
+
+	/** Get the complete set of items of a state.
+	 * <p>The canonical collection only keeps the kernel of each state, so
+	 * this computes the closure again.
+	 */
+	HashSet getItemSet(ItemSetEntry entry) {
+		HashSet kernelItems= getKernelItems(entry.kernel);
+		return lr0Items? closureLR0(kernelItems) : closure(kernelItems);
+	}
+
+	/** Append a new parse state to the canonical collection.
 	 * <p>This is called each time a new parse state is generated.  The
 	 * object returned represents the <code>CC<sub>i</sub> = { ... }</code>
-	 * notation seen in the text.
+	 * notation seen in the text, though it only keeps the kernel items of
+	 * the state; the rest are found with 'closure' when the state is
+	 * processed.
 	 *
-	 * <p>If a debugging stream is enabled the set is written as a string;
-	 * after repeated calls this generates a list much like that used in the
-	 * examples in the text.
-	 *
-	 * @param itemSet The newly generated set of items.
-	 * @return An object representing the set of items.
+	 * @param kernel The kernel of the newly generated state
+	 * @return An object representing the state
 	 */
-	private ItemSetEntry appendParseState(HashSet itemSet) {
-		ItemSetEntry result= new ItemSetEntry(cc.size(), itemSet);
-		cc.put(itemSet, result);
-		if (debugOutput != null)
-			debugOutput.println(result);
+	private ItemSetEntry appendParseState(Kernel kernel) {
+		ItemSetEntry result= new ItemSetEntry(stateCount++, kernel);
+		cc.put(kernel, result);
 		return result;
 	}
 
+	/** Write a state's items to the debugging stream, if enabled.
+	 * <p>After repeated calls this generates a list much like that used in
+	 * the examples in the text.
+	 */
+	private void debugState(ItemSetEntry entry, HashSet itemSet) {
+		if (debugOutput != null) {
+			entry.itemSet= itemSet;
+			debugOutput.println(entry);
+			entry.itemSet= null;
+		}
+	}
+
 	/** Build the canonical collection of parse states.
 	 * <p>This algorithm (based on pseudocode and discussion in the text) computes
 	 * every possible state the parser can reach from the initial rule, and
@@ -207,44 +415,41 @@ public class TableBuilder {
 	 * <p>For each possible path, the algorithm calculates the new set of rules
 	 * and their progress, and if this is a new unique set it creates a parse
 	 * state for it.  Transitions are then added to a list which will later
-	 * be converted to SHIFTs or entries in the GOTO table.
+	 * be converted to SHIFTs or entries in the GOTO table.  States are
+	 * identified by their kernel (the items advanced into them), so the
+	 * closure of a state is only calculated once, when it is processed.
 	 *
 	 * <p>The the reductions and the transitions are the product of this algorithm.
 	 * The parse states can be discarded afterward, though they might be usable
 	 * for new improvements to the tables, such as error handling.
 	 */
 	void buildCanonicalCollection() {
-		LR1Item primerGoal= new LR1Item(new ParseRule(GOAL, new Object[] { null, start }), 1, rootFollowSet);
-		HashSet curItemSet;
+		LR1Item primerGoal= new LR1Item(goalRule, 1, rootLookahead);
 		LinkedList worklist= new LinkedList();
 
-		curItemSet= closure(new HashSet(Collections.singleton(primerGoal)));
-//		curItemSet.remove(primerGoal);
-		appendParseState(curItemSet);
-		worklist.add(curItemSet);
+		worklist.add(appendParseState(getKernel(Collections.singleton(primerGoal))));
 		while (worklist.size() > 0) {
-			curItemSet= (HashSet) worklist.removeFirst();
-			int curIdx= getItemSetIdx(curItemSet);
+			ItemSetEntry cur= (ItemSetEntry) worklist.removeFirst();
+			HashSet curItemSet= closure(getKernelItems(cur.kernel));
+			debugState(cur, curItemSet);
 			HashMap paths= new HashMap();
+			HashMap nextKernels= advanceAll(curItemSet, paths);
 			for (Iterator items= curItemSet.iterator(); items.hasNext();) {
 				LR1Item item= (LR1Item) items.next();
-				if (item.placeholder < item.rule.symbols.length)
-					// collect 'SHIFT's for after this loop
-					addHighestPriorityPath(paths, item.rule.symbols[item.placeholder], priorities.get(item.rule));
-				else
+				if (item.placeholder == item.rule.symbols.length)
 					// 'ACCEPT' actions get added as reductions, for now
-					reductions.add(new Reduction(curIdx, item.rule, item.lookahead));
+					reductions.add(new Reduction(cur.idx, item.rule, item.lookahead));
 			}
 			for (Iterator pathTerms= paths.entrySet().iterator(); pathTerms.hasNext();) {
 				Map.Entry path= (Map.Entry) pathTerms.next();
 				Object symbol= path.getKey();
-				HashSet nextState= calcNextState(curItemSet, symbol);
-				ItemSetEntry entry= (ItemSetEntry) cc.get(nextState);
+				Kernel nextKernel= getKernel((HashSet) nextKernels.get(symbol));
+				ItemSetEntry entry= (ItemSetEntry) cc.get(nextKernel);
 				if (entry == null) { // its a new one
-					entry= appendParseState(nextState);
-					worklist.add(nextState);
+					entry= appendParseState(nextKernel);
+					worklist.add(entry);
 				}
-				transitions.add(new Transition(curIdx, entry.idx, symbol, ((Integer)path.getValue()).intValue()));
+				transitions.add(new Transition(cur.idx, entry.idx, symbol, ((Integer)path.getValue()).intValue()));
 			}
 		}
 	}
@@ -268,35 +473,36 @@ public class TableBuilder {
 			paths.put(symbol, new Integer(priority));
 	}
 
-	/** Caculate the next state reached from the current state after recognizing the given symbol.
+	/** Calculate the kernels of the states reached from the current state after recognizing each symbol.
 	 * <p>Part of buildCanonicalCollection.
 	 *
-	 * <p>This simply creates a new rule set and adds all rules which can be
-	 * advanced by the given symbol.  A new instance of each matching rule is
-	 * creates with its 'position' advanced.
-	 *
-	 * <p>The closure is also calculated, to include other rules which might now
-	 * be reached.
+	 * <p>Each item which can be advanced is copied with its 'position'
+	 * advanced, into the kernel for the symbol after its position, and the
+	 * symbol is added to the paths (see addHighestPriorityPath).
 	 *
 	 * @param fromState The set of LR1 items in the current parse state
-	 * @param symbol The symbol with which to advance each rule
-	 * @return The closure of the new state reached
+	 * @param paths The map of paths to fill in
+	 * @return A map of symbol => HashSet of the advanced LR1 items
 	 */
-	private HashSet calcNextState(HashSet fromState, Object symbol) {
-		HashSet nextState= new HashSet();
-		Iterator items= fromState.iterator();
-		while (items.hasNext()) {
+	private HashMap advanceAll(HashSet fromState, HashMap paths) {
+		HashMap nextKernels= new HashMap();
+		for (Iterator items= fromState.iterator(); items.hasNext();) {
 			LR1Item cur= (LR1Item) items.next();
-			if (cur.placeholder < cur.rule.symbols.length)
-				if (cur.rule.symbols[cur.placeholder].equals(symbol))
-					nextState.add(new LR1Item(cur.rule, cur.placeholder+1, cur.lookahead));
+			if (cur.placeholder < cur.rule.symbols.length) {
+				Object symbol= cur.rule.symbols[cur.placeholder];
+				addHighestPriorityPath(paths, symbol, priorities.get(cur.rule));
+				HashSet nextKernel= (HashSet) nextKernels.get(symbol);
+				if (nextKernel == null)
+					nextKernels.put(symbol, nextKernel= new HashSet());
+				nextKernel.add(new LR1Item(cur.rule, cur.placeholder+1, cur.lookahead));
+			}
 		}
-		return closure(nextState);
+		return nextKernels;
 	}
 
 	/** Calculate the closure of the current set of items, modifying the set.
-	 * <p>This is a direct implementation of the Closure algorithm pseudocode
-	 * from the text.
+	 * <p>This computes the same result as the Closure algorithm pseudocode
+	 * from the text, but from a cached Expansion of each nonterminal.
 	 *
 	 * <p>Conceptually, this function adds any new rules to the set which the
 	 * parser could now be processing.  In other words, any nonterminal at the
@@ -305,87 +511,598 @@ public class TableBuilder {
 	 * 'position 0' in this state.
 	 *
 	 * <p>Details:<br/>
-	 * This function expands all possible nonterminal symbols in each LR1 item
-	 * which are at the placeholder using every rule for that nonterminal.
-	 * For each rule expanded, it then also expands leading nonterminal symbols.
-	 *
-	 * <p>Along the way, it calculates all the possible lookahead terminals which
-	 * could appear after an expansion of the rule.  At the end, it uses the
-	 * list of rules and their corresponding lookahead sets to create new LR1
-	 * items, which it adds to the itemSet, forming the closure.
+	 * The rules reached by expanding a nonterminal, and the lookaheads they
+	 * get, are the same in every state, except for the lookaheads which come
+	 * from after the nonterminal (its FIRST of the rest of the rule, and the
+	 * item's own lookaheads if the rest can be empty).  So getExpansion works
+	 * out each nonterminal's expansion once, with a placeholder for those
+	 * outer lookaheads, and this function substitutes the real ones for each
+	 * item.  At the end, it uses the list of rules and their corresponding
+	 * lookahead sets to create new LR1 items, which it adds to the itemSet,
+	 * forming the closure.
 	 *
 	 * <p>This algorithm depends on itemSet not starting with any productions with
 	 * a placeholder of zero.  This is always true because the only sets closure
-	 * is called on are generated by calcNextState, which only adds items if it
-	 * moves the placeholder.  The initial 'primer' item set is handled
-	 * specially so as not to violate this algorithm.
-	 * (see source code of buildCanonicalCollection)
+	 * is called on are kernels, which only have items whose placeholder moved.
+	 * The initial 'primer' item set is handled specially so as not to violate
+	 * this algorithm.  (see source code of buildCanonicalCollection)
 	 *
 	 * @param itemSet The set of LR1 items to compute the closure for
 	 * @return The same set object with the new items added
 	 */
 	HashSet closure(HashSet itemSet) {
-		LinkedList worklist= new LinkedList();
-		HashMap optionMap= new HashMap(); // map rule to a set of lookaheads that can appear after it
+		// the rules reached, whose closureOptions are the lookaheads that can appear after them
+		ArrayList reached= new ArrayList();
+		closureCount++;
 		for (Iterator itr= itemSet.iterator(); itr.hasNext();) {
 			LR1Item item= (LR1Item) itr.next();
 			if (item.placeholder < item.rule.symbols.length)
-				if (item.rule.symbols[item.placeholder] instanceof Nonterminal)
-					buildRuleOptions(item.rule, item.placeholder, item.lookahead, optionMap, worklist);
+				if (item.rule.symbols[item.placeholder] instanceof Nonterminal) {
+					RuleInfo info= getRuleSuffixes(item.rule);
+					// the lookaheads from outside the expansion
+					long[] options= info.suffixFirst[item.placeholder+1];
+					if (info.suffixNullable[item.placeholder+1]) {
+						options= (long[]) options.clone();
+						TerminalSet.addAll(options, getLookaheadBits(item.lookahead));
+					}
+					Expansion exp= getExpansion(~info.symbols[item.placeholder]);
+					for (int i=0; i<exp.rules.length; i++) {
+						RuleInfo rule= exp.rules[i];
+						if (rule.closureCount != closureCount) {
+							rule.closureCount= closureCount;
+							if (rule.closureOptions == null)
+								rule.closureOptions= new long[words];
+							else
+								Arrays.fill(rule.closureOptions, 0);
+							reached.add(rule);
+						}
+						long[] ruleOps= rule.closureOptions;
+						TerminalSet.addAll(ruleOps, exp.lookaheads[i]);
+						if (exp.propagates[i])
+							TerminalSet.addAll(ruleOps, options);
+					}
+				}
+		}
+		for (int i=0; i<reached.size(); i++) {
+			RuleInfo rule= (RuleInfo) reached.get(i);
+			itemSet.add(new LR1Item(rule.rule, 0, intern(rule.closureOptions)));
 		}
+		return itemSet;
+	}
+
+	/** Get the rules reached by expanding a nonterminal, and their lookaheads, computing them the first time.
+	 * <p>Part of 'closure'.
+	 *
+	 * <p>This is the Closure algorithm of the text, for an item with the
+	 * nonterminal after its placeholder, and the lookahead 'outerId'.  Each
+	 * rule's lookaheads come from FIRST of what follows the nonterminal it
+	 * expands, and if that can be empty, from the lookaheads of the rule
+	 * which the nonterminal is in.  Any that are 'outerId' came from outside.
+	 *
+	 * @param nonterm The id of the nonterminal
+	 * @return Its Expansion
+	 */
+	Expansion getExpansion(int nonterm) {
+		if (expansions[nonterm] != null)
+			return expansions[nonterm];
+		LinkedHashMap optionMap= new LinkedHashMap(); // map of rule => bits of its lookaheads
+		LinkedList worklist= new LinkedList();
+		long[] outer= new long[words];
+		TerminalSet.add(outer, outerId);
+		addRuleOptions(nonterm, outer, optionMap, worklist);
 		while (!worklist.isEmpty()) {
 			ParseRule rule= (ParseRule) worklist.removeFirst();
-			buildRuleOptions(rule, 0, (Set) optionMap.get(rule), optionMap, worklist);
+			RuleInfo info= getRuleSuffixes(rule);
+			long[] options= info.suffixFirst[1];
+			if (info.suffixNullable[1]) {
+				options= (long[]) options.clone();
+				TerminalSet.addAll(options, (long[]) optionMap.get(rule));
+			}
+			addRuleOptions(~info.symbols[0], options, optionMap, worklist);
 		}
-		for (Iterator itr= optionMap.entrySet().iterator(); itr.hasNext();) {
+		Expansion exp= new Expansion(optionMap.size());
+		int i= 0;
+		for (Iterator itr= optionMap.entrySet().iterator(); itr.hasNext(); i++) {
 			Map.Entry ent= (Map.Entry) itr.next();
-			itemSet.add(new LR1Item((ParseRule)ent.getKey(), 0, (Set)ent.getValue()));
+			long[] bits= (long[]) ent.getValue();
+			exp.rules[i]= getRuleInfo((ParseRule) ent.getKey());
+			exp.propagates[i]= (bits[outerId >>> 6] & (1L << outerId)) != 0;
+			bits[outerId >>> 6]&= ~(1L << outerId);
+			exp.lookaheads[i]= bits;
 		}
-		return itemSet;
+		return expansions[nonterm]= exp;
 	}
 
-	/** Find any new options for rules expanded from this rule.
-	 * <p>This is part of the 'closure' algorithm, moved to a separate function so
-	 * that it could be called from two places.
+	/** Add lookahead options to each rule of a nonterminal.
+	 * <p>Part of getExpansion.  A rule which is new or gets new options,
+	 * and which starts with a nonterminal, is added to the worklist to
+	 * pass them on to that nonterminal's rules.
 	 *
-	 * @param rule The current rule to expand a nonterminal of
-	 * @param symbolIdx The index to expand in this rule
-	 * @param outerOptions The possible lookahead symbols for 'rule'
-	 * @param optionMap The map of rule-to-option being built in 'closure'
+	 * @param nonterm The id of the nonterminal being expanded
+	 * @param options The bits of the possible lookahead symbols after it
+	 * @param optionMap The map of rule-to-option being built
 	 * @param worklist a list of rules that need (re?)investigated
 	 */
-	private void buildRuleOptions(ParseRule rule, int symbolIdx, Set outerOptions, HashMap optionMap, LinkedList worklist) {
-		// see what lookahead options we have for this expansion
-		Set options= new HashSet();
-		options.add(EMPTY);
-		for (int i=symbolIdx+1; i<rule.symbols.length && options.contains(EMPTY); i++) {
-			options.remove(EMPTY);
-			options.addAll(getFirstSet(rule.symbols[i]));
-		}
-		if (options.remove(EMPTY))
-			options.addAll(outerOptions);
-		// now see what we're expanding
-		Nonterminal expandSym= (Nonterminal) rule.symbols[symbolIdx];
-		// and list these options as possible lookaheads for these rules
-		Iterator rules= getProductionRules(expandSym).iterator();
+	private void addRuleOptions(int nonterm, long[] options, HashMap optionMap, LinkedList worklist) {
+		Iterator rules= getProductionRules(nonterminalList[nonterm]).iterator();
 		while (rules.hasNext()) {
 			ParseRule curRule= (ParseRule) rules.next();
-			HashSet ruleOps= (HashSet) optionMap.get(curRule);
-			if (ruleOps == null) {
-				ruleOps= new HashSet();
+			long[] ruleOps= (long[]) optionMap.get(curRule);
+			boolean changed= (ruleOps == null);
+			if (changed) {
+				ruleOps= new long[words];
 				optionMap.put(curRule, ruleOps);
 			}
 			// only add to worklist if it changed, and if its expandable
-			if (ruleOps.addAll(options))
+			if (TerminalSet.addAll(ruleOps, options) || changed)
 				if (curRule.symbols.length > 0)
 					if (curRule.symbols[0] instanceof Nonterminal)
 						worklist.add(curRule);
 		}
 	}
 
+	/** Build the LR(0) collection of parse states, with LALR(1) lookaheads for its reductions.
+	 * <p>This is the alternative to buildCanonicalCollection, and produces the
+	 * same 'transitions' and 'reductions' for buildTables.  The states are
+	 * those of the LR(0) automaton, which has one state per set of rule
+	 * positions no matter which lookaheads reach it, so there are far fewer
+	 * of them than LR(1) states.  The lookaheads of each reduction are then
+	 * found with the relations of DeRemer & Pennello, "Efficient Computation
+	 * of LALR(1) Look-Ahead Sets" (TOPLAS 4:4, 1982):
+	 * <pre>
+	 *   DR(p,A)     = the terminals shifted from the state (p,A) leads to
+	 *   Read(p,A)   = DR(p,A) + Read(r,C) for each (p,A) reads (r,C)
+	 *   Follow(p,A) = Read(p,A) + Follow(p',B) for each (p,A) includes (p',B)
+	 *   LA(q,A->w)  = Follow(p,A) for each (q,A->w) lookback (p,A)
+	 * </pre>
+	 * where (p,A) is the transition from state p on nonterminal A, and
+	 * <ul>
+	 * <li>(p,A) reads (r,C) when (p,A) leads to r, and C is nullable
+	 * <li>(p,A) includes (p',B) when B -> x A y, y is nullable, and x leads from p' to p
+	 * <li>(q,A->w) lookback (p,A) when w leads from p to q
+	 * </ul>
+	 * Read and Follow are each computed in one pass with the paper's
+	 * 'digraph' traversal (see Digraph).
+	 *
+	 * <p>The initial transition on the start symbol also reads the start
+	 * symbol's follow set, which is the lookahead of the ACCEPT.
+	 *
+	 * <p>For a grammar which is LALR(1) the resulting tables accept exactly
+	 * the same input as canonical LR(1) tables.  Otherwise, merging the
+	 * LR(1) states that share a core shows up as reduce/reduce conflicts.
+	 * Conflicts decided by priorities are decided with the merged
+	 * lookaheads, though, so a reduction can win over a shift which the
+	 * canonical table would make, and then the table accepts less input.
+	 * (MINIMAL_LR1 avoids that.)
+	 */
+	void buildLALRCollection() {
+		ArrayList states= new ArrayList(); // the item set of each state
+		ArrayList gotos= new ArrayList();  // a map of symbol => Integer state, for each state
+		lr0Items= true;
+		LR1Item primerGoal= new LR1Item(goalRule, 1, NO_LOOKAHEAD);
+		HashSet kernel= new HashSet(Collections.singleton(primerGoal));
+		ItemSetEntry initial= appendParseState(getKernel(kernel));
+		HashSet initialItemSet= closureLR0(kernel);
+		debugState(initial, initialItemSet);
+		states.add(initialItemSet);
+		// states are numbered in the order they are found, so this is a worklist
+		for (int curIdx=0; curIdx<states.size(); curIdx++) {
+			HashSet curItemSet= (HashSet) states.get(curIdx);
+			HashMap paths= new HashMap();
+			HashMap nextKernels= advanceAll(curItemSet, paths);
+			HashMap stateGotos= new HashMap();
+			for (Iterator pathTerms= paths.entrySet().iterator(); pathTerms.hasNext();) {
+				Map.Entry path= (Map.Entry) pathTerms.next();
+				Object symbol= path.getKey();
+				HashSet nextState= (HashSet) nextKernels.get(symbol);
+				Kernel nextKernel= getKernel(nextState);
+				ItemSetEntry entry= (ItemSetEntry) cc.get(nextKernel);
+				if (entry == null) {
+					entry= appendParseState(nextKernel);
+					HashSet nextItemSet= closureLR0(nextState);
+					debugState(entry, nextItemSet);
+					states.add(nextItemSet);
+				}
+				stateGotos.put(symbol, new Integer(entry.idx));
+				transitions.add(new Transition(curIdx, entry.idx, symbol, ((Integer)path.getValue()).intValue()));
+			}
+			gotos.add(stateGotos);
+		}
+
+		// number the transitions on nonterminals
+		ArrayList ntTransitions= new ArrayList();
+		HashMap[] ntTransIdx= new HashMap[states.size()]; // map of Nonterminal => Integer transition
+		HashMap[] lookback= new HashMap[states.size()];   // map of ParseRule => List of Integer transition
+		for (int i=0; i<states.size(); i++) {
+			ntTransIdx[i]= new HashMap();
+			lookback[i]= new HashMap();
+		}
+		for (Iterator itr= transitions.iterator(); itr.hasNext();) {
+			Transition tr= (Transition) itr.next();
+			if (tr.symbol instanceof Nonterminal) {
+				ntTransIdx[tr.fromState].put(tr.symbol, new Integer(ntTransitions.size()));
+				ntTransitions.add(tr);
+			}
+		}
+		int count= ntTransitions.size();
+		long[][] follow= new long[count][];
+		List[] reads= new List[count];
+		List[] includes= new List[count];
+		for (int i=0; i<count; i++) {
+			reads[i]= new ArrayList();
+			includes[i]= new ArrayList();
+		}
+		for (int i=0; i<count; i++) {
+			Transition tr= (Transition) ntTransitions.get(i);
+			// DR and reads
+			follow[i]= new long[words];
+			for (Iterator syms= ((HashMap) gotos.get(tr.toState)).keySet().iterator(); syms.hasNext();) {
+				Object sym= syms.next();
+				if (!(sym instanceof Nonterminal))
+					TerminalSet.add(follow[i], getTermIdx(sym));
+				else if (isNullable(sym))
+					reads[i].add(ntTransIdx[tr.toState].get(sym));
+			}
+			if (tr.fromState == 0 && tr.symbol == start)
+				TerminalSet.addAll(follow[i], rootLookahead.bits);
+			// includes and lookback, by following each rule of the nonterminal from the state
+			for (Iterator prods= getProductionRules((Nonterminal) tr.symbol).iterator(); prods.hasNext();) {
+				ParseRule rule= (ParseRule) prods.next();
+				int nullableFrom= rule.symbols.length;
+				while (nullableFrom > 0 && isNullable(rule.symbols[nullableFrom-1]))
+					nullableFrom--;
+				int state= tr.fromState;
+				for (int pos=0; pos<rule.symbols.length; pos++) {
+					Object sym= rule.symbols[pos];
+					if (sym instanceof Nonterminal && pos+1 >= nullableFrom)
+						includes[((Integer) ntTransIdx[state].get(sym)).intValue()].add(new Integer(i));
+					state= ((Integer) ((HashMap) gotos.get(state)).get(sym)).intValue();
+				}
+				List lb= (List) lookback[state].get(rule);
+				if (lb == null)
+					lookback[state].put(rule, lb= new ArrayList());
+				lb.add(new Integer(i));
+			}
+		}
+		new Digraph(follow, reads);
+		// the sets of a strongly connected component are shared, but might not be part of the same one for 'includes'
+		for (int i=0; i<count; i++)
+			follow[i]= (long[]) follow[i].clone();
+		new Digraph(follow, includes);
+
+		for (int curIdx=0; curIdx<states.size(); curIdx++)
+			for (Iterator items= ((HashSet) states.get(curIdx)).iterator(); items.hasNext();) {
+				LR1Item item= (LR1Item) items.next();
+				if (item.placeholder < item.rule.symbols.length)
+					continue;
+				Set lookahead= rootLookahead;
+				if (item.rule.target != GOAL) {
+					long[] bits= new long[words];
+					List lb= (List) lookback[curIdx].get(item.rule);
+					for (Iterator itr= lb.iterator(); itr.hasNext();)
+						TerminalSet.addAll(bits, follow[((Integer) itr.next()).intValue()]);
+					lookahead= intern(bits);
+				}
+				reductions.add(new Reduction(curIdx, item.rule, lookahead));
+				if (debugOutput != null)
+					debugOutput.println("CC_"+curIdx+" reduce "+item+" on "+lookahead);
+			}
+	}
+
+	/** Build the tables for MINIMAL_LR1.
+	 * <p>Lookaheads propagate through the closure and the transitions the
+	 * same way for every state with a given core, so if the states merged
+	 * into one all have the same lookaheads in 'keepApart', the merged
+	 * state has exactly their actions for those terminals.  For the others
+	 * it has their actions plus perhaps some reductions where they have
+	 * none, and so long as none of its cells for those terminals has two
+	 * actions, that only means an error is found after those reductions
+	 * instead of before, as with LALR(1).
+	 *
+	 * <p>So the tables are built with nothing kept apart, and if any cells
+	 * have two actions (whether priorities decide them or they are reported
+	 * as conflicts) on terminals for which some merged kernels had
+	 * different lookaheads, the collection is built again keeping those
+	 * terminals apart.  If no merge mixed them, keeping them apart would
+	 * have built the same states, so for the usual operator grammar, where
+	 * every expression can be followed by every operator, there is only
+	 * the one build.  The priorities then decide each cell exactly as they
+	 * would in the canonical LR(1) table, and the conflicts reported are
+	 * the canonical ones.
+	 *
+	 * @return The tables, as for buildTables
+	 */
+	Tables buildMinimalLR1Tables() {
+		while (true) {
+			Arrays.fill(mergedLookaheads, 0);
+			buildMinimalLR1Collection();
+			Tables result= buildTables();
+			if (!TerminalSet.intersects(clashLookaheads, mergedLookaheads))
+				return result;
+			TerminalSet.addAll(keepApart, clashLookaheads);
+			if (debugOutput != null)
+				debugOutput.println("Rebuilding, without merging the lookaheads "+intern(keepApart));
+			cc.clear();
+			stateCount= 0;
+			transitions.clear();
+			reductions.clear();
+		}
+	}
+
+	/** Build a collection of LR(1) parse states, merging states which can be merged without conflicts.
+	 * <p>This is Pager's "practical general method" (D. Pager, "A Practical
+	 * General Method for Constructing LR(k) Parsers", Acta Informatica 7,
+	 * 1977).  It works like buildCanonicalCollection, but when a transition
+	 * leads to a kernel with the same LR(0) core as an existing state, and
+	 * the two are "weakly compatible", the new lookaheads are merged into
+	 * the existing state instead of creating another.  Kernels are weakly
+	 * compatible when, for every pair of items i and j (with lookaheads L
+	 * in one kernel and L' in the other),
+	 * <pre>
+	 *   (L<sub>i</sub> &#8745; L'<sub>j</sub> = &#8709; and L'<sub>i</sub> &#8745; L<sub>j</sub> = &#8709;)
+	 *   or L<sub>i</sub> &#8745; L<sub>j</sub> &#8800; &#8709; or L'<sub>i</sub> &#8745; L'<sub>j</sub> &#8800; &#8709;
+	 * </pre>
+	 * which guarantees that, for a grammar without reduce/reduce conflicts,
+	 * the merge introduces none, in that state or any state reached from it.
+	 * States with the same core shift the same terminals, so a merge can
+	 * only have a shift/reduce conflict which one of the merged states had
+	 * already.  For a grammar with no conflicts at all, then, the table has
+	 * none either, and accepts the same input as the canonical LR(1) table.
+	 * For an LALR(1) grammar it has the same number of states as the LALR(1)
+	 * table.
+	 *
+	 * <p>That is not true once priorities decide conflicts: merging adds
+	 * lookaheads to reductions, and a reduction which wins over a shift in
+	 * the merged state takes that shift away from the states that never had
+	 * the conflict, so the table would reject input the canonical one
+	 * accepts.  Merging states which already have reduce/reduce conflicts
+	 * can also spread them to more lookaheads.  So states are never merged
+	 * unless their kernels have the same lookaheads in 'keepApart', and
+	 * buildMinimalLR1Tables fills that with the terminals of every cell
+	 * where two actions meet (see there).
+	 *
+	 * <p>When a merge adds lookaheads to a state, the state is processed
+	 * again to pass them on to its successors.  That can route a transition
+	 * to a different state than before, so only states still reachable at
+	 * the end are kept, and they are numbered in the order they are reached.
+	 */
+	void buildMinimalLR1Collection() {
+		HashMap coreStates= new HashMap(); // core Kernel => List of MergedState
+		LinkedList worklist= new LinkedList();
+		MergedState initial= newMergedState(getKernel(Collections.singleton(new LR1Item(goalRule, 1, rootLookahead))));
+		coreStates.put(initial.core, new ArrayList(Collections.singleton(initial)));
+		initial.queued= true;
+		worklist.add(initial);
+		while (!worklist.isEmpty()) {
+			MergedState cur= (MergedState) worklist.removeFirst();
+			cur.queued= false;
+			HashSet itemSet= closure(cur.getItems(this));
+			cur.paths.clear();
+			HashMap nextKernels= advanceAll(itemSet, cur.paths);
+			cur.successors.clear();
+			for (Iterator pathTerms= cur.paths.keySet().iterator(); pathTerms.hasNext();) {
+				Object symbol= pathTerms.next();
+				MergedState nextKernel= newMergedState(getKernel((HashSet) nextKernels.get(symbol)));
+				MergedState next= null;
+				List sameCore= (List) coreStates.get(nextKernel.core);
+				if (sameCore == null)
+					coreStates.put(nextKernel.core, sameCore= new ArrayList());
+				else
+					for (Iterator candidates= sameCore.iterator(); next == null && candidates.hasNext();) {
+						MergedState candidate= (MergedState) candidates.next();
+						if (candidate.isWeaklyCompatible(nextKernel.lookaheads, keepApart))
+							next= candidate;
+					}
+				if (next == null) {
+					next= nextKernel;
+					sameCore.add(next);
+					next.queued= true;
+					worklist.add(next);
+				}
+				else if (next.mergeLookaheads(nextKernel.lookaheads, mergedLookaheads) && !next.queued) {
+					next.queued= true;
+					worklist.add(next);
+				}
+				cur.successors.put(symbol, next);
+			}
+		}
+
+		// number the states which are still reachable, and record their actions
+		ArrayList reached= new ArrayList();
+		initial.idx= 0;
+		reached.add(initial);
+		for (int curIdx=0; curIdx<reached.size(); curIdx++) {
+			MergedState cur= (MergedState) reached.get(curIdx);
+			HashSet itemSet= cur.getItems(this);
+			ItemSetEntry entry= appendParseState(getKernel(itemSet));
+			closure(itemSet);
+			debugState(entry, itemSet);
+			for (Iterator succ= cur.successors.entrySet().iterator(); succ.hasNext();) {
+				Map.Entry e= (Map.Entry) succ.next();
+				MergedState next= (MergedState) e.getValue();
+				if (next.idx < 0) {
+					next.idx= reached.size();
+					reached.add(next);
+				}
+				transitions.add(new Transition(curIdx, next.idx, e.getKey(), ((Integer) cur.paths.get(e.getKey())).intValue()));
+			}
+			for (Iterator items= itemSet.iterator(); items.hasNext();) {
+				LR1Item item= (LR1Item) items.next();
+				if (item.placeholder == item.rule.symbols.length)
+					reductions.add(new Reduction(curIdx, item.rule, item.lookahead));
+			}
+		}
+	}
+
+	/** Make a MergedState for a kernel, splitting it into its core and its lookaheads.
+	 */
+	private MergedState newMergedState(Kernel kernel) {
+		long[] core= new long[kernel.items.length];
+		long[][] lookaheads= new long[core.length][];
+		for (int i=0; i<core.length; i++) {
+			core[i]= kernel.items[i] & ~0xFFFFFFFFL;
+			lookaheads[i]= (long[]) ((TerminalSet) lookaheadList.get((int) kernel.items[i])).bits.clone();
+		}
+		return new MergedState(new Kernel(core), lookaheads);
+	}
+
+	/**
+	 * <p>Title: Merged State</p>
+	 * <p>Description: A parse state of buildMinimalLR1Collection, whose kernel can grow as states are merged into it</p>
+	 */
+	static final class MergedState {
+		int idx= -1;
+		Kernel core;         // the kernel item ids, without lookaheads
+		long[][] lookaheads; // the bits of the lookaheads of each kernel item, in the order of 'core'
+		HashMap paths= new HashMap();      // map of symbol => Integer priority, as for addHighestPriorityPath
+		HashMap successors= new HashMap(); // map of symbol => MergedState
+		boolean queued;
+
+		MergedState(Kernel core, long[][] lookaheads) {
+			this.core= core;
+			this.lookaheads= lookaheads;
+		}
+
+		/** Get the kernel as LR1Items.
+		 */
+		HashSet getItems(TableBuilder tb) {
+			HashSet result= new HashSet();
+			for (int i=0; i<lookaheads.length; i++) {
+				int item= (int) (core.items[i] >>> 32);
+				ParseRule rule= (ParseRule) tb.itemRules.get(item);
+				result.add(new LR1Item(rule, item - tb.getRuleInfo(rule).itemBase, tb.intern(lookaheads[i])));
+			}
+			return result;
+		}
+
+		/** Check Pager's weak compatibility with another kernel of the same core.
+		 * <p>The kernels must also have the same lookaheads in 'keepApart'.
+		 *
+		 * @param other The lookaheads of the other kernel, in the order of 'core'
+		 */
+		boolean isWeaklyCompatible(long[][] other, long[] keepApart) {
+			boolean subset= true;
+			for (int i=0; i<lookaheads.length; i++) {
+				long[] li= lookaheads[i], oi= other[i];
+				for (int w=0; w<li.length; w++) {
+					if (((li[w] ^ oi[w]) & keepApart[w]) != 0)
+						return false;
+					if ((oi[w] & ~li[w]) != 0)
+						subset= false;
+				}
+			}
+			if (subset)
+				return true; // (the merge changes nothing)
+			for (int i=0; i<lookaheads.length; i++)
+				for (int j=i+1; j<lookaheads.length; j++) {
+					long[] li= lookaheads[i], lj= lookaheads[j];
+					long[] oi= other[i], oj= other[j];
+					if ((TerminalSet.intersects(li, oj) || TerminalSet.intersects(oi, lj))
+						&& !TerminalSet.intersects(li, lj) && !TerminalSet.intersects(oi, oj))
+						return false;
+				}
+			return true;
+		}
+
+		/** Add the lookaheads of another kernel of the same core.
+		 * @param differences Bits to add the lookaheads the kernels don't share to
+		 * @return True if any were new
+		 */
+		boolean mergeLookaheads(long[][] other, long[] differences) {
+			boolean changed= false;
+			for (int i=0; i<lookaheads.length; i++) {
+				long[] li= lookaheads[i], oi= other[i];
+				for (int w=0; w<li.length; w++)
+					differences[w]|= li[w] ^ oi[w];
+				if (TerminalSet.addAll(li, oi))
+					changed= true;
+			}
+			return changed;
+		}
+	}
+
+	/** Calculate the LR(0) closure of the current set of items, modifying the set.
+	 * <p>This adds an item at position 0 for every rule of every nonterminal
+	 * that appears after the placeholder of an item, with no lookaheads.
+	 *
+	 * @param itemSet The set of items to compute the closure for
+	 * @return The same set object with the new items added
+	 */
+	HashSet closureLR0(HashSet itemSet) {
+		LinkedList worklist= new LinkedList(itemSet);
+		HashSet expanded= new HashSet();
+		while (!worklist.isEmpty()) {
+			LR1Item item= (LR1Item) worklist.removeFirst();
+			if (item.placeholder < item.rule.symbols.length) {
+				Object sym= item.rule.symbols[item.placeholder];
+				if (sym instanceof Nonterminal && expanded.add(sym))
+					for (Iterator rules= getProductionRules((Nonterminal) sym).iterator(); rules.hasNext();) {
+						LR1Item newItem= new LR1Item((ParseRule) rules.next(), 0, NO_LOOKAHEAD);
+						if (itemSet.add(newItem))
+							worklist.add(newItem);
+					}
+			}
+		}
+		return itemSet;
+	}
+
+	/**
+	 * <p>Title: Digraph</p>
+	 * <p>Description: The 'digraph' algorithm of DeRemer & Pennello</p>
+	 *
+	 * <p>Given sets F(x) and a relation R, this makes each F(x) the union of
+	 * F(y) for every y reachable from x through R (including x itself).  It
+	 * is Tarjan's strongly connected components search, so it visits each x
+	 * once, and every member of a component ends up with the same array.
+	 * The sets are bitsets of terminal ids (see TerminalSet).
+	 */
+	static final class Digraph {
+		long[][] f;
+		List[] r;
+		int[] depth;
+		int[] stack;
+		int sp;
+
+		/** Compute the closure of the sets, modifying the array.
+		 * @param f The initial set for each x, which are replaced by the results
+		 * @param r The list of Integer y that each x is related to
+		 */
+		Digraph(long[][] f, List[] r) {
+			this.f= f;
+			this.r= r;
+			depth= new int[f.length];
+			stack= new int[f.length];
+			for (int x=0; x<f.length; x++)
+				if (depth[x] == 0)
+					traverse(x);
+		}
+
+		void traverse(int x) {
+			stack[sp++]= x;
+			int d= sp;
+			depth[x]= d;
+			for (Iterator itr= r[x].iterator(); itr.hasNext();) {
+				int y= ((Integer) itr.next()).intValue();
+				if (depth[y] == 0)
+					traverse(y);
+				if (depth[y] < depth[x])
+					depth[x]= depth[y];
+				TerminalSet.addAll(f[x], f[y]);
+			}
+			if (depth[x] == d) {
+				int top;
+				do {
+					top= stack[--sp];
+					depth[top]= Integer.MAX_VALUE;
+					f[top]= f[x];
+				} while (top != x);
+			}
+		}
+	}
+
 	/** Build the action and goto tables from the results of buildCanonicalCollection.
 	 * <p>The inputs are the fields 'transitions' and 'reductions', generated by
-	 * buildCanonicalCollection.
+	 * buildCanonicalCollection or buildLALRCollection.
 	 *
 	 * <p>The algorithm simply adds all the entries to the tables and resolves
 	 * conflicts by comparing priorities of the actions.
@@ -397,8 +1114,8 @@ public class TableBuilder {
 		HashMap rulePrec= new HashMap();
 		Set conflicts= new HashSet();
 		Map acnPriMap= new HashMap();
-		HashMap[] actionTable= new HashMap[cc.size()];
-		HashMap[] gotoTable= new HashMap[cc.size()];
+		HashMap[] actionTable= new HashMap[stateCount];
+		HashMap[] gotoTable= new HashMap[stateCount];
 		int actionTableBuckets= nonterminals.size(); // number of hash buckets
 		int gotoTableBuckets= (terminals.size()/3)<<2;
 		for (int i=0; i<actionTable.length; i++) {
@@ -453,6 +1170,8 @@ public class TableBuilder {
 			decision= acn;
 		else {
 			int prevPri= ((Integer) acnPriMap.get(prevAcn)).intValue();
+			if (prevAcn.type != ParseAction.SHIFT || acn.type != ParseAction.SHIFT)
+				TerminalSet.add(clashLookaheads, getTermIdx(lookahead));
 			if (prevAcn.type == ParseAction.SHIFT && acn.type == ParseAction.SHIFT) {
 				// Special handling for SHIFT-SHIFT conflicts, which aren't really conflicts at all.
 				// We need to update the priority map with whichever priority is highest.
@@ -460,14 +1179,9 @@ public class TableBuilder {
 				if (pri > prevPri)
 					acnPriMap.put(prevAcn, new Integer(pri));
 			}
-			else if (acn.type == ParseAction.ACCEPT) {
-				// Accept shopuld never conflict?  XXX
-				throw new RuntimeException();
-				// in a SHIFT-ACCEPT conflict, shift always wins.  No sense in
-				// stopping the parse when we could keep going
-//				decision= prevAcn;
-			}
 			else {
+				// (an ACCEPT has the GOAL rule's priority, which is always the
+				// default, so it is reported as a conflict whichever comes first)
 				if (pri != Priorities.DEF_PRI && prevPri != Priorities.DEF_PRI && (prevAcn.type == ParseAction.SHIFT || pri != prevPri)) {
 					if (pri != prevPri)
 						decision= (pri > prevPri)? acn : prevAcn;
@@ -523,6 +1237,8 @@ public class TableBuilder {
 					if (reducRule != acn.rule)
 						continue row_loop;
 			}
+			if (reducRule == -1 || !result.gotoTable[i].isEmpty())
+				continue; // no actions at all, or gotos the reduce-only state couldn't have
 			// we have identified a row that has nothing but reductions for the same rule
 			reduceOnlyRows.put(i, reducRule);
 			newIdx--;
@@ -554,7 +1270,9 @@ public class TableBuilder {
 	 * <p>Description: This class represents a parse rule with a position marker, and a set of lookahead symbols
 	 *
 	 * <p>Instances of this class are immutable and can act as the key for a
-	 * hashtable.  They also support a deep-equals.  The toString method
+	 * hashtable.  They also support a deep-equals.  The TableBuilder gives
+	 * them interned TerminalSets as lookaheads, so equal items usually share
+	 * the same lookahead object.  The toString method
 	 * generates notation similar to that used in the text.
 	 */
 	static final class LR1Item {
@@ -579,7 +1297,7 @@ public class TableBuilder {
 				return false;
 			LR1Item otherItem= (LR1Item) other;
 			return rule == otherItem.rule && placeholder == otherItem.placeholder
-				&& lookahead.equals(otherItem.lookahead);
+				&& (lookahead == otherItem.lookahead || lookahead.equals(otherItem.lookahead));
 		}
 
 		public String toString() {
@@ -596,20 +1314,227 @@ public class TableBuilder {
 		}
 	}
 
+	/**
+	 * <p>Title: Rule Info</p>
+	 * <p>Description: What the table building algorithms work out about a ParseRule</p>
+	 */
+	static final class RuleInfo {
+		ParseRule rule;
+		int[] symbols;           // see getSymbolIds
+		int itemBase= -1;        // the item id of position 0, see getItemId
+		long[][] suffixFirst;    // FIRST of symbols[i..], see getRuleSuffixes
+		boolean[] suffixNullable; // whether symbols[i..] can be empty
+		long[] closureOptions;   // the lookaheads found for the rule by 'closure'
+		int closureCount;        // the call of 'closure' that closureOptions is from
+
+		RuleInfo(ParseRule rule, int[] symbols) {
+			this.rule= rule;
+			this.symbols= symbols;
+		}
+	}
+
+	/**
+	 * <p>Title: Expansion</p>
+	 * <p>Description: The rules and lookaheads in the closure of a nonterminal, see getExpansion</p>
+	 *
+	 * <p>Each rule's lookaheads are split into the ones the expansion itself
+	 * provides, which are the same wherever the nonterminal appears, and
+	 * whether it also gets the lookaheads from after the nonterminal.
+	 */
+	static final class Expansion {
+		RuleInfo[] rules;
+		long[][] lookaheads;  // bits of the lookaheads from within the expansion
+		boolean[] propagates; // whether the rule gets the outer lookaheads too
+
+		Expansion(int count) {
+			rules= new RuleInfo[count];
+			lookaheads= new long[count][];
+			propagates= new boolean[count];
+		}
+	}
+
+	/**
+	 * <p>Title: Bits Key</p>
+	 * <p>Description: A bitset as a hashtable key, for looking up interned TerminalSets</p>
+	 *
+	 * <p>Hashing the words is cheaper than working out a TerminalSet's
+	 * Set-compatible hashCode, which is only done for new sets.
+	 */
+	static final class BitsKey {
+		long[] bits;
+		int hash;
+
+		void set(long[] bits) {
+			this.bits= bits;
+			hash= Arrays.hashCode(bits);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object other) {
+			return (other instanceof BitsKey) && Arrays.equals(bits, ((BitsKey) other).bits);
+		}
+	}
+
+	/**
+	 * <p>Title: Terminal Set</p>
+	 * <p>Description: An immutable set of terminals, stored as a bitset of their ids</p>
+	 *
+	 * <p>The lookaheads of the LR1Items a TableBuilder makes are TerminalSets
+	 * from its 'intern' method, so items with the same lookaheads share one
+	 * set, and comparing them is usually a comparison of references.  The
+	 * algorithms build lookaheads as plain bit arrays with the static
+	 * methods here, which work a word at a time.  The Set methods are for
+	 * filling in the tables and for the debugging output.
+	 *
+	 * <p>The hashCode is the same as any other Set's, so an LR1Item hashes
+	 * the same whichever kind of set it has.
+	 */
+	static final class TerminalSet extends AbstractSet {
+		long[] bits;
+		Object[] terminals; // by id
+		int size, hash;
+		int id= -1; // the index in lookaheadList, once interned
+
+		TerminalSet(long[] bits, TableBuilder tb) {
+			this.bits= bits;
+			terminals= tb.terminalList;
+			for (int i=0; i<bits.length; i++)
+				size+= Long.bitCount(bits[i]);
+			for (int id= nextId(0); id >= 0; id= nextId(id+1))
+				hash+= tb.terminalHash[id];
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object other) {
+			if (other instanceof TerminalSet)
+				return other == this || (hash == other.hashCode() && Arrays.equals(bits, ((TerminalSet) other).bits));
+			return super.equals(other);
+		}
+
+		public Iterator iterator() {
+			return new Iterator() {
+				int next= nextId(0);
+				public boolean hasNext() {
+					return next >= 0;
+				}
+				public Object next() {
+					if (next < 0)
+						throw new NoSuchElementException();
+					Object result= terminals[next];
+					next= nextId(next+1);
+					return result;
+				}
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		/** Get the first id in the set from the given one on, or -1.
+		 */
+		int nextId(int from) {
+			int w= from >>> 6;
+			if (w >= bits.length)
+				return -1;
+			long word= bits[w] & (-1L << from);
+			while (word == 0) {
+				if (++w == bits.length)
+					return -1;
+				word= bits[w];
+			}
+			return (w << 6) + Long.numberOfTrailingZeros(word);
+		}
+
+		/** Add an id to a bitset.
+		 * @return True if it wasn't already there
+		 */
+		static boolean add(long[] bits, int id) {
+			long mask= 1L << id;
+			if ((bits[id >>> 6] & mask) != 0)
+				return false;
+			bits[id >>> 6]|= mask;
+			return true;
+		}
+
+		/** Add the ids of one bitset to another of the same length.
+		 * @return True if any were new
+		 */
+		static boolean addAll(long[] bits, long[] other) {
+			boolean changed= false;
+			for (int i=0; i<bits.length; i++) {
+				long merged= bits[i] | other[i];
+				if (merged != bits[i]) {
+					bits[i]= merged;
+					changed= true;
+				}
+			}
+			return changed;
+		}
+
+		static boolean intersects(long[] a, long[] b) {
+			for (int i=0; i<a.length; i++)
+				if ((a[i] & b[i]) != 0)
+					return true;
+			return false;
+		}
+	}
+
+	/**
+	 * <p>Title: Kernel</p>
+	 * <p>Description: The kernel items of a parse state, packed into a sorted array</p>
+	 *
+	 * <p>Two states with the same kernel have the same closure, so the kernel
+	 * identifies a state, and is the key of the canonical collection.  Each
+	 * item is a long with its item id (see getItemId) in the upper half and
+	 * the id of its interned lookahead set in the lower half, so comparing
+	 * kernels is comparing arrays, and the hash is computed once.
+	 */
+	static final class Kernel {
+		long[] items;
+		int hash;
+
+		Kernel(long[] items) {
+			Arrays.sort(items);
+			this.items= items;
+			hash= Arrays.hashCode(items);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object other) {
+			return (other instanceof Kernel) && hash == ((Kernel) other).hash
+				&& Arrays.equals(items, ((Kernel) other).items);
+		}
+	}
+
 	/**
 	 * <p>Title: Item Set Entry</p>
 	 * <p>Description: Represents a parser state which is part of the Canonical Collection</p>
 	 *
-	 * <p>The main purpose of this class is to associate an index with the set of
-	 * LR1 items.
+	 * <p>The main purpose of this class is to associate an index with the
+	 * kernel of a state.  The full set of LR1 items is only kept for the
+	 * debugging output; see TableBuilder.getItemSet.
 	 */
 	static final class ItemSetEntry {
 		int idx;
+		Kernel kernel;
 		HashSet itemSet;
 
-		public ItemSetEntry(int idx, HashSet itemSet) {
+		public ItemSetEntry(int idx, Kernel kernel) {
 			this.idx= idx;
-			this.itemSet= itemSet;
+			this.kernel= kernel;
 		}
 
 		public String toString() {
@@ -57,4 +57,34 @@ public class _TestLR1_Table extends TestCase {
 
 		System.out.println(LR1_Table.intArraysToJava(serData));
 	}
+
+	public void testPackedTable_ExpressionGrammar() throws Exception {
+		ParseRule[] rules= new ParseRule[] {
+			new ParseRule(Expr, new Object[] {Expr, "+", Expr}),
+			new ParseRule(Expr, new Object[] {"(", Expr, ")"}, new ParseRule.PassthroughHandler(1)),
+			new ParseRule(Expr, new Object[] {Integer.class}, ParseRule.FIRSTELEM_PASSTHROUGH),
+		};
+		Priorities pri= new Priorities();
+		pri.set(rules[0], 1);
+		LR1_Table table= new LR1_Table(new Grammar(Expr, rules, pri));
+		PackedLR1_Table packed= new PackedLR1_Table(table);
+
+		assertEquals(table.getStateCount(), packed.getStateCount());
+		for (int state=0; state<table.getStateCount(); state++) {
+			for (int t=0; t<packed.getTerminalCount(); t++) {
+				LR1_Table.ParseAction acn= table.getAction(state, packed.getTerminal(t));
+				int packedAcn= packed.getAction(state, t);
+				if (acn == null)
+					assertEquals(PackedLR1_Table.NONE, packedAcn);
+				else
+					assertEquals(PackedLR1_Table.encode(acn), packedAcn);
+			}
+			Object trans= table.table[state].get(Expr);
+			if (trans != null)
+				assertEquals(((Integer)trans).intValue(), packed.getStateTrans(state, packed.getNonterminalId(Expr)));
+		}
+		assertEquals(-1, packed.getTerminalId("-"));
+		assertEquals(3, packed.getRuleLength(1));
+		assertEquals(packed.getNonterminalId(Expr), packed.getRuleTarget(2));
+	}
 }
@@ -29,6 +29,17 @@ public class _TestParser extends TestCase {
 		assertEquals(DOT, root.components[0]);
 	}
 
+	public void testStartFollowSet() throws Exception {
+		// ';' only appears in the follow set, not in any rule
+		Set follow= new HashSet(Arrays.asList(new Object[] {TokenSource.EOF, ";"}));
+		parser= new Parser(new Grammar(Goal, follow, new ParseRule[] {new ParseRule(Goal, new Object[] {"x"})}, null));
+		assertTrue(parser.getTerminalId(";") >= 0);
+		GenericParseNode root= (GenericParseNode) parser.parse(new ArrayTokenSource("", new Object[] {"x"}, null));
+		assertEquals(Goal, root.type);
+		root= (GenericParseNode) parser.parse(new ArrayTokenSource("", new Object[] {"x", ";"}, null));
+		assertEquals(Goal, root.type);
+	}
+
 	public void testSheepNoise() throws Exception {
 		Grammar g= new Grammar(SheepNoise,
 			new ParseRule[] {
@@ -130,6 +141,192 @@ public class _TestParser extends TestCase {
 		assertEquals("<Expression>(<Expression>(5, +, <Expression>(3, *, 12)), +, <Expression>(1, *, <Expression>(8, -, 3)))", result.toString());
 	}
 
+	public void testTokenKinds() throws Exception {
+		ParseRule add;
+		ParseRule[] rules= new ParseRule[] {
+			add= new ParseRule(Expr, new Object[] {Expr, "+", Expr}),
+			new ParseRule(Expr, new Object[] {"(", Expr, ")"}, new ParseRule.PassthroughHandler(1)),
+			new ParseRule(Expr, new Object[] {String.class}, ParseRule.FIRSTELEM_PASSTHROUGH),
+		};
+		Priorities pri= new Priorities();
+		pri.set(add, 1);
+		parser= new Parser(new Grammar(Expr, rules, pri));
+		ScanRuleSet[] scanRules= new ScanRuleSet[] { new ScanRuleSet("Default", new ScanRule[] {
+			new ScanRule("\\+", "+"),
+			new ScanRule("\\(", "("),
+			new ScanRule("\\)", ")"),
+			new ScanRule(" ", ScanRule.EMIT_NOTHING),
+			new ScanRule("[a-z]+").setTerminal(String.class),
+		})};
+		String text= "a + (b + c) + d";
+		Object expected= parser.parse(new Scanner(scanRules, text));
+
+		Scanner scanner= new Scanner(scanRules, text);
+		scanner.setTokenKinds(parser);
+		assertEquals(parser.getTerminalId(String.class), scanner.curTokenKind());
+		scanner.next();
+		assertEquals(parser.getTerminalId("+"), scanner.curTokenKind());
+		scanner= new Scanner(scanRules, text);
+		scanner.setTokenKinds(parser);
+		assertEquals(expected.toString(), parser.parse(scanner).toString());
+		assertEquals(TokenSource.EOF, scanner.curToken());
+		assertEquals(parser.getTerminalId(TokenSource.EOF), scanner.curTokenKind());
+	}
+
+	public void testClassTerminals() throws Exception {
+		parser= new Parser(new Grammar(Goal, new ParseRule[] {
+			new ParseRule(Goal, new Object[] {Number.class, CharSequence.class, "baa"}),
+		}));
+		TokenSource input= new ArrayTokenSource(new Object[] {new Integer(5), "text", "baa"});
+		GenericParseNode result= (GenericParseNode) parser.parse(input);
+		assertEquals(3, result.components.length);
+		assertEquals(new Integer(5), result.components[0]);
+		assertEquals("text", result.components[1]);
+
+		// the literal "baa" doesn't match at position 1, so the class should
+		input= new ArrayTokenSource(new Object[] {new Double(1), "baa", "baa"});
+		result= (GenericParseNode) parser.parse(input);
+		assertEquals("baa", result.components[1]);
+	}
+
+	public void testParseError() throws Exception {
+		parser= new Parser(new Grammar(SheepNoise, new ParseRule[] {
+			new ParseRule(SheepNoise, new Object[] {SheepNoise, "baa"}, sheepHandlInst2),
+			new ParseRule(SheepNoise, new Object[] {"baa"}, sheepHandlInst2)
+		}));
+		try {
+			parser.parse(new ArrayTokenSource(new Object[] {"baa", "baa", "moo"}));
+			fail("parse should fail");
+		}
+		catch (ParseException ex) {
+			assertEquals(2, ex.stack.length);
+			assertEquals(0, ex.stack[0].id);
+			assertTrue(ex.stack[1].data instanceof Vector);
+			assertEquals(1, ((Vector)ex.stack[1].data).size());
+		}
+	}
+
+	public void testPositions() throws Exception {
+		parser= new Parser(new Grammar(Goal, new ParseRule[] {
+			new ParseRule(Goal, new Object[] {MaybeNothing, "baa", "baa"}),
+			new ParseRule(MaybeNothing, new Object[] {}),
+		}));
+		SourcePos[] locations= new SourcePos[] { new SourcePos(1, 1, 1, 3), new SourcePos(2, 5, 2, 7) };
+		TokenSource input= new ArrayTokenSource("", new Object[] {"baa", "baa"}, locations);
+		GenericParseNode result= (GenericParseNode) parser.parse(input);
+		assertEquals(0, result.from.lineStart);
+		assertEquals(0, result.from.charStart);
+		assertEquals(2, result.from.lineEnd);
+		assertEquals(7, result.from.charEnd);
+		assertEquals(0, ((GenericParseNode) result.components[0]).from.lineEnd);
+
+		parser.setTrackPositions(false);
+		input= new ArrayTokenSource("", new Object[] {"baa", "baa"}, locations);
+		result= (GenericParseNode) parser.parse(input);
+		assertEquals(null, result.from);
+	}
+
+	public void testStackReduceMethod() throws Exception {
+		final int[] calls= new int[1];
+		ReduceMethod counter= new ReduceMethod.StackHandler() {
+			public Object reduce(ParseRule rule, ReduceArgs args) {
+				calls[0]++;
+				assertEquals(2, args.size());
+				try {
+					args.get(2);
+					fail("index past the rule's symbols");
+				}
+				catch (IndexOutOfBoundsException ex) {}
+				return args.get(0)+"-"+args.get(1);
+			}
+		};
+		parser= new Parser(new Grammar(Goal, new ParseRule[] {
+			new ParseRule(Goal, new Object[] {SheepNoise, SheepNoise}, counter),
+			new ParseRule(SheepNoise, new Object[] {"baa", "baa"}, counter),
+			// overriding the array version of reduce must still take effect
+			new ParseRule(SheepNoise, new Object[] {"moo", "moo"}, counter) {
+				public Object reduce(SourcePos from, Object[] symbols) {
+					return "cow";
+				}
+			},
+		}));
+		Object result= parser.parse(new ArrayTokenSource(new Object[] {"baa", "baa", "moo", "moo"}));
+		assertEquals("baa-baa-cow", result);
+		assertEquals(2, calls[0]);
+	}
+
+	public void testPrimitiveValues() throws Exception {
+		ParseRule add;
+		ReduceMethod sum= new ReduceMethod.LongHandler() {
+			public long reduceLong(ParseRule rule, ReduceArgs args) {
+				return args.getLong(0) + args.getLong(2);
+			}
+		};
+		ReduceMethod number= new ReduceMethod.LongHandler() {
+			public long reduceLong(ParseRule rule, ReduceArgs args) {
+				return args.getLong(0);
+			}
+		};
+		ParseRule[] rules= new ParseRule[] {
+			new ParseRule(Goal, new Object[] {Expr}),
+			add= new ParseRule(Expr, new Object[] {Expr, "+", Expr}, sum),
+			new ParseRule(Expr, new Object[] {Long.class}, number),
+		};
+		Priorities pri= new Priorities();
+		pri.set(add, 1);
+		parser= new Parser(new Grammar(Goal, rules, pri));
+		ScanRuleSet[] scanRules= new ScanRuleSet[] { new ScanRuleSet("Default", new ScanRule[] {
+			new ScanRule("\\+", "+"),
+			new ScanRule("[0-9]+") {
+				public Object onMatch(String[] groups, Scanner scanner) {
+					return scanner.emitLong(Long.parseLong(groups[0]));
+				}
+			}.setTerminal(Long.class),
+		})};
+		// unboxed all the way through, with kinds
+		Scanner scanner= new Scanner(scanRules, "1+2+39");
+		scanner.setTokenKinds(parser);
+		assertEquals(PrimitiveTokenSource.LONG, scanner.curTokenPrimitive());
+		GenericParseNode result= (GenericParseNode) parser.parse(scanner);
+		assertEquals(new Long(42), result.components[0]);
+		// without kinds, the tokens get boxed and matched by class
+		result= (GenericParseNode) parser.parse(new Scanner(scanRules, "1+2+39"));
+		assertEquals(new Long(42), result.components[0]);
+		// boxed tokens from an ordinary token source
+		result= (GenericParseNode) parser.parse(new ArrayTokenSource(new Object[] {new Long(5), "+", new Long(6)}));
+		assertEquals(new Long(11), result.components[0]);
+		// debug mode sees boxed values
+		result= parser.debugParse(new Scanner(scanRules, "7+8"));
+		assertEquals(new Long(8), ((GenericParseNode)((GenericParseNode)result.components[0]).components[2]).components[0]);
+	}
+
+	public void testParseSession() throws Exception {
+		parser= new Parser(new Grammar(SheepNoise, new ParseRule[] {
+			new ParseRule(SheepNoise, new Object[] {SheepNoise, "baa"}, sheepHandlInst2),
+			new ParseRule(SheepNoise, new Object[] {"baa"}, sheepHandlInst2)
+		}));
+		ScanRuleSet[] scanRules= new ScanRuleSet[] { new ScanRuleSet("Default", new ScanRule[] {
+			new ScanRule("baa", "baa"),
+			new ScanRule("moo", "moo"),
+			new ScanRule(" ", ScanRule.EMIT_NOTHING),
+		})};
+		ParseSession session= new ParseSession(parser, scanRules);
+		assertEquals(2, ((Vector) session.parse("baa baa baa")).size());
+		try {
+			session.parse("baa moo");
+			fail("parse should fail");
+		}
+		catch (ParseException ex) {}
+		assertEquals(0, ((Vector) session.parse("baa")).size());
+		Scanner scanner= session.reset("baa baa");
+		assertEquals("baa", scanner.curToken());
+		assertEquals(0, scanner.getState());
+		assertEquals(1, ((Vector) session.parse()).size());
+
+		assertSame(parser.getThreadSession(scanRules), parser.getThreadSession(scanRules));
+		assertEquals(1, ((Vector) parser.getThreadSession(scanRules).parse("baa baa")).size());
+	}
+
 	static final class SheepHandler implements ReduceMethod {
 		public Object reduce(ParseRule rule, SourcePos from, Object[] symbols) {
 			Vector result;
@@ -28,4 +28,134 @@ public class _TestScanRuleSet extends TestCase {
 
 	public void test() {
 	}
+
+	public void testLexerDFA() throws Exception {
+		assertNotNull(scanRuleSet.lexer);
+		String[][] cases= new String[][] {
+			{ "a+", "a+?b", "(ab|a)(c|bcd)", "[^a\\n]{2,3}", "\\d+(\\.\\d*)?" },
+			{ "(a|ab)(c|bcd)(d*)", "a*?b", "x{2}?y", "[a-c&&[^b]]+", "\\w+" },
+		};
+		String[] inputs= new String[] { "abcd", "abcdd", "aab", "ab", "bc", "12.5x", "xxy", "xxxy", "b\n1", "c", "" };
+		for (int c=0; c<cases.length; c++) {
+			LexerDFA dfa= LexerDFA.build(cases[c]);
+			StringBuffer sb= new StringBuffer("(");
+			for (int i=0; i<cases[c].length; i++)
+				sb.append(i == 0? "" : ")|(").append(cases[c][i]);
+			Pattern master= Pattern.compile(sb.append(")").toString());
+			for (int i=0; i<inputs.length; i++) {
+				Matcher m= master.matcher(inputs[i]);
+				long expected= LexerDFA.NO_MATCH;
+				if (m.lookingAt()) {
+					int group= 1, rule= 0;
+					while (m.start(group) < 0)
+						group+= 1 + Pattern.compile(cases[c][rule++]).matcher("").groupCount();
+					expected= ((long)rule << 32) | m.end();
+					// non-regular rules are left for the regex
+					if (!dfa.isRegular(rule))
+						continue;
+				}
+				assertEquals(cases[c][0]+"... on "+inputs[i], expected, dfa.match(inputs[i], 0, inputs[i].length()));
+			}
+		}
+		assertFalse(LexerDFA.build(cases[1]).isRegular(3));
+		// input with surrogates is left to the regex
+		assertEquals(LexerDFA.BAIL, LexerDFA.build(new String[] { "." }).match("\uD83D\uDE00", 0, 2));
+	}
+
+	public void testFallbackRules() throws Exception {
+		ScanRuleSet[] states= new ScanRuleSet[] { new ScanRuleSet("Default", new ScanRule[] {
+			new ScanRule("if(?=\\()", "IF"),
+			new ScanRule("[a-z]+"),
+			new ScanRule("(\\d+)-(\\d+)") {
+				public Object onMatch(String[] groups, Scanner scanner) {
+					return groups[3]+"-"+groups[2];
+				}
+			},
+			new ScanRule("[ (]", ScanRule.EMIT_NOTHING),
+			new ScanRule(".", ScanRule.EMIT_MATCH),
+		})};
+		assertFalse(states[0].lexer.isRegular(0));
+		assertTrue(states[0].lexer.isRegular(1));
+		// the second number pair runs into a surrogate, so the regex matches
+		// it, and its groups must be laid out the same as for the DFA
+		Scanner scanner= new Scanner(states, "if(iffy 12-34 56-78\uD83D\uDE00");
+		Object[] expected= new Object[] { "IF", "iffy", "34-12", "78-56", "\uD83D\uDE00", TokenSource.EOF };
+		for (int i=0; i<expected.length; i++, scanner.next())
+			assertEquals(expected[i], scanner.curToken());
+	}
+
+	public void testCandidates() throws Exception {
+		ScanRuleSet rules= new ScanRuleSet("Default", new ScanRule[] {
+			new ScanRule("if(?=\\()", "IF"),
+			new ScanRule("(?i)while\\b", "WHILE"),
+			new ScanRule("[a-z]+"),
+			new ScanRule("\\d+"),
+			new ScanRule("[^\\w]"),
+		});
+		assertEquals("[0, 2]", toString(rules.getCandidates('i')));
+		assertEquals("[1]", toString(rules.getCandidates('W')));
+		assertEquals("[1, 2]", toString(rules.getCandidates('w')));
+		assertEquals("[3]", toString(rules.getCandidates('7')));
+		assertEquals("[4]", toString(rules.getCandidates('\u00e9')));
+		assertEquals("[0, 1, 2, 3, 4]", toString(rules.getCandidates('\uD83D')));
+		// chars with the same candidates share a list
+		assertSame(rules.getCandidates('a'), rules.getCandidates('z'));
+	}
+
+	public void testLiteralRules() throws Exception {
+		ScanRule[] rules= new ScanRule[] {
+			new ScanRule("::"),
+			new ScanRule(":"),
+			new ScanRule(ScanRule.escapeLiteralStr("(*")),
+			new ScanRule("(?:ab)c", "ABC"),
+			new ScanRule("[^:(]+"),
+		};
+		ScanRuleSet[] states= new ScanRuleSet[] { new ScanRuleSet("Default", rules) };
+		assertEquals("::", states[0].literals[0]);
+		assertEquals("(*", states[0].literals[2]);
+		assertEquals("abc", states[0].literals[3]);
+		assertNull(states[0].literals[4]);
+		// as for a rule set too large for a DFA, every token is matched rule by rule
+		states[0].lexer= null;
+		Scanner scanner= new Scanner(states, "\uD83D\uDE00:::(*abc");
+		Object[] expected= new Object[] { "\uD83D\uDE00", "::", ":", "(*", "ABC", TokenSource.EOF };
+		for (int i=0; i<expected.length; i++, scanner.next())
+			assertEquals(expected[i], scanner.curToken());
+		// and the literal rules didn't use their Patterns
+		for (int i=0; i<4; i++)
+			assertNull(scanner.matchers[0][i]);
+	}
+
+	public void testKeywordRule() throws Exception {
+		String[] keywords= new String[] { "if", "else", "while", "return", "caf\u00e9" };
+		Object[] tokens= new Object[] { "IF", "ELSE", "WHILE", "RETURN", "CAFE" };
+		ScanRuleSet rules= new ScanRuleSet("Default", new ScanRule[] {
+			new KeywordScanRule("[a-z\u00e0-\u00ff]+", keywords, tokens),
+			new ScanRule(" ", ScanRule.EMIT_NOTHING),
+		});
+		KeywordScanRule rule= (KeywordScanRule) rules.rules[0];
+		assertEquals("WHILE", rule.getKeywordToken("do while", 3, 8));
+		assertNull(rule.getKeywordToken("do while", 0, 2));
+
+		String text= "if iffy else caf\u00e9 cafe return x";
+		Object[] expected= new Object[] { "IF", "iffy", "ELSE", "CAFE", "cafe", "RETURN", "x", TokenSource.EOF };
+		ScanRuleSet[] states= new ScanRuleSet[] { rules };
+		Scanner scanner= new Scanner(states, text);
+		for (int i=0; i<expected.length; i++, scanner.next())
+			assertEquals(expected[i], scanner.curToken());
+		scanner= new Scanner(states, text.getBytes("UTF-8"));
+		for (int i=0; i<expected.length; i++, scanner.next())
+			assertEquals(expected[i], scanner.curToken());
+		rules.lexer= null;
+		scanner= new Scanner(states, text);
+		for (int i=0; i<expected.length; i++, scanner.next())
+			assertEquals(expected[i], scanner.curToken());
+	}
+
+	static String toString(int[] list) {
+		StringBuffer sb= new StringBuffer("[");
+		for (int i=0; i<list.length; i++)
+			sb.append(i == 0? "" : ", ").append(list[i]);
+		return sb.append(']').toString();
+	}
 }
@@ -2,6 +2,8 @@ package com.silverdirk.parser;
 
 import junit.framework.*;
 import java.util.regex.*;
+import java.io.*;
+import java.nio.channels.*;
 
 public class _TestScanner extends TestCase {
 	private Scanner scanner= null;
@@ -49,6 +51,441 @@ public class _TestScanner extends TestCase {
 			assertEquals(expected[i], scanner.curToken());
 	}
 
+	public void testPositions() throws Exception {
+		ScanRuleSet[] lineRules= new ScanRuleSet[] { new ScanRuleSet("Lines", new ScanRule[] {
+			new ScanRule("\\n", ScanRule.EMIT_NOTHING) {
+				public Object onMatch(String[] matchGroups, Scanner scanner) {
+					scanner.incLineNo();
+					return EMIT_NOTHING;
+				}
+			},
+			new ScanRule(" ", ScanRule.EMIT_NOTHING),
+			new ScanRule("[a-z]+"),
+		})};
+		scanner= new Scanner(lineRules, "abc de\nfgh");
+		assertEquals("abc", scanner.curToken());
+		long firstStart= scanner.curTokenStart();
+		assertEquals("line 1:1-3", scanner.curTokenPos().toString());
+		scanner.next();
+		assertEquals("line 1:5-6", scanner.curTokenPos().toString());
+		scanner.next();
+		assertEquals("fgh", scanner.curToken());
+		assertEquals(7, scanner.curTokenStart());
+		assertEquals(10, scanner.curTokenEnd());
+		assertEquals(2, scanner.curTokenPos().lineStart);
+		// old offsets still map to the line they were scanned on
+		SourcePos first= scanner.getSourcePos(firstStart, firstStart+3);
+		assertEquals("line 1:1-3", first.toString());
+	}
+
+	public void testLineIndex() throws Exception {
+		ScanRuleSet[] rules= new ScanRuleSet[] { new ScanRuleSet("Default", new ScanRule[] {
+			new ScanRule("[ \r\n]+", ScanRule.EMIT_NOTHING),
+			new ScanRule("\"[^\"]*\""),
+			new ScanRule("[a-z]+"),
+		})};
+		String text= "abc de\nfgh\r\n  \"x\ny\"\rz";
+		String[] expected= new String[] { "line 1:1-3", "line 1:5-6", "line 2:1-3", "line 3-4:3-2", "line 5:1" };
+		Scanner[] scanners= new Scanner[] { new Scanner(rules, text), new Scanner(rules, new StringReader(text)),
+			new Scanner(rules, text.getBytes("UTF-8")) };
+		for (int s=0; s<scanners.length; s++) {
+			scanner= scanners[s];
+			for (int i=0; i<expected.length; i++, scanner.next())
+				assertEquals(expected[i], scanner.curTokenPos().toString());
+			assertEquals(5, scanner.getLineNo());
+		}
+		// line breaks split across reads of a stream
+		StringBuffer sb= new StringBuffer();
+		for (int i=0; sb.length() < 50000; i++)
+			sb.append("word").append((i%3 == 0)? "\r\n" : (i%3 == 1)? "\r" : " \n");
+		Scanner expectedPos= new Scanner(rules, sb);
+		scanner= new Scanner(rules, new StringReader(sb.toString()));
+		while (expectedPos.curToken() != TokenSource.EOF) {
+			assertEquals(expectedPos.curTokenPos().toString(), scanner.curTokenPos().toString());
+			expectedPos.next();
+			scanner.next();
+		}
+		// positions are found for old offsets, whenever they are asked for
+		scanner= new Scanner(rules, text);
+		while (scanner.curToken() != TokenSource.EOF)
+			scanner.next();
+		assertEquals("line 2:1-3", scanner.getSourcePos(7, 10).toString());
+		assertEquals("line 1-2:5-3", scanner.getSourcePos(4, 10).toString());
+		// errors report the line of the bad token, with that line as context
+		try {
+			scanner= new Scanner(rules, "ab\ncd 5");
+			scanner.next();
+			scanner.next();
+			fail("Expected a scan error");
+		}
+		catch (ParseException ex) {
+			assertEquals(2, ex.location.lineStart);
+			assertEquals(4, ex.location.charStart);
+			assertEquals("cd 5", ex.source);
+		}
+	}
+
+	public void testLargeInput() throws Exception {
+		ScanRuleSet[] lineRules= new ScanRuleSet[] { new ScanRuleSet("Lines", new ScanRule[] {
+			new ScanRule("\\n", ScanRule.EMIT_NOTHING) {
+				public Object onMatch(String[] matchGroups, Scanner scanner) {
+					scanner.incLineNo();
+					return EMIT_NOTHING;
+				}
+			},
+			new ScanRule(" ", ScanRule.EMIT_NOTHING),
+			new ScanRule("[a-z]+"),
+			new ScanRule("[0-9]+(?=\\n)"), // not regular, so matched by a region of the input
+		})};
+		StringBuffer sb= new StringBuffer();
+		int lines= 0;
+		while (sb.length() < 1024*1024) {
+			sb.append("word ").append(lines).append('\n');
+			lines++;
+		}
+		// rescanning the rest of the input for every token would never finish
+		scanner= new Scanner(lineRules, sb);
+		int tokens= 0;
+		while (scanner.curToken() != TokenSource.EOF) {
+			tokens++;
+			scanner.next();
+		}
+		assertEquals(lines*2, tokens);
+		assertEquals(lines+1, scanner.getLineNo());
+	}
+
+	public void testStreaming() throws Exception {
+		ScanRuleSet[] lineRules= new ScanRuleSet[] { new ScanRuleSet("Lines", new ScanRule[] {
+			new ScanRule("\\n", ScanRule.EMIT_NOTHING) {
+				public Object onMatch(String[] matchGroups, Scanner scanner) {
+					scanner.incLineNo();
+					return EMIT_NOTHING;
+				}
+			},
+			new ScanRule(" ", ScanRule.EMIT_NOTHING),
+			new ScanRule("[a-z\\u00e9]+"),
+			new ScanRule("[0-9]+(?=\\n)"),
+		})};
+		StringBuffer sb= new StringBuffer();
+		for (int i=0; sb.length() < 100000; i++)
+			sb.append("w\u00e9rd ").append(i).append('\n');
+		// a token longer than the buffer
+		for (int i=0; i<40000; i++)
+			sb.append('z');
+		sb.append(" 5\n");
+		String text= sb.toString();
+
+		Scanner expected= new Scanner(lineRules, text);
+		scanner= new Scanner(lineRules, new StringReader(text));
+		Scanner fromBytes= new Scanner(lineRules, Channels.newChannel(new ByteArrayInputStream(text.getBytes("UTF-8"))), "UTF-8");
+		while (expected.curToken() != TokenSource.EOF) {
+			assertEquals(expected.curToken(), scanner.curToken());
+			assertEquals(expected.curTokenStart(), scanner.curTokenStart());
+			assertEquals(expected.curTokenPos().toString(), scanner.curTokenPos().toString());
+			assertEquals(expected.curToken(), fromBytes.curToken());
+			expected.next();
+			scanner.next();
+			fromBytes.next();
+		}
+		assertEquals(TokenSource.EOF, scanner.curToken());
+		assertEquals(TokenSource.EOF, fromBytes.curToken());
+		// only the text around the current token is kept
+		assertTrue(scanner.stream.length() < 1000);
+		assertTrue(scanner.stream.buf.length <= 64*1024);
+
+		// positions that are released are no longer known
+		long lastStart= scanner.curTokenStart();
+		assertEquals(expected.getLineNo(), scanner.getSourcePos(lastStart, lastStart).lineStart);
+		scanner.releaseOffsetsBefore(lastStart);
+		assertEquals(1, scanner.lineMarkCount);
+		assertEquals(0, scanner.getSourcePos(0, 1).lineStart);
+		assertEquals(expected.getLineNo(), scanner.getSourcePos(lastStart, lastStart).lineStart);
+	}
+
+	public void testSurrogateAtRefill() throws Exception {
+		ScanRuleSet[] rules= new ScanRuleSet[] { new ScanRuleSet("Any", new ScanRule[] {
+			new ScanRule("a."),
+			new ScanRule("[\\s\\S]"),
+		})};
+		// the first buffer ends between the halves of the emoji
+		StringBuffer sb= new StringBuffer();
+		for (int i=0; i<16382; i++)
+			sb.append('x');
+		sb.append("a\uD83D\uDE00");
+		String text= sb.toString();
+		Scanner expected= new Scanner(rules, text);
+		scanner= new Scanner(rules, new StringReader(text));
+		while (expected.curToken() != TokenSource.EOF) {
+			assertEquals(expected.curToken(), scanner.curToken());
+			expected.next();
+			scanner.next();
+		}
+		assertEquals(TokenSource.EOF, scanner.curToken());
+	}
+
+	public void testResetAfterStream() throws Exception {
+		ScanRuleSet[] rules= new ScanRuleSet[] { new ScanRuleSet("Words", new ScanRule[] {
+			new ScanRule("[ \\n]", ScanRule.EMIT_NOTHING),
+			new ScanRule("[a-z0-9]+"),
+		})};
+		StringBuffer sb= new StringBuffer();
+		for (int i=0; sb.length() < 100000; i++)
+			sb.append("word ").append(i).append('\n');
+		scanner= new Scanner(rules, new StringReader(sb.toString()));
+		while (scanner.curToken() != TokenSource.EOF)
+			scanner.next();
+		scanner.releaseOffsetsBefore(scanner.curTokenStart());
+
+		// the released line marks don't carry over to the new input
+		scanner.reset("abc\ndef");
+		assertEquals("abc", scanner.curToken());
+		assertEquals(1, scanner.curTokenPos().lineStart);
+		scanner.next();
+		assertEquals("def", scanner.curToken());
+		assertEquals(2, scanner.curTokenPos().lineStart);
+	}
+
+	public void testMappedFile() throws Exception {
+		StringBuffer sb= new StringBuffer();
+		for (int i=0; sb.length() < 20000; i++)
+			sb.append("abc ").append(i).append(i % 7 == 0? " \u00e9t\u00e9 \u20ac\uD83D\uDE00 " : " ");
+		String text= sb.toString();
+		File file= File.createTempFile("_TestScanner", ".txt");
+		try {
+			FileOutputStream out= new FileOutputStream(file);
+			out.write(text.getBytes("UTF-8"));
+			out.close();
+			RandomAccessFile raf= new RandomAccessFile(file, "r");
+			// tiny segments, so that characters are split across them
+			MappedFileInput input= new MappedFileInput(raf.getChannel(), 3);
+			raf.close();
+			assertFalse(input.isAscii());
+			assertEquals(text.length(), input.length());
+			assertEquals(text, input.toString());
+			// random access, backwards and across checkpoints
+			for (int i=text.length()-1; i >= 0; i-= 997)
+				assertEquals(text.charAt(i), input.charAt(i));
+			StringBuffer fromReader= new StringBuffer();
+			Reader reader= input.newReader();
+			char[] buf= new char[3];
+			for (int count; (count= reader.read(buf, 0, buf.length)) > 0;)
+				fromReader.append(buf, 0, count);
+			assertEquals(text, fromReader.toString());
+
+			ScanRuleSet[] rules= new ScanRuleSet[] { new ScanRuleSet("Default", new ScanRule[] {
+				new ScanRule("[ ]+", ScanRule.EMIT_NOTHING),
+				new ScanRule("[^ ]+"),
+			})};
+			Scanner expected= new Scanner(rules, text);
+			scanner= new Scanner(rules, new MappedFileInput(file));
+			while (expected.curToken() != TokenSource.EOF) {
+				assertEquals(expected.curToken(), scanner.curToken());
+				expected.next();
+				scanner.next();
+			}
+			assertEquals(TokenSource.EOF, scanner.curToken());
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	public void testUtf8Bytes() throws Exception {
+		ScanRuleSet[] rules= new ScanRuleSet[] { new ScanRuleSet("Default", new ScanRule[] {
+			new ScanRule("[ \n]+", ScanRule.EMIT_NOTHING),
+			new ScanRule("=", "="),
+			new ScanRule("\u00e9t\u00e9", "summer"),
+			new ScanRule("[a-z\u00e0-\u00ff]+"),
+			new ScanRule("([0-9]+)\u20ac") {
+				public Object onMatch(String[] groups, Scanner sender) {
+					return new Integer(groups[2]);
+				}
+			},
+			new ScanRule("[^ \n=]"),
+		})};
+		String text= "caf\u00e9 = \u00e9t\u00e9 12\u20ac\n\uD83D\uDE00\u4e2d x\u00ff=\u0100";
+		Scanner expected= new Scanner(rules, text);
+		scanner= new Scanner(rules, text.getBytes("UTF-8"));
+		while (expected.curToken() != TokenSource.EOF) {
+			assertEquals(expected.curToken(), scanner.curToken());
+			expected.next();
+			scanner.next();
+		}
+		assertEquals(TokenSource.EOF, scanner.curToken());
+		// offsets are in bytes
+		scanner.reset(java.nio.ByteBuffer.wrap("\u00e9t\u00e9 ab".getBytes("UTF-8")));
+		assertEquals("summer", scanner.curToken());
+		assertEquals(5, scanner.curTokenEnd());
+		scanner.next();
+		assertEquals(6, scanner.curTokenStart());
+		// malformed UTF-8 doesn't match
+		try {
+			scanner= new Scanner(rules, new byte[] { 'a', ' ', (byte) 0xC3 });
+			scanner.next();
+			fail("Expected a scan error");
+		}
+		catch (ParseException ex) {
+		}
+		// rules which aren't regular can't scan bytes
+		try {
+			new Scanner(new ScanRuleSet[] { new ScanRuleSet("Default", new ScanRule[] {
+				new ScanRule("a(?=b)"),
+			})}, new byte[] { 'a', 'b' });
+			fail("Expected IllegalArgumentException");
+		}
+		catch (IllegalArgumentException ex) {
+		}
+	}
+
+	public void testMatchedText() throws Exception {
+		final StringBuffer seen= new StringBuffer();
+		ScanRuleSet[] rules= new ScanRuleSet[] { new ScanRuleSet("Default", new ScanRule[] {
+			new ScanRule(" +", ScanRule.EMIT_NOTHING) {
+				public Object onMatch(MatchedText match, Scanner scanner) {
+					seen.append(match.length()).append(',');
+					return EMIT_NOTHING;
+				}
+			},
+			new ScanRule("([a-z]+)(?:=([0-9]+))?") {
+				public Object onMatch(MatchedText match, Scanner scanner) {
+					assertEquals(2, match.groupCount());
+					if (match.start(2) < 0)
+						return match.toString();
+					assertEquals('=', match.charAt(match.end(1)));
+					return match.group(1)+":"+match.subSequence(match.start(2), match.end(2));
+				}
+			},
+			new ScanRule("\u00e9", "E"),
+			// an old-style rule still gets its groups, after the text twice
+			new ScanRule("#(.)") {
+				public Object onMatch(String[] groups, Scanner scanner) {
+					return groups[2];
+				}
+			},
+		})};
+		String text= "ab=12  cd \u00e9 #x   e=3";
+		Object[] expected= new Object[] { "ab:12", "cd", "E", "x", "e:3", TokenSource.EOF };
+		Scanner[] scanners= new Scanner[] {
+			new Scanner(rules, text),
+			new Scanner(rules, new StringReader(text)),
+			new Scanner(rules, text.getBytes("UTF-8")),
+		};
+		for (int s=0; s<scanners.length; s++)
+			for (int i=0; i<expected.length; i++, scanners[s].next())
+				assertEquals(expected[i], scanners[s].curToken());
+		assertEquals("2,1,1,3,2,1,1,3,2,1,1,3,", seen.toString());
+
+		final java.util.ArrayList groups= new java.util.ArrayList();
+		rules= new ScanRuleSet[] { new ScanRuleSet("Default", new ScanRule[] {
+			new ScanRule("(a)(b)") {
+				public Object onMatch(String[] matchGroups, Scanner scanner) {
+					groups.add(java.util.Arrays.asList(matchGroups).toString());
+					return matchGroups[0];
+				}
+			},
+		})};
+		new Scanner(rules, "ab");
+		new Scanner(rules, new StringReader("ab"));
+		new Scanner(rules, "ab".getBytes("UTF-8"));
+		assertEquals("[[ab, ab, a, b], [ab, ab, a, b], [ab, ab, a, b]]", groups.toString());
+	}
+
+	public void testSymbolTable() throws Exception {
+		ScanRuleSet[] rules= new ScanRuleSet[] { new ScanRuleSet("Default", new ScanRule[] {
+			new ScanRule(" ", ScanRule.EMIT_NOTHING),
+			new KeywordScanRule("[a-z\u00e0-\u00ff]+", new String[] { "if" }),
+		})};
+		String text= "abc if caf\u00e9 abc caf\u00e9 xyz";
+		SymbolTable symbols= new SymbolTable();
+		Scanner[] scanners= new Scanner[] {
+			new Scanner(rules, ""),
+			new Scanner(rules, new byte[0]),
+		};
+		scanners[0].setSymbolTable(symbols);
+		scanners[0].reset(new StringBuffer(text));
+		scanners[1].setSymbolTable(symbols);
+		scanners[1].reset(java.nio.ByteBuffer.wrap(text.getBytes("UTF-8")));
+		Object[][] tokens= new Object[2][];
+		for (int s=0; s<scanners.length; s++) {
+			java.util.ArrayList list= new java.util.ArrayList();
+			for (; scanners[s].curToken() != TokenSource.EOF; scanners[s].next())
+				list.add(scanners[s].curToken());
+			tokens[s]= list.toArray();
+		}
+		assertEquals(java.util.Arrays.asList(new Object[] { "abc", "if", "caf\u00e9", "abc", "caf\u00e9", "xyz" }), java.util.Arrays.asList(tokens[0]));
+		// repeated names are the same object, in both scanners
+		assertSame(tokens[0][0], tokens[0][3]);
+		assertSame(tokens[0][2], tokens[0][4]);
+		for (int i=0; i<tokens[0].length; i++)
+			assertSame(tokens[0][i], tokens[1][i]);
+		assertEquals(3, symbols.size());
+
+		// the table is emptied when it is full
+		SymbolTable small= new SymbolTable(2);
+		String a= small.intern("a"), b= small.intern("b");
+		assertSame(a, small.intern(new StringBuffer("xa"), 1, 2));
+		assertEquals(2, small.size());
+		small.intern("c");
+		assertEquals(1, small.size());
+		assertTrue(b != small.intern(new String("b")));
+	}
+
+	public void testNumberRule() throws Exception {
+		ScanRuleSet[] rules= new ScanRuleSet[] { new ScanRuleSet("Default", new ScanRule[] {
+			new ScanRule(" +", ScanRule.EMIT_NOTHING),
+			new NumberScanRule("(?:[0-9]+\\.[0-9]*|\\.[0-9]+)(?:[Ee][+-]?[0-9]+)?|[0-9]+[Ee][+-]?[0-9]+", NumberScanRule.FLOAT),
+			new NumberScanRule(NumberScanRule.INTEGER),
+			new ScanRule("[a-z]+"),
+		})};
+		String text= "12 3.5 x .25 7e2 9223372036854775807 1.5E-3";
+		Object[] expected= new Object[] { new Long(12), new Double(3.5), "x", new Double(.25),
+			new Double(700), new Long(Long.MAX_VALUE), new Double(.0015) };
+		Scanner[] scanners= new Scanner[] { new Scanner(rules, text), new Scanner(rules, text.getBytes("UTF-8")) };
+		for (int s=0; s<scanners.length; s++) {
+			scanner= scanners[s];
+			for (int i=0; i<expected.length; i++) {
+				assertEquals(expected[i] instanceof String? PrimitiveTokenSource.NOT_PRIMITIVE
+					: expected[i] instanceof Long? PrimitiveTokenSource.LONG : PrimitiveTokenSource.DOUBLE,
+					scanner.curTokenPrimitive());
+				assertEquals(expected[i], scanner.curToken());
+				scanner.next();
+			}
+			assertEquals(TokenSource.EOF, scanner.curToken());
+		}
+		// overflow is a scan error
+		try {
+			new Scanner(rules, "9223372036854775808");
+			fail("Expected a scan error");
+		}
+		catch (ParseException ex) {
+		}
+		assertEquals(Long.MIN_VALUE, NumberScanRule.parseLong("-9223372036854775808", 0, 20));
+		// the fast path agrees with Double.parseDouble
+		String[] cases= new String[] { "0", "-0", "0.0", "1", "0.1", "0.3", "123456789012345678",
+			"1234567890123456789", "9007199254740993", "1e22", "1e23", "1e-22", "1e-23", "4.9e-324",
+			"1.7976931348623157e308", "1e400", "2.5e-400", "000000000000000000000001.5",
+			"0.000000000000000000000000000123", "123456789012345678000e-3", ".5", "5." };
+		for (int i=0; i<cases.length; i++)
+			assertEquals(cases[i], Double.doubleToLongBits(Double.parseDouble(cases[i])),
+				Double.doubleToLongBits(NumberScanRule.parseDouble(cases[i], 0, cases[i].length())));
+		java.util.Random rand= new java.util.Random(19);
+		for (int i=0; i<20000; i++) {
+			StringBuffer sb= new StringBuffer();
+			for (int n=rand.nextInt(20); n>=0; n--)
+				sb.append((char)('0'+rand.nextInt(10)));
+			if (rand.nextBoolean()) {
+				sb.insert(rand.nextInt(sb.length()+1), '.');
+				if (sb.length() == 1)
+					sb.append('0');
+			}
+			if (rand.nextBoolean())
+				sb.append('e').append(rand.nextInt(60)-30);
+			String num= sb.toString();
+			assertEquals(num, Double.doubleToLongBits(Double.parseDouble(num)),
+				Double.doubleToLongBits(NumberScanRule.parseDouble(num, 0, num.length())));
+		}
+	}
+
 	public void testMultiState() {
 
 	}
@@ -143,6 +143,65 @@ public class _TestTableBuilder extends TestCase {
 		TableBuilder.Tables result= tb.buildTables();
 	}
 
+	public void testLookaheadSets() {
+		ParseRule[] exprGrammar= new ParseRule[] {
+			new ParseRule(Expr, new Object[]{ Expr, PLUS, Term }),
+			new ParseRule(Expr, new Object[]{ Term }),
+			new ParseRule(Term, new Object[]{ Term, TIMES, Factor }),
+			new ParseRule(Term, new Object[]{ Factor }),
+			new ParseRule(Factor, new Object[] {LPAREN, Expr, RPAREN}),
+			new ParseRule(Factor, new Object[] {Number.class}),
+		};
+		TableBuilder tb= new TableBuilder(Expr, TableBuilder.EOF_SET, exprGrammar, null);
+		tb.buildFirstSets();
+		tb.buildCanonicalCollection();
+		HashMap seen= new HashMap();
+		for (Iterator entries= tb.cc.values().iterator(); entries.hasNext();) {
+			TableBuilder.ItemSetEntry entry= (TableBuilder.ItemSetEntry) entries.next();
+			for (Iterator items= tb.getItemSet(entry).iterator(); items.hasNext();) {
+				Set lookahead= ((LR1Item) items.next()).lookahead;
+				assertTrue(lookahead instanceof TableBuilder.TerminalSet);
+				// equal lookaheads are the same object
+				HashSet copy= new HashSet(lookahead);
+				if (seen.containsKey(copy))
+					assertSame(seen.get(copy), lookahead);
+				else
+					seen.put(copy, lookahead);
+				// and are equal to other Sets
+				assertEquals(copy, lookahead);
+				assertEquals(lookahead, copy);
+				assertEquals(copy.hashCode(), lookahead.hashCode());
+			}
+		}
+		assertTrue(seen.containsKey(makeSet(new Object[] {TokenSource.EOF, PLUS, TIMES})));
+	}
+
+	public void testClosureExpansions() {
+		Nonterminal N0= new Nonterminal("N0"), N1= new Nonterminal("N1");
+		ParseRule[] rules= new ParseRule[] {
+			new ParseRule(N0, new Object[] { N1, N1, "e" }),
+			new ParseRule(N0, new Object[] { "c" }),
+			new ParseRule(N1, new Object[] { N1, "b" }), // derives nothing, so FIRST(N1) is empty
+		};
+		TableBuilder tb= new TableBuilder(N0, TableBuilder.EOF_SET, rules, null);
+		tb.buildFirstSets();
+		HashSet items= tb.closure(new HashSet(Collections.singleton(new LR1Item(tb.goalRule, 1, TableBuilder.EOF_SET))));
+		HashSet expected= new HashSet();
+		expected.add(new LR1Item(tb.goalRule, 1, TableBuilder.EOF_SET));
+		expected.add(new LR1Item(rules[0], 0, TableBuilder.EOF_SET));
+		expected.add(new LR1Item(rules[1], 0, TableBuilder.EOF_SET));
+		// only the lookahead from N1's own recursion
+		expected.add(new LR1Item(rules[2], 0, Collections.singleton("b")));
+		assertEquals(expected, items);
+
+		// N1 again, with the lookaheads from after it
+		items= tb.closure(new HashSet(Collections.singleton(new LR1Item(rules[0], 1, TableBuilder.EOF_SET))));
+		expected.clear();
+		expected.add(new LR1Item(rules[0], 1, TableBuilder.EOF_SET));
+		expected.add(new LR1Item(rules[2], 0, makeSet(new Object[] { "b", "e" })));
+		assertEquals(expected, items);
+	}
+
 	public void testSheepNoise() {
 		ParseRule[] rules= new ParseRule[] {SN0, SN1, SN2};
 		TableBuilder tb= new TableBuilder(Goal, TableBuilder.EOF_SET, rules, null);
@@ -263,6 +322,263 @@ public class _TestTableBuilder extends TestCase {
 		assertEquals(0, result.conflicts.length);
 	}
 
+	public void testLALR() throws Exception {
+		ParseRule[] exprGrammar= new ParseRule[] {
+			new ParseRule(Expr, new Object[]{ Expr, PLUS, Term }),
+			new ParseRule(Expr, new Object[]{ Expr, MINUS, Term }),
+			new ParseRule(Expr, new Object[]{ Term }),
+			new ParseRule(Term, new Object[]{ Term, TIMES, Factor }),
+			new ParseRule(Term, new Object[]{ Term, DIV, Factor }),
+			new ParseRule(Term, new Object[]{ Factor }),
+			new ParseRule(Factor, new Object[] {LPAREN, Expr, RPAREN}),
+			new ParseRule(Factor, new Object[] {Number.class}),
+		};
+		TableBuilder canonical= new TableBuilder(Expr, TableBuilder.EOF_SET, exprGrammar, null);
+		canonical.buildFirstSets();
+		canonical.buildCanonicalCollection();
+		TableBuilder lalr= new TableBuilder(Expr, TableBuilder.EOF_SET, exprGrammar, null);
+		lalr.buildFirstSets();
+		lalr.buildLALRCollection();
+		assertEquals(0, lalr.buildTables().conflicts.length);
+		// one LALR state for each core of the LR(1) states
+		HashSet cores= new HashSet();
+		for (Iterator itr= canonical.cc.values().iterator(); itr.hasNext();) {
+			HashSet core= new HashSet();
+			for (Iterator items= canonical.getItemSet((TableBuilder.ItemSetEntry) itr.next()).iterator(); items.hasNext();) {
+				LR1Item item= (LR1Item) items.next();
+				core.add(new LR1Item(item.rule, item.placeholder, TableBuilder.NO_LOOKAHEAD));
+			}
+			cores.add(core);
+		}
+		assertEquals(cores.size(), lalr.cc.size());
+		assertTrue(lalr.cc.size() < canonical.cc.size());
+		// the lookaheads of each reduction are those of all the LR(1) states merged into it
+		HashMap lookaheads= new HashMap();
+		for (Iterator itr= canonical.reductions.iterator(); itr.hasNext();) {
+			TableBuilder.Reduction r= (TableBuilder.Reduction) itr.next();
+			Set core= coreOf(canonical, r.state);
+			String key= core.toString()+r.rule;
+			Set la= (Set) lookaheads.get(key);
+			if (la == null)
+				lookaheads.put(key, la= new HashSet());
+			la.addAll(r.terminals);
+		}
+		for (Iterator itr= lalr.reductions.iterator(); itr.hasNext();) {
+			TableBuilder.Reduction r= (TableBuilder.Reduction) itr.next();
+			assertEquals(lookaheads.get(coreOf(lalr, r.state).toString()+r.rule), r.terminals);
+		}
+
+		// LALR(1), but not SLR(1)
+		Nonterminal S= new Nonterminal("S"), L= new Nonterminal("L"), R= new Nonterminal("R");
+		ParseRule[] assignGrammar= new ParseRule[] {
+			new ParseRule(S, new Object[] { L, "=", R }),
+			new ParseRule(S, new Object[] { R }),
+			new ParseRule(L, new Object[] { TIMES, R }),
+			new ParseRule(L, new Object[] { String.class }),
+			new ParseRule(R, new Object[] { L }),
+		};
+		assertEquals(0, TableBuilder.generate(S, TableBuilder.EOF_SET, assignGrammar, null, TableBuilder.LALR1, null).conflicts.length);
+
+		// LR(1), but not LALR(1)
+		Nonterminal E= new Nonterminal("E"), F= new Nonterminal("F");
+		ParseRule[] mergeGrammar= new ParseRule[] {
+			new ParseRule(S, new Object[] { "a", E, "c" }),
+			new ParseRule(S, new Object[] { "a", F, "d" }),
+			new ParseRule(S, new Object[] { "b", F, "c" }),
+			new ParseRule(S, new Object[] { "b", E, "d" }),
+			new ParseRule(E, new Object[] { "e" }),
+			new ParseRule(F, new Object[] { "e" }),
+		};
+		assertEquals(0, TableBuilder.generate(S, TableBuilder.EOF_SET, mergeGrammar, null, TableBuilder.CANONICAL_LR1, null).conflicts.length);
+		assertEquals(2, TableBuilder.generate(S, TableBuilder.EOF_SET, mergeGrammar, null, TableBuilder.LALR1, null).conflicts.length);
+
+		// and the parsers give the same results
+		Grammar g= new Grammar(Expr, exprGrammar);
+		Parser lr1Parser= new Parser(g);
+		g.tableType= TableBuilder.LALR1;
+		Parser lalrParser= new Parser(g);
+		assertTrue(lalrParser.table.getStateCount() < lr1Parser.table.getStateCount());
+		ArrayTokenSource input= new ArrayTokenSource("", new Object[] {
+			new Integer(5), PLUS, new Integer(3), TIMES, LPAREN, new Integer(1), MINUS, new Integer(8), RPAREN, DIV, new Integer(2)
+		}, null);
+		String expected= lr1Parser.debugParse(input).toString();
+		input.rewind();
+		assertEquals(expected, lalrParser.debugParse(input).toString());
+	}
+
+	public void testMinimalLR1() throws Exception {
+		ParseRule[] exprGrammar= new ParseRule[] {
+			new ParseRule(Expr, new Object[]{ Expr, PLUS, Term }),
+			new ParseRule(Expr, new Object[]{ Term }),
+			new ParseRule(Term, new Object[]{ Term, TIMES, Factor }),
+			new ParseRule(Term, new Object[]{ Factor }),
+			new ParseRule(Factor, new Object[] {LPAREN, Expr, RPAREN}),
+			new ParseRule(Factor, new Object[] {Number.class}),
+		};
+		// as small as LALR for an LALR grammar
+		TableBuilder.Tables lalr= TableBuilder.generate(Expr, TableBuilder.EOF_SET, exprGrammar, null, TableBuilder.LALR1, null);
+		TableBuilder.Tables minimal= TableBuilder.generate(Expr, TableBuilder.EOF_SET, exprGrammar, null, TableBuilder.MINIMAL_LR1, null);
+		TableBuilder.Tables canonical= TableBuilder.generate(Expr, TableBuilder.EOF_SET, exprGrammar, null, TableBuilder.CANONICAL_LR1, null);
+		assertEquals(lalr.actionTable.length, minimal.actionTable.length);
+		assertTrue(minimal.actionTable.length < canonical.actionTable.length);
+
+		// but without the conflicts LALR gets from merging
+		Nonterminal S= new Nonterminal("S"), E= new Nonterminal("E"), F= new Nonterminal("F");
+		ParseRule[] mergeGrammar= new ParseRule[] {
+			new ParseRule(S, new Object[] { "a", E, "c" }),
+			new ParseRule(S, new Object[] { "a", F, "d" }),
+			new ParseRule(S, new Object[] { "b", F, "c" }),
+			new ParseRule(S, new Object[] { "b", E, "d" }),
+			new ParseRule(E, new Object[] { "e" }),
+			new ParseRule(F, new Object[] { "e" }),
+		};
+		assertEquals(0, TableBuilder.generate(S, TableBuilder.EOF_SET, mergeGrammar, null, TableBuilder.MINIMAL_LR1, null).conflicts.length);
+		Grammar g= new Grammar(S, mergeGrammar);
+		g.tableType= TableBuilder.MINIMAL_LR1;
+		Parser parser= new Parser(g);
+		parser.parse(new ArrayTokenSource("", new Object[] { "b", "e", "d" }, null));
+
+		// conflicts are reported just as for canonical LR(1)
+		ParseRule[] conflictExprGrammar= new ParseRule[] {
+			new ParseRule(Expr, new Object[]{ Expr, PLUS, Expr }),
+			new ParseRule(Expr, new Object[]{ Expr, TIMES, Expr }),
+			new ParseRule(Expr, new Object[]{ LPAREN, Expr, RPAREN }),
+			new ParseRule(Expr, new Object[]{ Number.class }),
+		};
+		canonical= TableBuilder.generate(Expr, TableBuilder.EOF_SET, conflictExprGrammar, null, TableBuilder.CANONICAL_LR1, null);
+		minimal= TableBuilder.generate(Expr, TableBuilder.EOF_SET, conflictExprGrammar, null, TableBuilder.MINIMAL_LR1, null);
+		assertEquals(conflictSummary(canonical), conflictSummary(minimal));
+
+		// and conflicts resolved by priorities are resolved the same way, in fewer states
+		Parser.Priorities pri= new Parser.Priorities();
+		pri.set(conflictExprGrammar[0], 1);
+		pri.set(conflictExprGrammar[1], 2);
+		g= new Grammar(Expr, conflictExprGrammar, pri);
+		Parser lr1Parser= new Parser(g);
+		g.tableType= TableBuilder.MINIMAL_LR1;
+		Parser minParser= new Parser(g);
+		assertTrue(minParser.table.getStateCount() < lr1Parser.table.getStateCount());
+		ArrayTokenSource input= new ArrayTokenSource("", new Object[] {
+			new Integer(5), PLUS, new Integer(3), TIMES, LPAREN, new Integer(1), PLUS, new Integer(8), RPAREN, TIMES, new Integer(2)
+		}, null);
+		String expected= lr1Parser.debugParse(input).toString();
+		input.rewind();
+		assertEquals(expected, minParser.debugParse(input).toString());
+
+		// but not where merging lets a prioritized reduction take away a shift
+		Nonterminal A= new Nonterminal("A");
+		ParseRule[] priMergeGrammar= new ParseRule[] {
+			new ParseRule(S, new Object[] { "x", A, "b" }),
+			new ParseRule(S, new Object[] { "z", A, "a" }),
+			new ParseRule(A, new Object[] { "c" }),
+			new ParseRule(A, new Object[] { "c", "a" }),
+		};
+		pri= new Parser.Priorities();
+		pri.set(priMergeGrammar[2], 2);
+		pri.set(priMergeGrammar[3], 1);
+		g= new Grammar(S, priMergeGrammar, pri);
+		lr1Parser= new Parser(g);
+		g.tableType= TableBuilder.MINIMAL_LR1;
+		minParser= new Parser(g);
+		assertEquals(lr1Parser.table.getStateCount(), minParser.table.getStateCount());
+		minParser.parse(new ArrayTokenSource("", new Object[] { "x", "c", "a", "b" }, null));
+		minParser.parse(new ArrayTokenSource("", new Object[] { "z", "c", "a" }, null));
+
+		// a reduction meeting the accept is a conflict, whichever comes first
+		Nonterminal N0= new Nonterminal("N0");
+		ParseRule[] acceptGrammar= new ParseRule[] {
+			new ParseRule(N0, new Object[] { N0 }),
+			new ParseRule(N0, new Object[] { "n" }),
+		};
+		canonical= TableBuilder.generate(N0, TableBuilder.EOF_SET, acceptGrammar, null, TableBuilder.CANONICAL_LR1, null);
+		minimal= TableBuilder.generate(N0, TableBuilder.EOF_SET, acceptGrammar, null, TableBuilder.MINIMAL_LR1, null);
+		assertEquals(1, canonical.conflicts.length);
+		assertEquals(1, minimal.conflicts.length);
+		assertTrue(minimal.conflicts[0].matches(".*Accept.*Reduce N0 ::= <N0>.*|.*Reduce N0 ::= <N0>.*Accept.*"));
+	}
+
+	public void testMinimalLR1Priorities() throws Exception {
+		ParseRule add= new ParseRule(Expr, new Object[] { Expr, "+", Expr }),
+			mul= new ParseRule(Expr, new Object[] { Expr, "*", Expr }),
+			pow= new ParseRule(Expr, new Object[] { Expr, "^", Expr }),
+			neg= new ParseRule(Expr, new Object[] { "-", Expr });
+		ParseRule[] rules= new ParseRule[] {
+			add, mul, pow, neg,
+			new ParseRule(Expr, new Object[] { "(", Expr, ")" }),
+			new ParseRule(Expr, new Object[] { Integer.class }),
+		};
+		Parser.Priorities pri= new Parser.Priorities(new Parser.Priorities.PriorityLevel[] {
+			new Parser.Priorities.PriorityLevel(new ParseRule[] { add }, Parser.Priorities.LEFT, 1),
+			new Parser.Priorities.PriorityLevel(new ParseRule[] { mul }, Parser.Priorities.LEFT, 2),
+			new Parser.Priorities.PriorityLevel(new ParseRule[] { neg }, Parser.Priorities.RIGHT, 3),
+			new Parser.Priorities.PriorityLevel(new ParseRule[] { pow }, Parser.Priorities.RIGHT, 4),
+		});
+		TableBuilder tb= new TableBuilder(Expr, TableBuilder.EOF_SET, rules, pri);
+		tb.buildFirstSets();
+		TableBuilder.Tables minimal= tb.buildMinimalLR1Tables();
+		TableBuilder.Tables canonical= TableBuilder.generate(Expr, TableBuilder.EOF_SET, rules, pri, TableBuilder.CANONICAL_LR1, null);
+		assertEquals(0, minimal.conflicts.length);
+		// the priorities decide cells for the operators, but every merged
+		// state has the same operator lookaheads, so the states which differ
+		// by ')' and EOF merge in one build, without the canonical collection
+		assertEquals(new HashSet(Arrays.asList(new Object[] { "+", "*", "^" })), tb.intern(tb.clashLookaheads));
+		assertTrue(tb.intern(tb.keepApart).isEmpty());
+		assertTrue(minimal.actionTable.length < canonical.actionTable.length);
+
+		Grammar g= new Grammar(Expr, rules, pri);
+		Parser lr1Parser= new Parser(g);
+		g.tableType= TableBuilder.MINIMAL_LR1;
+		Parser minParser= new Parser(g);
+		ArrayTokenSource input= new ArrayTokenSource("", new Object[] {
+			"-", new Integer(2), "^", new Integer(3), "^", "(", new Integer(1), "+", new Integer(4), "*", "-", new Integer(5), ")", "+", new Integer(6)
+		}, null);
+		String expected= lr1Parser.debugParse(input).toString();
+		input.rewind();
+		assertEquals(expected, minParser.debugParse(input).toString());
+	}
+
+	/** The distinct conflicts, without the states they shift to */
+	static Set conflictSummary(TableBuilder.Tables tables) {
+		TreeSet result= new TreeSet();
+		for (int i=0; i<tables.conflicts.length; i++)
+			result.add(tables.conflicts[i].replaceAll("Shift [0-9]+", "Shift"));
+		return result;
+	}
+
+	public void testEmptyRuleRows() throws Exception {
+		// the state after 'a' only reduces, but also has a goto, so it needs a row
+		Nonterminal X= new Nonterminal("X"), Y= new Nonterminal("Y"), Z= new Nonterminal("Z");
+		ParseRule[] rules= new ParseRule[] {
+			new ParseRule(X, new Object[] { "a", Y, "b" }),
+			new ParseRule(X, new Object[] { "c", Z }),
+			new ParseRule(Y, new Object[] { }),
+			new ParseRule(Z, new Object[] { Z, "d" }), // never completes, so its state has no actions at all
+		};
+		Parser parser= new Parser(new Grammar(X, rules));
+		parser.parse(new ArrayTokenSource("", new Object[] { "a", "b" }, null));
+		try {
+			parser.parse(new ArrayTokenSource("", new Object[] { "c", "d" }, null));
+			fail("Expected a ParseException");
+		}
+		catch (ParseException ex) {
+		}
+	}
+
+	static Set coreOf(TableBuilder tb, int state) {
+		for (Iterator itr= tb.cc.values().iterator(); itr.hasNext();) {
+			TableBuilder.ItemSetEntry entry= (TableBuilder.ItemSetEntry) itr.next();
+			if (entry.idx == state) {
+				HashSet core= new HashSet();
+				for (Iterator items= tb.getItemSet(entry).iterator(); items.hasNext();) {
+					LR1Item item= (LR1Item) items.next();
+					core.add(item.rule+"@"+item.placeholder);
+				}
+				return new TreeSet(core);
+			}
+		}
+		return null;
+	}
+
 	static final Nonterminal
 		Goal= new Nonterminal("Goal"),
 		SheepNoise= new Nonterminal("SheepNoise"),